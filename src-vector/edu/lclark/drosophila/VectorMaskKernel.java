@@ -0,0 +1,140 @@
+package edu.lclark.drosophila;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Works out the dark mask eight pixels at a time with the vector API of Java
+ * 16 and later. It needs the jdk.incubator.vector module, so it lives in its
+ * own source folder and is only ever loaded by {@link MaskKernels}.
+ * <p>
+ * Eight pixels are 24 bytes, which are loaded in one go and shuffled so that
+ * the blues, greens and reds each sit together. The lookup tables cut every
+ * channel down to a whole number once it has been multiplied by the contrast,
+ * which the vector API can't do quickly, so the gray scale value is worked
+ * out in floats without cutting anything down. That is at most one gray
+ * level above the real value, and never below it. A pixel whose float value
+ * is clearly below the dark limit is dark, one whose value is clearly more
+ * than one level above the limit is light, and the few pixels in between
+ * are checked with the lookup tables, so every pixel gets exactly the answer
+ * the tables would give.
+ */
+public class VectorMaskKernel implements MaskKernel {
+
+	/**
+	 * Thirty-two bytes, enough for eight pixels and a bit.
+	 */
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_256;
+
+	/**
+	 * Eight floats, one for each pixel.
+	 */
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_256;
+
+	/**
+	 * Eight ints, one for each pixel.
+	 */
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+
+	/**
+	 * How far the float gray scale value has to be from a limit to be sure
+	 * of which side the real value is on. Float rounding is far below this.
+	 */
+	private static final float MARGIN = 0.01f;
+
+	/**
+	 * Puts the eight blues first, then the eight greens, then the eight reds.
+	 */
+	private static final VectorShuffle<Byte> SPLIT_CHANNELS = VectorShuffle
+			.fromArray(BYTES, new int[] { 0, 3, 6, 9, 12, 15, 18, 21, 1, 4, 7,
+					10, 13, 16, 19, 22, 2, 5, 8, 11, 14, 17, 20, 23, 24, 25,
+					26, 27, 28, 29, 30, 31 }, 0);
+
+	/**
+	 * Works out one channel of eight pixels after the contrast has been
+	 * applied, without cutting it down to a whole number.
+	 *
+	 * @param channels
+	 *            the shuffled bytes of the eight pixels.
+	 * @param part
+	 *            0 for blue, 1 for green and 2 for red.
+	 * @param contrast
+	 *            the value every color channel is multiplied by.
+	 * @return the channel of each pixel, capped at 255.
+	 */
+	private static FloatVector channel(ByteVector channels, int part,
+			float contrast) {
+		IntVector value = ((IntVector) channels.convertShape(
+				VectorOperators.B2I, INTS, part)).and(0xFF);
+		return ((FloatVector) value.convertShape(VectorOperators.I2F, FLOATS,
+				0)).mul(contrast).min(255f);
+	}
+
+	@Override
+	public void maskRows(byte[] pixels, int width, int top, int bottom,
+			int left, int right, LuminanceTable table, long[] mask, int stride) {
+		double contrast = table.getImageContrast();
+		if (!(contrast >= 0 && contrast <= Float.MAX_VALUE)) {
+			// cutting down negative channels rounds them up, not down, so
+			// the bounds don't hold
+			new ScalarMaskKernel().maskRows(pixels, width, top, bottom, left,
+					right, table, mask, stride);
+			return;
+		}
+		float floatContrast = (float) contrast;
+		float darkBelow = (float) table.getDarkLimit() - MARGIN;
+		float lightFrom = (float) table.getDarkLimit() + 1 + MARGIN;
+		// a vector load reads 32 bytes, so the last pixels of the frame are
+		// done one at a time
+		int lastVectorOffset = pixels.length - BYTES.length();
+		for (int y = top; y < bottom; y++) {
+			int rowOffset = y * width * 3;
+			for (int x = left; x < right;) {
+				int word = y * stride + (x >>> 6);
+				int start = x & 63;
+				int end = Math.min(right - (x - start), 64);
+				int offset = rowOffset + x * 3;
+				long bits = 0;
+				int bit = start;
+				for (; bit + 8 <= end && offset <= lastVectorOffset; bit += 8) {
+					ByteVector channels = ByteVector.fromArray(BYTES, pixels,
+							offset).rearrange(SPLIT_CHANNELS);
+					FloatVector gray = channel(channels, 2, floatContrast)
+							.mul((float) LuminanceTable.RED_WEIGHT)
+							.add(channel(channels, 1, floatContrast).mul(
+									(float) LuminanceTable.GREEN_WEIGHT))
+							.add(channel(channels, 0, floatContrast).mul(
+									(float) LuminanceTable.BLUE_WEIGHT));
+					long dark = gray.compare(VectorOperators.LT, darkBelow)
+							.toLong();
+					long unsure = ~(dark | gray.compare(VectorOperators.GE,
+							lightFrom).toLong()) & 0xFF;
+					while (unsure != 0) {
+						int lane = Long.numberOfTrailingZeros(unsure);
+						if (table.isDark(pixels, offset + lane * 3)) {
+							dark |= 1L << lane;
+						}
+						unsure &= unsure - 1;
+					}
+					bits |= dark << bit;
+					offset += 24;
+				}
+				for (; bit < end; bit++, offset += 3) {
+					if (table.isDark(pixels, offset)) {
+						bits |= 1L << bit;
+					}
+				}
+				long covered = -1L << start;
+				if (end < 64) {
+					covered &= (1L << end) - 1;
+				}
+				mask[word] = (mask[word] & ~covered) | bits;
+				x += end - start;
+			}
+		}
+	}
+}
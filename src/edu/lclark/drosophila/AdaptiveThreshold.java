@@ -0,0 +1,201 @@
+package edu.lclark.drosophila;
+
+/**
+ * Decides which pixels are dark by comparing each one with the pixels around
+ * it, rather than with one threshold for the whole frame. This copes with
+ * rigs which are lit more in one corner than in another.
+ * <p>
+ * A pixel is dark when its rounded gray scale value is at most the mean gray
+ * scale value of the square around it times the contrast threshold over 255.
+ * With the default threshold of 200 a pixel has to be about a fifth darker
+ * than its surroundings. The gray scale values are worked out with the
+ * lookup tables as usual, so the image contrast still counts.
+ * <p>
+ * The mean of any square is found with a summed area table of the frame,
+ * which takes one pass over the frame to build and four lookups per pixel
+ * after that, however large the square is. The square should be a few times
+ * larger than a fly, so that a fly doesn't darken its own surroundings too
+ * much.
+ * <p>
+ * A threshold is never changed once made, so it can be shared between
+ * threads.
+ */
+public class AdaptiveThreshold {
+
+	/**
+	 * How many pixels the square reaches out from the pixel in the middle of
+	 * it when nothing else is asked for.
+	 */
+	public static final int DEFAULT_RADIUS = 32;
+
+	/**
+	 * The largest radius a square can have. The gray scale values of a
+	 * larger square could add up to more than an int holds.
+	 */
+	public static final int MAX_RADIUS = 1000;
+
+	/**
+	 * How many pixels the square reaches out from the pixel in the middle of
+	 * it, in every direction.
+	 */
+	private final int radius;
+
+	/**
+	 * Makes a threshold which compares every pixel with the square of the
+	 * given radius around it.
+	 *
+	 * @param radius
+	 *            how many pixels the square reaches out in every direction,
+	 *            from 1 to {@link #MAX_RADIUS}.
+	 */
+	public AdaptiveThreshold(int radius) {
+		if (radius < 1 || radius > MAX_RADIUS) {
+			throw new IllegalArgumentException("Radius must be from 1 to "
+					+ MAX_RADIUS);
+		}
+		this.radius = radius;
+	}
+
+	/**
+	 * Returns how many pixels the square reaches out from the pixel in the
+	 * middle of it.
+	 *
+	 * @return the radius of the square.
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Works out the dark mask of a whole frame.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, three bytes per pixel, row by
+	 *            row.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param table
+	 *            the lookup tables which give the gray scale values, and the
+	 *            contrast threshold.
+	 * @param sums
+	 *            room for the summed area table, (width + 1) * (height + 1)
+	 *            ints.
+	 * @param mask
+	 *            the mask the frame is written to, laid out as described in
+	 *            {@link MaskKernel}.
+	 * @param stride
+	 *            the number of longs in each row of the mask.
+	 */
+	public void maskFrame(byte[] pixels, int width, int height,
+			LuminanceTable table, int[] sums, long[] mask, int stride) {
+		// sums[(y * (width + 1)) + x] is the sum of the gray scale values
+		// of every pixel above and left of (x, y). The sums can overflow an
+		// int for very large frames, but the sum of any one square can't, and
+		// the wrapping cancels out when the sum of a square is worked out.
+		int sumsWidth = width + 1;
+		for (int x = 0; x < sumsWidth; x++) {
+			sums[x] = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			int row = (y + 1) * sumsWidth;
+			int offset = y * width * 3;
+			int rowSum = 0;
+			sums[row] = 0;
+			for (int x = 0; x < width; x++, offset += 3) {
+				rowSum += table.getLevel(pixels, offset);
+				sums[row + x + 1] = sums[row - sumsWidth + x + 1] + rowSum;
+			}
+		}
+		maskSums(width, height, table.getContrastThreshold(), sums, mask,
+				stride);
+	}
+
+	/**
+	 * Works out the dark mask of a whole frame whose gray scale values have
+	 * been worked out already.
+	 *
+	 * @param frame
+	 *            the gray scale values of the frame.
+	 * @param contrastThreshold
+	 *            the contrast threshold.
+	 * @param sums
+	 *            room for the summed area table, (width + 1) * (height + 1)
+	 *            ints.
+	 * @param mask
+	 *            the mask the frame is written to, laid out as described in
+	 *            {@link MaskKernel}.
+	 * @param stride
+	 *            the number of longs in each row of the mask.
+	 */
+	public void maskFrame(LumaFrame frame, int contrastThreshold, int[] sums,
+			long[] mask, int stride) {
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		int sumsWidth = width + 1;
+		for (int x = 0; x < sumsWidth; x++) {
+			sums[x] = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			int row = (y + 1) * sumsWidth;
+			int rowSum = 0;
+			sums[row] = 0;
+			for (int x = 0; x < width; x++) {
+				rowSum += frame.getLevel(x, y);
+				sums[row + x + 1] = sums[row - sumsWidth + x + 1] + rowSum;
+			}
+		}
+		maskSums(width, height, contrastThreshold, sums, mask, stride);
+	}
+
+	/**
+	 * Works out the dark mask of a whole frame from its summed area table.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param contrastThreshold
+	 *            the contrast threshold.
+	 * @param sums
+	 *            the summed area table of the frame.
+	 * @param mask
+	 *            the mask the frame is written to.
+	 * @param stride
+	 *            the number of longs in each row of the mask.
+	 */
+	private void maskSums(int width, int height, int contrastThreshold,
+			int[] sums, long[] mask, int stride) {
+		int sumsWidth = width + 1;
+		long threshold = contrastThreshold;
+		for (int y = 0; y < height; y++) {
+			int top = Math.max(y - radius, 0) * sumsWidth;
+			int bottom = Math.min(y + radius + 1, height) * sumsWidth;
+			int rows = (bottom - top) / sumsWidth;
+			int above = y * sumsWidth;
+			int below = above + sumsWidth;
+			int word = y * stride;
+			long bits = 0;
+			for (int x = 0; x < width; x++) {
+				int left = Math.max(x - radius, 0);
+				int right = Math.min(x + radius + 1, width);
+				long area = (long) rows * (right - left);
+				long sum = sums[bottom + right] - sums[bottom + left]
+						- sums[top + right] + sums[top + left];
+				int level = sums[below + x + 1] - sums[below + x]
+						- sums[above + x + 1] + sums[above + x];
+				if (level * 255L * area <= sum * threshold) {
+					bits |= 1L << x;
+				}
+				if ((x & 63) == 63) {
+					mask[word++] = bits;
+					bits = 0;
+				}
+			}
+			if ((width & 63) != 0) {
+				mask[word] = bits;
+			}
+		}
+	}
+}
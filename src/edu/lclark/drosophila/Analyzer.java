@@ -5,8 +5,15 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 
@@ -30,49 +37,56 @@ public class Analyzer {
 	 */
 	private class ImageSnapListener extends MediaListenerAdapter {
 
-		private int increment;
-
 		public ImageSnapListener(boolean b) {
 			loadingMovie = b;
 		}
 
 		public void onVideoPicture(IVideoPictureEvent event) {
-			// if uninitialized, back date mLastPtsWrite to get the very first
-			// frame
 			if (loadingMovie) {
 				firstMovieFrame = event.getImage();
 				flydentify(event.getImage(), 0);
-			} else {
-				if (mLastPtsWrite == Global.NO_PTS) {
-					mLastPtsWrite = event.getTimeStamp()
-							- microSecondsBetweenFrames;
-				}
-				// if it's time to write the next frame
-				if (event.getTimeStamp() - mLastPtsWrite >= microSecondsBetweenFrames) {
-					double seconds = ((double) event.getTimeStamp())
-							/ Global.DEFAULT_PTS_PER_SECOND;
-					// frames.add(event.getImage());
-
-					if (increment % sampleRate == 0) {
-						flydentify(event.getImage(), increment / sampleRate);
-						System.out.printf(
-								"at elapsed time of %6.3f seconds wrote: %s\n",
-								seconds, "<imaginary file>");
-						// update last write time
-						mLastPtsWrite += microSecondsBetweenFrames * sampleRate;
-					}
-					increment++;
-				}
+				temptotalFrames = 0;
 			}
-			temptotalFrames = increment;
 		}
 	}
 
+	/**
+	 * How many frames of a movie are read for every frame the background is
+	 * learned from, so that the samples are spread out enough for the flies
+	 * to have moved between them.
+	 */
+	private static final int BACKGROUND_SPACING = 10;
+
+	/**
+	 * The most decoded movie frames which wait for the detection pipeline
+	 * at once, so that decoding can run a little ahead.
+	 */
+	private static final int DECODE_QUEUE_LENGTH = 8;
+
 	/**
 	 * A reference to the GUI.
 	 */
 	private static AnalyzerGui gui;
 
+	/**
+	 * The most pixels the stored images can have altogether for threshold
+	 * trees to be kept of them, however much memory there is.
+	 */
+	private static final int MAX_TREE_PIXELS = 1 << 23;
+
+	/**
+	 * The smallest sample rate at which a movie is skipped through from key
+	 * frame to key frame. Below it the analyzed frames are too close
+	 * together for a key frame to be between them often enough to make up
+	 * for trying to skip.
+	 */
+	private static final int MIN_SKIPPING_SAMPLE_RATE = 8;
+
+	/**
+	 * The most bytes a threshold tree can take up for every pixel.
+	 */
+	private static final int TREE_PIXEL_BYTES = 28;
+
 	/**
 	 * this method computes the average velocity of each fly for a list of flies
 	 * 
@@ -101,22 +115,134 @@ public class Analyzer {
 		gui.run();
 	}
 
+	/**
+	 * How many pixels the square each pixel is compared with reaches out in
+	 * every direction, when the adaptive threshold is on.
+	 */
+	private int adaptiveRadius = AdaptiveThreshold.DEFAULT_RADIUS;
+
+	/**
+	 * Whether each pixel is compared with the pixels around it, rather than
+	 * with the contrast threshold alone, to decide if it is dark.
+	 */
+	private boolean adaptiveThreshold;
+
 	/**
 	 * A reference to the arenaAnalyzer
 	 */
 	private ArenaAnalyzer arenaAnalyzer;
 
+	/**
+	 * Whether flies are only searched for inside the arenas set up with the
+	 * regionMaker.
+	 */
+	private boolean arenasOnly;
+
+	/**
+	 * How much darker than the background a pixel has to be to count as part
+	 * of a fly, when the background is learned.
+	 */
+	private int backgroundDifference = BackgroundModel.DEFAULT_DIFFERENCE;
+
+	/**
+	 * The background learned at the start of the current analysis, or null
+	 * if every dark pixel is searched.
+	 */
+	private BackgroundModel backgroundModel;
+
+	/**
+	 * How many frames the background is learned from before a movie or the
+	 * stored images are analyzed, or 0 to search every dark pixel.
+	 */
+	private int backgroundSamples;
+
+	/**
+	 * The key of the movie file and sample rate whose analyzed frames were
+	 * all put into the frame cache, or null if no movie was.
+	 */
+	private String cachedMovie;
+
+	/**
+	 * The number of frames of the cached movie put into the frame cache.
+	 */
+	private int cachedMovieFrames;
+
+	/**
+	 * True while the frames of a movie being analyzed are put into the frame
+	 * cache.
+	 */
+	private boolean cachingMovie;
+
+	/**
+	 * Every blob of every stored image at the current settings, whatever its
+	 * size, so that changing the fly sizes only filters it again, or null if
+	 * it has to be made again.
+	 */
+	private ComponentCatalog componentCatalog;
+
 	/**
 	 * The minimum contrast between fly and background for a dark spot to count
 	 * as a fly. Set by the user.
 	 */
 	private int contrastThreshold = 200;
 
+	/**
+	 * The detector flydentify uses to find the blobs in a frame which could be
+	 * flies.
+	 */
+	private BlobDetector blobDetector;
+
+	/**
+	 * Whether movies are searched in the Y plane of the decoded pictures,
+	 * without making images of their frames.
+	 */
+	private boolean decodeLuma;
+
+	/**
+	 * How long decoding waited for room in the queue of decoded frames in
+	 * the last movie analysis, because detection was behind, in nanoseconds.
+	 */
+	private long decodeWait;
+
+	/**
+	 * The scratch buffers flydentify reuses from frame to frame.
+	 */
+	private DetectionContext detectionContext;
+
+	/**
+	 * Finds flies in many frames at once when a whole movie or all stored
+	 * images are analyzed. Made the first time it is needed.
+	 */
+	private DetectionPipeline detectionPipeline;
+
+	/**
+	 * The current contrast and size settings, as handed to the blob detector.
+	 */
+	private DetectionSettings detectionSettings;
+
+	/**
+	 * The number of threads the detection pipeline searches frames on.
+	 */
+	private int detectionThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * How long detection waited for decoded frames in the last movie
+	 * analysis, because decoding was behind, in nanoseconds.
+	 */
+	private long detectionWait;
+
 	/**
 	 * The duration of the movie in seconds
 	 */
 	private double duration;
 
+	/**
+	 * How many frames of a movie or of the stored images are analyzed
+	 * between finding the large dark structures to leave out of the search
+	 * again, or 0 to search every frame whole.
+	 */
+	private int exclusionInterval;
+
 	/**
 	 * The first frame in the movie, for displaying in the GUI
 	 */
@@ -127,6 +253,12 @@ public class Analyzer {
 	 */
 	private List<Fly> flies;
 
+	/**
+	 * The decoded stored images and movie frames, so that analyzing them
+	 * again doesn't decode them again.
+	 */
+	private FrameCache frameCache;
+
 	/**
 	 * The List of frames in a movie
 	 */
@@ -153,6 +285,18 @@ public class Analyzer {
 	 */
 	private boolean loadingMovie;
 
+	/**
+	 * The most frames which were being searched at once in the last movie
+	 * analysis, out of the capacity of the detection pipeline.
+	 */
+	private int maxInFlight;
+
+	/**
+	 * The most decoded frames which were waiting in the queue at once in the
+	 * last movie analysis.
+	 */
+	private int maxQueued;
+
 	/**
 	 * The number of microseconds between frames in a movie file
 	 */
@@ -173,6 +317,11 @@ public class Analyzer {
 	 */
 	private File movieFile;
 
+	/**
+	 * The index of the movie opened last, or null if it couldn't be indexed.
+	 */
+	private MovieIndex movieIndex;
+
 	/**
 	 * True if the currently loaded file is a movie. Otherwise, it is false.
 	 * <p>
@@ -181,6 +330,12 @@ public class Analyzer {
 	 */
 	private boolean movieLoaded;
 
+	/**
+	 * How many segments a movie is split into, which are decoded and tracked
+	 * at the same time, or 1 to go through it from start to end.
+	 */
+	private int movieSegments = 1;
+
 	/**
 	 * The range of acceptable pixel values for size of flies.
 	 */
@@ -210,6 +365,24 @@ public class Analyzer {
 	 */
 	private int sizeThreshold;
 
+	/**
+	 * The number of frames tracked in the last analysis, for working out how
+	 * much of them was skipped on average.
+	 */
+	private int skippedFrames;
+
+	/**
+	 * How much of every frame tracked in the last analysis was skipped
+	 * because it hadn't changed, added up.
+	 */
+	private double skippedSum;
+
+	/**
+	 * Whether the parts of a frame which haven't changed since an earlier
+	 * frame are skipped when a movie or the stored images are analyzed.
+	 */
+	private boolean skipUnchanged;
+
 	/**
 	 * The number of frames the analyzer has analyzed, and displayed on screen.
 	 * This is currently different than totalFrames, because of the movie
@@ -218,12 +391,45 @@ public class Analyzer {
 	 */
 	private int temptotalFrames;
 
+	/**
+	 * The threshold tree of every stored image, for finding the blobs of
+	 * another contrast threshold without searching the images again, or null
+	 * if there are none.
+	 */
+	private ThresholdTree[] thresholdTrees;
+
 	/**
 	 * The total number of frames in the movie being analyzed. Or, the number of
 	 * images being analyzed.
 	 */
 	private int totalFrames;
 
+	/**
+	 * How long tracking waited for frames to be searched in the last movie
+	 * analysis, in nanoseconds.
+	 */
+	private long trackWait;
+
+	/**
+	 * The settings the threshold trees were built with, or tried to be built
+	 * with if the images were too large, or null if they haven't been.
+	 */
+	private DetectionSettings treeSettings;
+
+	/**
+	 * How many frames of a movie or of the stored images are analyzed
+	 * between searching a whole frame, with the frames in between only
+	 * searched around where the flies are expected, or 0 to search every
+	 * frame whole.
+	 */
+	private int windowInterval;
+
+	/**
+	 * How many pixels the windows searched around the expected position of
+	 * each fly reach out in every direction.
+	 */
+	private int windowRadius = 15;
+
 	/**
 	 * The constructor for the Analyzer class, initializes most of the fields.
 	 */
@@ -235,6 +441,10 @@ public class Analyzer {
 		images = new File[20];
 		regionMaker = new RegionMaker(this);
 		arenaAnalyzer = new ArenaAnalyzer(this);
+		detectionContext = new DetectionContext();
+		frameCache = new FrameCache();
+		blobDetector = new ParallelLabelingDetector();
+		updateDetectionSettings();
 	}
 
 	/**
@@ -251,37 +461,214 @@ public class Analyzer {
 
 		}
 		this.sampleRate = sampleRate;
-		IMediaReader mediaReader = ToolFactory.makeReader(movieFile
-				.getAbsolutePath());
-
-		// stipulate that we want BufferedImages created in BGR 24bit color
-		// space
-		mediaReader
-				.setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
 		totalFrames = getFramesInMovie(movieFile.getAbsolutePath())
 				/ sampleRate;
-		System.err.println("Total Frames is: " + totalFrames);
-		System.err.println("Duration is " + duration);
 		secondsBetweenFrames = duration / totalFrames;
-		System.err
-				.println("Seconds between frames is: " + secondsBetweenFrames);
-		microSecondsBetweenFrames = (long) (Global.DEFAULT_PTS_PER_SECOND * secondsBetweenFrames);
-		System.err.println("micro seconds between frames is: "
-				+ microSecondsBetweenFrames);
-
-		mediaReader.addListener(new ImageSnapListener(false));
-		// read out the contents of the media file and
-		// dispatch events to the attached listener
-		while (mediaReader.readPacket() == null) {
-			// Wait
+		startFrameSelection((long) (Global.DEFAULT_PTS_PER_SECOND
+				* secondsBetweenFrames));
+
+		backgroundModel = backgroundSamples > 0 ? learnMovieBackground() : null;
+		// frames are searched for flies on the detection pipeline's threads
+		// while the movie is being read, and tracked in order as they finish
+		startDetectionPipeline(null);
+		String movie = FrameCache.key(movieFile) + "/" + sampleRate;
+		decodeWait = 0;
+		detectionWait = 0;
+		maxQueued = 0;
+		boolean cached = movie.equals(cachedMovie) && isMovieCached();
+		// windows and exclusion masks depend on the frames before, which a
+		// segment doesn't have
+		boolean segmented = !cached && movieSegments > 1
+				&& windowInterval == 0 && exclusionInterval == 0;
+		if (cached) {
+			// every frame is still in the cache, so the movie isn't decoded
+			for (int i = 0; i < cachedMovieFrames; i++) {
+				BufferedImage image = frameCache.get(FrameCache.key(movieFile,
+						sampleRate, i));
+				if (image == null) {
+					break;
+				}
+				detectionPipeline.submit(i, image);
+			}
+			temptotalFrames = cachedMovieFrames;
+		} else if (segmented && analyzeSegments()) {
+			// the segments have tracked every frame
+		} else {
+			segmented = false;
+			decodeMovie(movie);
+		}
+		try {
+			detectionPipeline.finish();
+		} catch (IOException e) {
+			// movie frames are never read from image files
+			throw new IllegalStateException(e);
 		}
 
+		// segments track their frames themselves
+		trackWait = segmented ? 0 : detectionPipeline.getTrackWait();
+		maxInFlight = segmented ? 0 : detectionPipeline.getMaxPending();
 		totalFrames = temptotalFrames;
 		movieAnalyzed = true;
 		gui.repaint();
 
 	}
 
+	/**
+	 * Analyzes the movie as several {@link MovieSegment}s at the same time,
+	 * each decoded, searched and tracked on its own thread with its own
+	 * decoder. The segments are cut at analyzed frames, spread evenly over
+	 * the frames the movie is expected to have, with the last one going on to
+	 * the end of the movie. Every segment tracks its flies as if the movie
+	 * started at its first frame, and the tracks are stitched together at the
+	 * cuts afterwards (see {@link #stitchFlies}). Frames get the same numbers
+	 * and pictures as in a run through the whole movie, which is checked
+	 * with the movie index first; a movie without an index, or one whose
+	 * segments would start at other pictures, isn't analyzed here at all. A
+	 * segment which ends before its end frame means the movie ended early,
+	 * and the segments after it are dropped. Segments don't put their frames
+	 * into the frame cache.
+	 * 
+	 * @return true if the movie was analyzed, false if it has to be
+	 *         analyzed in one run instead.
+	 */
+	private boolean analyzeSegments() {
+		long startTime;
+		try {
+			MovieDecoder decoder = new MovieDecoder(movieFile, 1);
+			try {
+				if (!decoder.next()) {
+					flies = new LinkedList<Fly>();
+					return true;
+				}
+				startTime = decoder.getTimeStamp();
+			} finally {
+				decoder.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not open file:"
+					+ movieFile, e);
+		}
+		int segments = Math.max(1, Math.min(movieSegments, totalFrames));
+		int[] cuts = new int[segments - 1];
+		for (int s = 1; s < segments; s++) {
+			cuts[s - 1] = (int) ((long) s * totalFrames / segments);
+		}
+		if (movieIndex == null
+				|| !segmentsMatchWholeRun(movieIndex, startTime,
+						microSecondsBetweenFrames, cuts)) {
+			return false;
+		}
+		DetectionSettings segmentSettings = detectionSettings;
+		if (backgroundModel != null) {
+			segmentSettings = segmentSettings
+					.withBackgroundModel(backgroundModel);
+		}
+		final DetectionSettings settings = segmentSettings;
+		final BlobDetector detector = blobDetector;
+		final double[] skipped = new double[segments];
+		MovieSegment[] parts = new MovieSegment[segments];
+		List<List<Fly>> tracks = new ArrayList<List<Fly>>();
+		List<Future<Integer>> ends = new ArrayList<Future<Integer>>();
+		ExecutorService pool = Executors.newFixedThreadPool(segments,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "segment");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			for (int s = 0; s < segments; s++) {
+				final int segment = s;
+				final int firstFrame = s == 0 ? 0 : cuts[s - 1];
+				int endFrame = s == segments - 1 ? -1 : cuts[s];
+				final MovieSegment part = new MovieSegment(movieFile,
+						startTime, microSecondsBetweenFrames, firstFrame,
+						endFrame);
+				part.setDecodeLuma(decodeLuma);
+				part.setIndex(movieIndex);
+				part.setSkipToKeyFrames(sampleRate >= MIN_SKIPPING_SAMPLE_RATE);
+				part.setSkipUnchanged(skipUnchanged);
+				parts[s] = part;
+				final List<Fly> track = new LinkedList<Fly>();
+				tracks.add(track);
+				ends.add(pool.submit(new Callable<Integer>() {
+					public Integer call() throws IOException {
+						return part.analyze(detector, settings,
+								new DetectionPipeline.Tracker() {
+									public void track(int frameNumber,
+											BlobList blobs) {
+										skipped[segment] += blobs
+												.getSkippedFraction();
+										trackFlies(track, firstFrame,
+												frameNumber, blobs);
+									}
+								});
+					}
+				}));
+			}
+			List<Fly> stitched = new LinkedList<Fly>();
+			skippedFrames = 0;
+			skippedSum = 0;
+			for (int s = 0; s < segments; s++) {
+				int end = ends.get(s).get();
+				int firstFrame = parts[s].getFirstFrame();
+				stitched = stitchFlies(stitched, tracks.get(s), firstFrame,
+						end);
+				skippedFrames += end - firstFrame;
+				skippedSum += skipped[s];
+				temptotalFrames = end;
+				if (end < parts[s].getEndFrame()) {
+					break;
+				}
+			}
+			flies = stitched;
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw new IllegalArgumentException("Could not open file:"
+						+ movieFile, cause);
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			// segments still running are stopped if another one failed
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Builds the threshold tree of every stored image.
+	 * 
+	 * @return the trees, or null if the images have too many pixels to keep
+	 *         trees of.
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	private ThresholdTree[] buildThresholdTrees() throws IOException {
+		ThresholdTree[] trees = new ThresholdTree[totalFrames];
+		long pixels = 0;
+		for (int i = 0; i < totalFrames; i++) {
+			BufferedImage image = readImage(images[i]);
+			pixels += (long) image.getWidth() * image.getHeight();
+			if (pixels > getMaxTreePixels()) {
+				return null;
+			}
+			trees[i] = new ThresholdTree(image, detectionSettings,
+					detectionContext);
+		}
+		return trees;
+	}
+
 	/**
 	 * Calculates the average velocity of an arena between selected frames
 	 * 
@@ -296,6 +683,45 @@ public class Analyzer {
 		return arenaAnalyzer.AvgVelocityofArena(Arena, start, end);
 	}
 
+	/**
+	 * Makes a catalog of every blob of the stored images at the current
+	 * contrast threshold out of the threshold trees, building the trees first
+	 * if they were built with another image contrast or other arenas. The
+	 * trees can't be used when the dark pixels depend on more than the
+	 * lookup tables, which is with an adaptive threshold, a background model
+	 * or an exclusion mask, or when the images are too large.
+	 * 
+	 * @return the catalog, or null if the trees can't be used.
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	private ComponentCatalog catalogFromTrees() throws IOException {
+		if (adaptiveThreshold || backgroundSamples > 0 || exclusionInterval > 0) {
+			return null;
+		}
+		LuminanceTable treeTable = treeSettings != null ? treeSettings
+				.getLuminanceTable() : null;
+		if (treeTable == null || treeTable.getImageContrast() != imageContrast
+				|| treeSettings.getArenaRegion() != detectionSettings
+						.getArenaRegion()) {
+			treeSettings = detectionSettings;
+			thresholdTrees = buildThresholdTrees();
+		}
+		if (thresholdTrees == null) {
+			return null;
+		}
+		ComponentCatalog catalog = new ComponentCatalog(detectionSettings,
+				totalFrames);
+		int threshold = detectionSettings.getLuminanceTable()
+				.getContrastThreshold();
+		BlobList blobs = new BlobList();
+		for (int i = 0; i < totalFrames; i++) {
+			thresholdTrees[i].getComponents(threshold, blobs);
+			catalog.add(i, blobs);
+		}
+		return catalog;
+	}
+
 	/**
 	 * Clears the arenas.
 	 */
@@ -304,6 +730,7 @@ public class Analyzer {
 			fly.setArena(0);
 		}
 		regionMaker.clearData();
+		updateDetectionSettings();
 	}
 
 	/**
@@ -314,6 +741,9 @@ public class Analyzer {
 		totalFrames = 0;
 		flies.clear();
 		images = new File[20];
+		componentCatalog = null;
+		thresholdTrees = null;
+		treeSettings = null;
 		loadingMovie = false;
 		movieAnalyzed = false;
 	}
@@ -337,6 +767,28 @@ public class Analyzer {
 		return false;
 	}
 
+	/**
+	 * Adds the positions another fly has in the given frames to a fly, so
+	 * that its velocities are worked out from where it was before them.
+	 *
+	 * @param fly
+	 *            the fly whose track goes on.
+	 * @param track
+	 *            the fly whose positions are added.
+	 * @param firstFrame
+	 *            the first frame to add.
+	 * @param endFrame
+	 *            the frame after the last one to add.
+	 */
+	private static void continueTrack(Fly fly, Fly track, int firstFrame,
+			int endFrame) {
+		for (int frame = firstFrame; frame < endFrame; frame++) {
+			if (track.getX(frame) != -1) {
+				fly.addFrameInfo(frame, track.getX(frame), track.getY(frame));
+			}
+		}
+	}
+
 	/**
 	 * Updates the contrast threshold field. This is used to tell how dark a
 	 * spot has to be to be considered a fly. This will also analyze all stored
@@ -354,12 +806,162 @@ public class Analyzer {
 		}
 		if (input >= 0 && input <= 255) {
 			contrastThreshold = input;
+			updateDetectionSettings();
 			if (totalFrames > 0) {
 				updateImages();
 			}
 		}
 	}
 
+	/**
+	 * Decodes the frames of the movie which are analyzed and puts them into
+	 * the given queue, as images or as the Y plane of the decoded pictures.
+	 * Pictures which aren't analyzed are decoded but never made into frames,
+	 * and at large sample rates the decoder skips ahead to the last key frame
+	 * before the next analyzed frame. Images are put into the frame cache as
+	 * well while the movie is being cached. Like the media reader, decoding
+	 * stops at the first packet which can't be decoded. This runs on the
+	 * decoding thread.
+	 * 
+	 * @param decoder
+	 *            the decoder of the movie.
+	 * @param luma
+	 *            true to put LumaFrames into the queue rather than images.
+	 * @param table
+	 *            the lookup tables LumaFrames are made for.
+	 * @param queue
+	 *            the queue the frames are put into, which is closed at the
+	 *            end of the movie.
+	 */
+	private void decodeFrames(MovieDecoder decoder, boolean luma,
+			LuminanceTable table, FrameQueue queue) {
+		try {
+			while (decoder.next()) {
+				int frameNumber = nextFrame(decoder.getTimeStamp());
+				if (frameNumber < 0) {
+					continue;
+				}
+				Object frame;
+				if (luma) {
+					frame = decoder.getLumaFrame(table);
+				} else {
+					BufferedImage image = decoder.getImage();
+					if (cachingMovie) {
+						frameCache.put(FrameCache.key(movieFile, sampleRate,
+								frameNumber), image);
+					}
+					frame = image;
+				}
+				if (!queue.put(frame)) {
+					return;
+				}
+				if (sampleRate >= MIN_SKIPPING_SAMPLE_RATE) {
+					decoder.skipTo(getNextDueTime());
+				}
+			}
+			queue.close();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			queue.close();
+		} catch (InterruptedException e) {
+			queue.fail(e);
+		} catch (RuntimeException e) {
+			queue.fail(e);
+		} catch (Error e) {
+			queue.fail(e);
+		}
+	}
+
+	/**
+	 * Analyzes the movie in three stages which overlap: a decoding thread
+	 * decodes the frames which are analyzed into a {@link FrameQueue}, this
+	 * thread takes them out and submits them to the detection pipeline,
+	 * whose workers search them, and the flies are tracked in frame order as
+	 * the workers finish. A full queue holds decoding back, and a full
+	 * pipeline holds submitting back. Frames are made as the Y plane of the
+	 * decoded pictures if asked for and the movie's format allows, and as
+	 * images otherwise, which are put into the frame cache if all of them
+	 * are likely to fit. The run is finished, or given up on and every
+	 * worker waited for, before the decoder lets go of its pictures.
+	 * 
+	 * @param movie
+	 *            the key of the movie file and sample rate, which the frames
+	 *            are cached under.
+	 */
+	private void decodeMovie(String movie) {
+		// every picture a LumaFrame can be in is in use: in the pipeline,
+		// in the queue, on its way between them, and being decoded into.
+		// Pictures are only made as the decoder gets to them, so decoding
+		// images, which are copies, only ever makes one
+		final MovieDecoder decoder;
+		try {
+			decoder = new MovieDecoder(movieFile,
+					detectionPipeline.getCapacity() + DECODE_QUEUE_LENGTH + 2);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not open file:"
+					+ movieFile, e);
+		}
+		decoder.setIndex(movieIndex);
+		final boolean luma = decodeLuma
+				&& MovieDecoder.supports(decoder.getPixelType());
+		final LuminanceTable table = detectionSettings.getLuminanceTable();
+		final FrameQueue queue = new FrameQueue(DECODE_QUEUE_LENGTH);
+		cachedMovie = null;
+		cachingMovie = !luma
+				&& frameCache.fits(3L * decoder.getWidth()
+						* decoder.getHeight() * totalFrames);
+		Thread decoding = new Thread(new Runnable() {
+			public void run() {
+				decodeFrames(decoder, luma, table, queue);
+			}
+		}, "decode");
+		decoding.setDaemon(true);
+		decoding.start();
+		try {
+			boolean finished = false;
+			try {
+				int frameNumber = 0;
+				Object frame;
+				while ((frame = queue.take()) != null) {
+					if (frame instanceof LumaFrame) {
+						detectionPipeline.submit(frameNumber,
+								(LumaFrame) frame);
+					} else {
+						detectionPipeline.submit(frameNumber,
+								(BufferedImage) frame);
+					}
+					frameNumber++;
+				}
+				detectionPipeline.finish();
+				finished = true;
+			} finally {
+				// no worker or decoding thread may still be reading a
+				// picture when the decoder lets go of them
+				if (!finished) {
+					detectionPipeline.abort();
+				}
+				queue.cancel();
+				joinUninterruptibly(decoding);
+			}
+		} catch (IOException e) {
+			// movie frames are never read from image files
+			throw new IllegalStateException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			decoder.close();
+		}
+		decodeWait = queue.getPutWait();
+		detectionWait = queue.getTakeWait();
+		maxQueued = queue.getMaxDepth();
+		if (cachingMovie) {
+			cachedMovie = movie;
+			cachedMovieFrames = temptotalFrames;
+			cachingMovie = false;
+		}
+	}
+
 	/**
 	 * Identifies any flies within the given image and adds to the information
 	 * within the flies List for the given frame. In order to retrieve
@@ -371,250 +973,23 @@ public class Analyzer {
 	 *            which frame out of all frames the given image is.
 	 */
 	public void flydentify(BufferedImage image, int frameNumber) {
-		if (frameNumber == 0) {
-			flies = new LinkedList<Fly>();
-		}
-		int imgHeight = image.getHeight();
-		int imgWidth = image.getWidth();
-		// a temporary array of the flies found in this image. It just stores
-		// their x and y
-		LinkedList<double[]> tempFlies = new LinkedList<double[]>();
-		// an array of which pixels have been searched
-		boolean searchArray[][] = new boolean[imgWidth][imgHeight];
-		int stack[][] = new int[imgWidth * imgHeight][2];
-		int curIdx;
-		for (int i = 0; i < imgWidth; i++) {
-			for (int j = 0; j < imgHeight; j++) {
-				if (!searchArray[i][j]) { // if pixel hasn't been searched
-					// find gray scale value of the pixel. TODO we aren't
-					// completely sure if this works
-					int rgb = image.getRGB(i, j);
-					int red = (rgb >> 16) & 0xFF;
-					int green = (rgb >> 8) & 0xFF;
-					int blue = rgb & 0xFF;
-					red *= imageContrast;
-					green *= imageContrast;
-					blue *= imageContrast;
-					if (red > 255) {
-						red = 255;
-					}
-					if (green > 255) {
-						green = 255;
-					}
-					if (blue > 255) {
-						blue = 255;
-					}
-					double avg = red * 0.2989 + green * .587 + blue * .114;
-					// if the color is dark enough
-					if ((int) (Math.round(avg)) <= contrastThreshold) {
-						int totalX = 0;
-						int totalY = 0;
-						int numPixels = 0;
-						// initialize values to find center of mass of the fly.
-						curIdx = 0;
-						stack[curIdx][0] = i;
-						stack[curIdx][1] = j;
-						curIdx++;
-						while (curIdx > 0) {
-							curIdx--;
-							int tempx = stack[curIdx][0];
-							int tempy = stack[curIdx][1];
-							searchArray[tempx][tempy] = true;
-							totalX += tempx;
-							totalY += tempy;
-							numPixels++;
-							if ((tempx > 0) && !searchArray[tempx - 1][tempy]) {
-								if (isDarkEnough(image.getRGB(tempx - 1, tempy))) {
-									stack[curIdx][0] = tempx - 1;
-									stack[curIdx][1] = tempy;
-									curIdx++;
-								}
-							}
-							if ((tempy > 0) && !searchArray[tempx][tempy - 1]) {
-								if (isDarkEnough(image.getRGB(tempx, tempy - 1))) {
-									stack[curIdx][0] = tempx;
-									stack[curIdx][1] = tempy - 1;
-									curIdx++;
-								}
-							}
-							if ((tempx < imgWidth - 1)
-									&& !searchArray[tempx + 1][tempy]) {
-								if (isDarkEnough(image.getRGB(tempx + 1, tempy))) {
-									stack[curIdx][0] = tempx + 1;
-									stack[curIdx][1] = tempy;
-									curIdx++;
-								}
-							}
-							if ((tempy < imgHeight - 1)
-									&& !searchArray[tempx][tempy + 1]) {
-								if (isDarkEnough(image.getRGB(tempx, tempy + 1))) {
-									stack[curIdx][0] = tempx;
-									stack[curIdx][1] = tempy + 1;
-									curIdx++;
-								}
-							}
-						}
-						if (numPixels >= sizeThreshold
-								&& numPixels <= (sizeThreshold + pixelRange)) {
-							// if the blob is large enough to be a fly, but not
-							// too big
-							// create a new temporary fly object
-							double tempLocation[] = new double[2];
-							tempLocation[0] = (double) totalX / numPixels;
-							tempLocation[1] = (double) totalY / numPixels;
-							tempFlies.add(tempLocation);
-						}
-					} else {
-						// we searched this already!
-						searchArray[i][j] = true;
-					}
-				}
-			}
-		}
-		// code above here identifies flies in a frame
-		// code below here maps flies to flies that have been found in previous
-		// frames
-		if (frameNumber == 0) {
-			// The first frame just creates all found flies.
-			for (double[] d : tempFlies) {
-				Fly f;
-				if (movieLoaded) {
-					f = new Fly(totalFrames);
-				} else {
-					f = new Fly();
-				}
-				f.addFrameInfo(frameNumber, d[0], d[1]);
-				f.setId(flies.size());
-				f.setArena(regionMaker.getArenaAssignment(), frameNumber);
-				flies.add(f);
-
-			}
-		} else {
-			// If not the first frame, we do the checking algorithms.
-			// (Algorithm sounds too proper for the duct-taped together thing
-			// that this is.)
-			Fly[] fullPrevFlies = new Fly[flies.size()];
-			int index = 0;
-			boolean[] prevFliesMarked = new boolean[flies.size()];
-			for (Fly fly : flies) {
-				fullPrevFlies[index] = fly;
-				index++;
-			}
-			// Stores coordinates in indices 0 and 1 of array, stores id in
-			// index 2
-			double[][] fullTempFlies = new double[tempFlies.size()][3];
-			boolean[] tempFliesMarked = new boolean[tempFlies.size()];
-			for (int i = 0; i < fullTempFlies.length; i++) {
-				fullTempFlies[i][0] = tempFlies.get(i)[0];
-				fullTempFlies[i][1] = tempFlies.get(i)[1];
-				fullTempFlies[i][2] = i;
-			}
-			List<double[]> newFlies = new LinkedList<double[]>();
-			while (containsFalse(tempFliesMarked)
-					|| containsFalse(prevFliesMarked)) {
-				// Searches through the temp flies list to connect the closest
-				// fly.
-				if (containsFalse(tempFliesMarked)) {
-					for (int i = 0; i < tempFliesMarked.length; i++) {
-						if (!tempFliesMarked[i]) {
-							double dist = Double.MAX_VALUE;
-							int closestFlyIndex = -1;
-							double currentX = fullTempFlies[i][0];
-							double currentY = fullTempFlies[i][1];
-							for (int j = 0; j < fullPrevFlies.length; j++) {
-								double thisDist = Math
-										.sqrt(Math.pow(
-												currentX
-														- fullPrevFlies[j]
-																.getX(frameNumber - 1),
-												2)
-												+ Math.pow(
-														currentY
-																- fullPrevFlies[j]
-																		.getY(frameNumber - 1),
-														2));
-								if (thisDist < dist) {
-									dist = thisDist;
-									closestFlyIndex = j;
-								}
-							}
-							if (!prevFliesMarked[closestFlyIndex]) {
-								prevFliesMarked[closestFlyIndex] = true;
-								tempFliesMarked[i] = true;
-								for (Fly f : flies) {
-									if (f.getId() == closestFlyIndex) {
-										f.addFrameInfo(frameNumber, currentX,
-												currentY);
-									}
-								}
-							} else if (!containsFalse(prevFliesMarked)) {
-								// If No previous flies are found:
-								newFlies.add(new double[] { currentX, currentY,
-										closestFlyIndex });
-								tempFliesMarked[i] = true;
-							}
-						}
-					}
-				}
-				// Search through the previous flies for the closest current
-				// flies.
-				if (containsFalse(prevFliesMarked)) {
-					for (int i = 0; i < fullPrevFlies.length; i++) {
-						if (!prevFliesMarked[i]) {
-							double dist = Double.MAX_VALUE;
-							int closestFlyIndex = -1;
-							double pastX = fullPrevFlies[i]
-									.getX(frameNumber - 1);
-							double pastY = fullPrevFlies[i]
-									.getY(frameNumber - 1);
-							if (!containsFalse(tempFliesMarked)) {
-								for (int j = 0; j < fullTempFlies.length; j++) {
-									double thisDist = Math.sqrt(Math.pow(pastX
-											- fullTempFlies[j][0], 2)
-											+ Math.pow(pastY
-													- fullTempFlies[j][1], 2));
-									if (thisDist < dist) {
-										dist = thisDist;
-										closestFlyIndex = j;
-									}
-								}
-							} else {
-								for (int j = 0; j < fullTempFlies.length; j++) {
-									if (!tempFliesMarked[j]) {
-										double thisDist = Math.sqrt(Math.pow(
-												pastX - fullTempFlies[j][0], 2)
-												+ Math.pow(pastY
-														- fullTempFlies[j][1],
-														2));
-										if (thisDist < dist) {
-											dist = thisDist;
-											closestFlyIndex = j;
-										}
-									}
-								}
-							}
-							prevFliesMarked[i] = true;
-							tempFliesMarked[closestFlyIndex] = true;
-							for (Fly f : flies) {
-								if (f.getId() == i) {
-									f.addFrameInfo(frameNumber,
-											fullTempFlies[closestFlyIndex][0],
-											fullTempFlies[closestFlyIndex][1]);
-								}
-							}
-						}
-					}
-				}
-			}
-			for (double[] d : newFlies) {
-				Fly aNewFly = flies.get((int) d[2]).copyThisFly();
-				aNewFly.addFrameInfo(frameNumber, d[0], d[1]);
-				aNewFly.setId(flies.size());
-				aNewFly.setArena(regionMaker.getArenaAssignment(), frameNumber);
-				flies.add(aNewFly);
-			}
-		}
+		detectionContext.detect(image, blobDetector, detectionSettings);
+		trackFlies(frameNumber, detectionContext.getBlobs());
+	}
 
+	/**
+	 * Identifies any flies within the given frame of gray scale values, like
+	 * {@link #flydentify(BufferedImage, int)} does for an image. The frame
+	 * has to be made with the current image contrast.
+	 * 
+	 * @param frame
+	 *            the gray scale values of the frame being analyzed.
+	 * @param frameNumber
+	 *            which frame out of all frames the given frame is.
+	 */
+	public void flydentify(LumaFrame frame, int frameNumber) {
+		detectionContext.detect(frame, blobDetector, detectionSettings);
+		trackFlies(frameNumber, detectionContext.getBlobs());
 	}
 
 	/**
@@ -630,7 +1005,9 @@ public class Analyzer {
 		try {
 			images[totalFrames] = file;
 			totalFrames++;
-			BufferedImage image = ImageIO.read(file);
+			thresholdTrees = null;
+			treeSettings = null;
+			BufferedImage image = readImage(file);
 			flydentify(image, totalFrames - 1);
 		} catch (IOException e) {
 			System.err.println("EVERYTHING IS HORRIBLE");
@@ -662,6 +1039,114 @@ public class Analyzer {
 		return firstMovieFrame;
 	}
 
+	/**
+	 * Tells if each pixel is compared with the pixels around it to decide if
+	 * it is dark.
+	 * 
+	 * @return true if the adaptive threshold is on.
+	 */
+	public boolean isAdaptiveThreshold() {
+		return adaptiveThreshold;
+	}
+
+	/**
+	 * Tells if flies are only searched for inside the arenas.
+	 * 
+	 * @return true if the search is kept to the arenas.
+	 */
+	public boolean isArenasOnly() {
+		return arenasOnly;
+	}
+
+	/**
+	 * Tells if movies are searched in the Y plane of the decoded pictures.
+	 * 
+	 * @return true if frames of movies aren't made into images.
+	 */
+	public boolean isDecodeLuma() {
+		return decodeLuma;
+	}
+
+	/**
+	 * Tells if the parts of a frame which haven't changed since an earlier
+	 * frame are skipped when analyzing.
+	 * 
+	 * @return true if unchanged parts are skipped.
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Returns how many pixels the square each pixel is compared with reaches
+	 * out in every direction, when the adaptive threshold is on.
+	 * 
+	 * @return the radius of the square.
+	 */
+	public int getAdaptiveRadius() {
+		return adaptiveRadius;
+	}
+
+	/**
+	 * Returns how much darker than the background a pixel has to be to count
+	 * as part of a fly.
+	 * 
+	 * @return the difference in gray scale values.
+	 */
+	public int getBackgroundDifference() {
+		return backgroundDifference;
+	}
+
+	/**
+	 * Returns how many frames the background is learned from.
+	 * 
+	 * @return the number of frames, or 0 if every dark pixel is searched.
+	 */
+	public int getBackgroundSamples() {
+		return backgroundSamples;
+	}
+
+	/**
+	 * Returns the detector flydentify uses to find blobs in a frame.
+	 * 
+	 * @return the blob detector.
+	 */
+	public BlobDetector getBlobDetector() {
+		return blobDetector;
+	}
+
+	/**
+	 * Returns how long decoding waited for room in the queue of decoded
+	 * frames in the last movie analysis, because detection was behind.
+	 * 
+	 * @return the time in nanoseconds, or 0 if the movie wasn't decoded on
+	 *         its own thread.
+	 */
+	public long getDecodeWait() {
+		return decodeWait;
+	}
+
+	/**
+	 * Returns how long detection waited for decoded frames in the last movie
+	 * analysis, because decoding was behind.
+	 * 
+	 * @return the time in nanoseconds, or 0 if the movie wasn't decoded on
+	 *         its own thread.
+	 */
+	public long getDetectionWait() {
+		return detectionWait;
+	}
+
+	/**
+	 * Returns how many frames are analyzed between finding the large dark
+	 * structures to leave out of the search again.
+	 * 
+	 * @return the number of frames, or 0 if every frame is searched whole.
+	 */
+	public int getExclusionInterval() {
+		return exclusionInterval;
+	}
+
 	/**
 	 * Gives the List of Fly objects, which store any information gained from
 	 * analyzed images.
@@ -690,6 +1175,16 @@ public class Analyzer {
 		return tempFlies;
 	}
 
+	/**
+	 * Returns the cache of decoded images and movie frames, which counts how
+	 * often frames were found in it.
+	 * 
+	 * @return the frame cache.
+	 */
+	public FrameCache getFrameCache() {
+		return frameCache;
+	}
+
 	/**
 	 * Returns the frame rate of the movie
 	 * 
@@ -700,13 +1195,33 @@ public class Analyzer {
 	}
 
 	/**
-	 * Returns the number of frames in a movie, calculated with duration of
-	 * movie and frame rate
+	 * Returns the number of frames in a movie, counted in the index of the
+	 * movie, which is made the first time the movie is opened and read from
+	 * the index file next to it after that (see {@link MovieIndex}). The
+	 * duration and frame rate are worked out from the time stamps of the
+	 * frames. If the movie can't be indexed, the number is calculated with
+	 * the duration of movie and frame rate the container gives, which is
+	 * only close.
 	 * 
 	 * @param filename
 	 * @return the number of frames in a movie
 	 */
 	public int getFramesInMovie(String filename) {
+		File file = new File(filename);
+		if (movieIndex == null || !movieIndex.isOf(file)) {
+			movieIndex = null;
+			try {
+				movieIndex = MovieIndex.forMovie(file);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+		if (movieIndex != null && movieIndex.getDuration() > 0) {
+			duration = movieIndex.getDuration()
+					/ (double) Global.DEFAULT_PTS_PER_SECOND;
+			framesPerSecond = movieIndex.getFrameCount() / duration;
+			return movieIndex.getFrameCount();
+		}
 		IContainer container = IContainer.make();
 		if (container.open(filename, IContainer.Type.READ, null) < 0) {
 			throw new IllegalArgumentException("Could not open file:"
@@ -741,6 +1256,51 @@ public class Analyzer {
 		return imageContrast;
 	}
 
+	/**
+	 * Returns the most frames which were being searched at once in the last
+	 * movie analysis. If that is the capacity of the detection pipeline, the
+	 * pipeline was full.
+	 * 
+	 * @return the number of frames, or 0 if the movie was analyzed in
+	 *         segments.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Returns the most decoded frames which were waiting in the queue at once
+	 * in the last movie analysis.
+	 * 
+	 * @return the number of frames, or 0 if the movie wasn't decoded on its
+	 *         own thread.
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * Returns the most pixels the stored images can have altogether for
+	 * threshold trees to be kept of them, which is as many as take up a
+	 * quarter of the memory the Java heap can grow to.
+	 * 
+	 * @return the number of pixels, at most {@link #MAX_TREE_PIXELS}.
+	 */
+	private static long getMaxTreePixels() {
+		long pixels = Runtime.getRuntime().maxMemory() / 4 / TREE_PIXEL_BYTES;
+		return Math.min(pixels, MAX_TREE_PIXELS);
+	}
+
+	/**
+	 * Returns when the next analyzed frame is due, which is where the
+	 * decoder can skip ahead to.
+	 * 
+	 * @return the time in microseconds.
+	 */
+	long getNextDueTime() {
+		return mLastPtsWrite + microSecondsBetweenFrames;
+	}
+
 	/**
 	 * Returns whether the movie has been completely analyzed yet
 	 * 
@@ -759,6 +1319,16 @@ public class Analyzer {
 		return movieLoaded;
 	}
 
+	/**
+	 * Returns how much of every frame of the last analysis was skipped on
+	 * average, because it hadn't changed since an earlier frame.
+	 * 
+	 * @return the fraction of a frame, from 0 to 1.
+	 */
+	public double getSkippedFraction() {
+		return skippedFrames == 0 ? 0 : skippedSum / skippedFrames;
+	}
+
 	/**
 	 * Getter for the total number of frames or images which have been processed
 	 * by this Analyzer.
@@ -769,8 +1339,53 @@ public class Analyzer {
 		return totalFrames;
 	}
 
+	/**
+	 * Returns how long tracking waited for frames to be searched in the last
+	 * movie analysis.
+	 * 
+	 * @return the time in nanoseconds, or 0 if the movie was analyzed in
+	 *         segments.
+	 */
+	public long getTrackWait() {
+		return trackWait;
+	}
+
+	/**
+	 * Returns how many frames are analyzed between searching a whole frame.
+	 * 
+	 * @return the number of frames, or 0 if every frame is searched whole.
+	 */
+	public int getWindowInterval() {
+		return windowInterval;
+	}
+
+	/**
+	 * Returns how many pixels the windows searched around each fly reach out
+	 * in every direction.
+	 * 
+	 * @return the radius of the windows.
+	 */
+	public int getWindowRadius() {
+		return windowRadius;
+	}
+
+	/**
+	 * Checks if the catalog has every blob of the stored images at the
+	 * current settings.
+	 * 
+	 * @return true if the flies can be filtered out of the catalog.
+	 */
+	private boolean isCatalogUpToDate() {
+		return componentCatalog != null
+				&& componentCatalog.size() == totalFrames
+				&& componentCatalog.isComplete()
+				&& componentCatalog.matches(detectionSettings);
+	}
+
 	/**
 	 * Checks if the rgb value given is dark enough to be identified as a fly.
+	 * This only ever uses the contrast threshold, even when the adaptive
+	 * threshold is on, since a single value has no surroundings.
 	 * 
 	 * @param rgb
 	 *            the integer rgb value to be judged if dark enough.
@@ -778,70 +1393,165 @@ public class Analyzer {
 	 *         too light.
 	 */
 	public boolean isDarkEnough(int rgb) {
-		int red;
-		int green;
-		int blue;
-		double avg;
-		red = (rgb >> 16) & 0xFF;
-		green = (rgb >> 8) & 0xFF;
-		blue = rgb & 0xFF;
-		red *= imageContrast;
-		green *= imageContrast;
-		blue *= imageContrast;
-		if (red > 255) {
-			red = 255;
-		}
-		if (green > 255) {
-			green = 255;
-		}
-		if (blue > 255) {
-			blue = 255;
-		}
-		avg = red * 0.2989 + green * .587 + blue * .114;
-		boolean found = ((int) (Math.round(avg)) <= contrastThreshold);
-		return found;
+		return detectionSettings.getLuminanceTable().isDark(rgb & 0xFF,
+				(rgb >> 8) & 0xFF, (rgb >> 16) & 0xFF);
 	}
 
 	/**
-	 * Takes a movie file and displays the first image in the GUI.
+	 * Checks if every frame of the last analysis of the cached movie is
+	 * still in the frame cache.
 	 * 
-	 * @param file
-	 *            the movie file
+	 * @return true if the movie can be analyzed again without decoding it.
 	 */
-	public void openMovie(File file) {
-		clearImages();
-		mLastPtsWrite = Global.NO_PTS;
-		movieLoaded = true;
-		movieFile = file;
-		firstMovieFrame = null;
-		IMediaReader mediaReader = ToolFactory.makeReader(file
-				.getAbsolutePath());
-		// stipulate that we want BufferedImages created in BGR 24bit color
-		// space
-		mediaReader
-				.setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
-		totalFrames = getFramesInMovie(file.getAbsolutePath());
-		secondsBetweenFrames = duration / totalFrames;
-		microSecondsBetweenFrames = (long) (Global.DEFAULT_PTS_PER_SECOND * secondsBetweenFrames);
-		mediaReader.addListener(new ImageSnapListener(true));
-		// read out the contents of the media file and
-		// dispatch events to the attached listener
+	private boolean isMovieCached() {
+		for (int i = 0; i < cachedMovieFrames; i++) {
+			if (!frameCache.contains(FrameCache.key(movieFile, sampleRate, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		loadingMovie = true;
-		while (mediaReader.readPacket() == null) {
-			if (firstMovieFrame != null) {
-				mediaReader.close();
+	/**
+	 * Waits for a thread to end, even if this thread is interrupted while
+	 * waiting. The interrupt is kept for later.
+	 * 
+	 * @param thread
+	 *            the thread to wait for.
+	 */
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
 				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
 			}
 		}
-
-		gui.repaint();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
-	 * Returns the arena assignments form the regionMaker
+	 * Learns the background from the stored images, spread evenly over all
+	 * of them.
 	 * 
-	 * @return the list of arena assignments
+	 * @return the background, or null if there are no images.
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	private BackgroundModel learnImageBackground() throws IOException {
+		BackgroundModel.Sampler sampler = new BackgroundModel.Sampler(
+				detectionSettings.getLuminanceTable(), backgroundSamples);
+		int step = Math.max(totalFrames / backgroundSamples, 1);
+		for (int i = 0; i < totalFrames && !sampler.isFull(); i += step) {
+			sampler.add(readImage(images[i]));
+		}
+		return sampler.build(backgroundDifference);
+	}
+
+	/**
+	 * Learns the background from the start of the loaded movie, taking one
+	 * frame in every {@link #BACKGROUND_SPACING}.
+	 * 
+	 * @return the background, or null if the movie has no frames.
+	 */
+	private BackgroundModel learnMovieBackground() {
+		BackgroundModel.Sampler sampler = new BackgroundModel.Sampler(
+				detectionSettings.getLuminanceTable(), backgroundSamples);
+		MovieDecoder decoder;
+		try {
+			decoder = new MovieDecoder(movieFile, 1);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not open file:"
+					+ movieFile, e);
+		}
+		try {
+			// only the sampled pictures are made into images
+			int pictures = 0;
+			while (!sampler.isFull() && decoder.next()) {
+				if (pictures % BACKGROUND_SPACING == 0) {
+					sampler.add(decoder.getImage());
+				}
+				pictures++;
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		} finally {
+			decoder.close();
+		}
+		return sampler.build(backgroundDifference);
+	}
+
+	/**
+	 * Decides if the movie picture with the given time stamp is analyzed.
+	 * A picture is analyzed once the time between analyzed frames has gone
+	 * by since the frame analyzed before was due, so the decision only
+	 * depends on the time stamps, and pictures which were skipped don't
+	 * change it.
+	 * 
+	 * @param timeStamp
+	 *            the time stamp of the picture, in microseconds.
+	 * @return the number of the analyzed frame the picture is, or -1 if it
+	 *         is passed over.
+	 */
+	int nextFrame(long timeStamp) {
+		// if uninitialized, back date mLastPtsWrite to get the very first
+		// frame
+		if (mLastPtsWrite == Global.NO_PTS) {
+			mLastPtsWrite = timeStamp - microSecondsBetweenFrames;
+		}
+		// if it's time to write the next frame
+		if (timeStamp - mLastPtsWrite < microSecondsBetweenFrames) {
+			return -1;
+		}
+		// update last write time
+		mLastPtsWrite += microSecondsBetweenFrames;
+		return temptotalFrames++;
+	}
+
+	/**
+	 * Takes a movie file and displays the first image in the GUI.
+	 * 
+	 * @param file
+	 *            the movie file
+	 */
+	public void openMovie(File file) {
+		clearImages();
+		mLastPtsWrite = Global.NO_PTS;
+		movieLoaded = true;
+		movieFile = file;
+		firstMovieFrame = null;
+		IMediaReader mediaReader = ToolFactory.makeReader(file
+				.getAbsolutePath());
+		// stipulate that we want BufferedImages created in BGR 24bit color
+		// space
+		mediaReader
+				.setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
+		totalFrames = getFramesInMovie(file.getAbsolutePath());
+		secondsBetweenFrames = duration / totalFrames;
+		microSecondsBetweenFrames = (long) (Global.DEFAULT_PTS_PER_SECOND * secondsBetweenFrames);
+		mediaReader.addListener(new ImageSnapListener(true));
+		// read out the contents of the media file and
+		// dispatch events to the attached listener
+
+		loadingMovie = true;
+		while (mediaReader.readPacket() == null) {
+			if (firstMovieFrame != null) {
+				mediaReader.close();
+				break;
+			}
+		}
+
+		gui.repaint();
+	}
+
+	/**
+	 * Returns the arena assignments form the regionMaker
+	 * 
+	 * @return the list of arena assignments
 	 */
 	public List<RegionMaker.PointArena> passDownArenaAssignments() {
 		return regionMaker.getArenaAssignment();
@@ -878,6 +1588,288 @@ public class Analyzer {
 				.getAbsolutePath());
 	}
 
+	/**
+	 * Predicts where the flies will be in the given frame, from where they
+	 * were in the two frames before, and makes windows around those places.
+	 * Every frame before the given frame has to be tracked already.
+	 * 
+	 * @param frameNumber
+	 *            the frame to predict.
+	 * @return the windows to search the frame in, or null if the whole frame
+	 *         should be searched.
+	 */
+	private SearchWindows predictWindows(int frameNumber) {
+		if (frameNumber < 1 || flies.isEmpty()) {
+			return null;
+		}
+		double[] x = new double[flies.size()];
+		double[] y = new double[flies.size()];
+		int i = 0;
+		for (Fly fly : flies) {
+			x[i] = fly.getX(frameNumber - 1);
+			y[i] = fly.getY(frameNumber - 1);
+			if (x[i] == -1) {
+				// a fly we lost track of could be anywhere
+				return null;
+			}
+			if (frameNumber >= 2 && fly.getX(frameNumber - 2) != -1) {
+				// flies keep going the way they were going
+				x[i] += x[i] - fly.getX(frameNumber - 2);
+				y[i] += y[i] - fly.getY(frameNumber - 2);
+			}
+			i++;
+		}
+		return new SearchWindows(x, y, windowRadius);
+	}
+
+	/**
+	 * Reads an image file through the frame cache, so that it is only
+	 * decoded the first time.
+	 * 
+	 * @param file
+	 *            the image file.
+	 * @return the image.
+	 * @throws IOException
+	 *             if the image file could not be read.
+	 */
+	private BufferedImage readImage(File file) throws IOException {
+		String key = FrameCache.key(file);
+		BufferedImage image = frameCache.get(key);
+		if (image == null) {
+			image = ImageIO.read(file);
+			frameCache.put(key, image);
+		}
+		return image;
+	}
+
+	/**
+	 * Checks if segments cut at the given frames start at the same pictures
+	 * as a run through the whole movie gives those frames. A segment starts
+	 * at the first picture at or after its first frame is due, but a run
+	 * which fell behind after a gap in the time stamps takes one picture for
+	 * every frame until it has caught up (see {@link #nextFrame}), so on a
+	 * movie whose pictures don't come at a steady rate the two can differ.
+	 * After their first frame, segments pick pictures the same way the run
+	 * does.
+	 * 
+	 * @param index
+	 *            the index of the movie.
+	 * @param startTime
+	 *            the time stamp of the first picture, which is when frame 0
+	 *            is due.
+	 * @param frameSpacing
+	 *            the time between two analyzed frames, in microseconds.
+	 * @param cuts
+	 *            the first frame of every segment after the first, in order.
+	 * @return true if every segment starts at the picture the run takes.
+	 */
+	static boolean segmentsMatchWholeRun(MovieIndex index, long startTime,
+			long frameSpacing, int[] cuts) {
+		int cut = 0;
+		int frame = 0;
+		for (int picture = index.getFrameAt(startTime); picture < index
+				.getFrameCount() && cut < cuts.length; picture++) {
+			long due = startTime + frame * frameSpacing;
+			if (index.getTimeStamp(picture) < due) {
+				continue;
+			}
+			if (frame == cuts[cut]) {
+				if (picture != index.getFrameAt(due)) {
+					return false;
+				}
+				cut++;
+			}
+			frame++;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets how many pixels the square each pixel is compared with reaches out
+	 * in every direction, when the adaptive threshold is on. It should be a
+	 * few times the size of a fly. This will also analyze all stored images
+	 * again if the adaptive threshold is on.
+	 * 
+	 * @param radius
+	 *            the radius of the square, from 1 to
+	 *            {@link AdaptiveThreshold#MAX_RADIUS}.
+	 */
+	public void setAdaptiveRadius(int radius) {
+		if (radius < 1 || radius > AdaptiveThreshold.MAX_RADIUS) {
+			throw new IllegalArgumentException("Radius must be from 1 to "
+					+ AdaptiveThreshold.MAX_RADIUS);
+		}
+		adaptiveRadius = radius;
+		updateDetectionSettings();
+		if (adaptiveThreshold && totalFrames > 0) {
+			updateImages();
+		}
+	}
+
+	/**
+	 * Sets whether each pixel is compared with the pixels around it to decide
+	 * if it is dark, for rigs which are lit unevenly. When it is on, a pixel
+	 * is dark if it is at most the contrast threshold over 255 times as
+	 * bright as the square around it, so the contrast threshold slider keeps
+	 * working, just with a different meaning. It is off by default. This will
+	 * also analyze all stored images again.
+	 * 
+	 * @param adaptive
+	 *            true to compare pixels with their surroundings.
+	 */
+	public void setAdaptiveThreshold(boolean adaptive) {
+		adaptiveThreshold = adaptive;
+		updateDetectionSettings();
+		if (totalFrames > 0) {
+			updateImages();
+		}
+	}
+
+	/**
+	 * Puts a newly found fly in the arena of the blob it was found as. Blobs
+	 * only know their arena when the search is kept to the arenas; otherwise
+	 * the fly's position is checked against every arena.
+	 * 
+	 * @param fly
+	 *            the new fly.
+	 * @param blobs
+	 *            the blobs found in the frame.
+	 * @param blob
+	 *            the index of the blob the fly was found as.
+	 * @param frameNumber
+	 *            the frame the fly was found in.
+	 */
+	private void setArena(Fly fly, BlobList blobs, int blob, int frameNumber) {
+		int arena = blobs.getArena(blob);
+		if (arena != BlobList.NO_ARENA) {
+			fly.setArena(arena);
+		} else {
+			fly.setArena(regionMaker.getArenaAssignment(), frameNumber);
+		}
+	}
+
+	/**
+	 * Sets whether flies are only searched for inside the arenas set up with
+	 * setFliestoArena. Everything outside the arenas is then skipped without
+	 * being looked at, and a fly which sticks out of an arena is only seen
+	 * as far as it is inside. It makes no difference while there are no
+	 * arenas. It is off by default, and takes effect the next time frames
+	 * are analyzed.
+	 * 
+	 * @param arenasOnly
+	 *            true to keep the search to the arenas.
+	 */
+	public void setArenasOnly(boolean arenasOnly) {
+		this.arenasOnly = arenasOnly;
+		updateDetectionSettings();
+	}
+
+	/**
+	 * Sets how much darker than the background a pixel has to be to count as
+	 * part of a fly, from the next analysis on.
+	 * 
+	 * @param difference
+	 *            the difference in gray scale values, at least 0.
+	 */
+	public void setBackgroundDifference(int difference) {
+		if (difference < 0) {
+			throw new IllegalArgumentException(
+					"Difference must be at least 0");
+		}
+		backgroundDifference = difference;
+		componentCatalog = null;
+	}
+
+	/**
+	 * Sets how many frames the background is learned from before a movie or
+	 * the stored images are analyzed. The background is the median of every
+	 * pixel over those frames, taken one in every ten frames from the start
+	 * of a movie, or spread over all stored images. Only pixels which are
+	 * darker than the background by the background difference are then
+	 * searched, so walls and other dark things which never move cost
+	 * nothing, but a fly which sits still through all the samples becomes
+	 * part of the background. It is off by default.
+	 * 
+	 * @param samples
+	 *            the number of frames, or 0 to search every dark pixel.
+	 */
+	public void setBackgroundSamples(int samples) {
+		if (samples < 0) {
+			throw new IllegalArgumentException("Samples must be at least 0");
+		}
+		backgroundSamples = samples;
+		componentCatalog = null;
+	}
+
+	/**
+	 * Sets the detector flydentify uses to find blobs in a frame. Every
+	 * detector finds the same flies, so this only changes how fast they are
+	 * found.
+	 * 
+	 * @param detector
+	 *            the blob detector to use, such as a {@link FloodFillDetector},
+	 *            a {@link LabelingDetector}, or a
+	 *            {@link ParallelLabelingDetector}, which is the default.
+	 */
+	public void setBlobDetector(BlobDetector detector) {
+		blobDetector = detector;
+	}
+
+	/**
+	 * Sets whether movies are searched in the Y plane of the decoded
+	 * pictures, from the next analysis on. Frames are then never made into
+	 * images, which saves converting and copying every frame, but the movie
+	 * has to be in a planar YUV format or gray, and is decoded into images as
+	 * usual otherwise. The brightness of a pixel is taken from its Y value,
+	 * so the flies found are the same for gray footage but can differ a
+	 * little for color footage. Movies analyzed this way aren't put into the
+	 * frame cache. It is off by default.
+	 * 
+	 * @param decode
+	 *            true to search the Y plane.
+	 */
+	public void setDecodeLuma(boolean decode) {
+		decodeLuma = decode;
+	}
+
+	/**
+	 * Sets the number of threads used to search frames for flies when a whole
+	 * movie or all stored images are analyzed. The default is the number of
+	 * processors.
+	 * 
+	 * @param threads
+	 *            the number of threads, at least 1.
+	 */
+	public void setDetectionThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1");
+		}
+		detectionThreads = threads;
+		if (detectionPipeline != null) {
+			detectionPipeline.shutdown();
+			detectionPipeline = null;
+		}
+	}
+
+	/**
+	 * Sets how many frames of a movie or of the stored images are analyzed
+	 * between finding the large dark structures of the frame again, like
+	 * arena walls and plate edges. Those structures are left out of the
+	 * search of the frames in between, which saves a lot of work when they
+	 * cover much of the frame, but a fly touching one of them is only seen
+	 * as far as it sticks out of it. It is off by default.
+	 * 
+	 * @param frames
+	 *            the number of frames, or 0 to search every frame whole.
+	 */
+	public void setExclusionInterval(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException("Frames must be at least 0");
+		}
+		exclusionInterval = frames;
+		componentCatalog = null;
+	}
+
 	/**
 	 * Sets flies in the square between point 1 and point 2 to the given arena
 	 * and frame
@@ -889,6 +1881,23 @@ public class Analyzer {
 	 */
 	public void setFliestoArena(Point point1, Point point2, int Arena, int frame) {
 		regionMaker.setFliesToRegions(point1, point2, Arena, frame);
+		updateDetectionSettings();
+	}
+
+	/**
+	 * Sets how many bytes of decoded frames are kept, dropping every frame
+	 * kept so far.
+	 * 
+	 * @param memoryBudget
+	 *            the most bytes to keep in memory.
+	 * @param spillBudget
+	 *            the most bytes to keep in a temporary file once memory is
+	 *            full, or 0 to keep frames in memory only.
+	 */
+	public void setFrameCacheBudget(long memoryBudget, long spillBudget) {
+		frameCache.clear();
+		frameCache = new FrameCache(memoryBudget, spillBudget);
+		cachedMovie = null;
 	}
 
 	/**
@@ -898,9 +1907,78 @@ public class Analyzer {
 	 */
 	public void setImageContrast(double d) {
 		imageContrast = d;
+		updateDetectionSettings();
 		updateImages();
 	}
 
+	/**
+	 * Sets how many segments a movie is split into, from the next analysis
+	 * on. The segments are decoded, searched and tracked at the same time,
+	 * each on its own thread, and the tracks are stitched together where
+	 * they meet, so a long movie takes about as long as its longest segment.
+	 * Frames are numbered and sampled as usual, but a fly's track across a
+	 * cut is only matched up by where the flies are on either side of it,
+	 * and there are no search windows or exclusion masks; a movie is gone
+	 * through from start to end when either of those is on. It is 1 by
+	 * default.
+	 *
+	 * @param segments
+	 *            the number of segments, at least 1.
+	 */
+	public void setMovieSegments(int segments) {
+		if (segments < 1) {
+			throw new IllegalArgumentException("Segments must be at least 1");
+		}
+		movieSegments = segments;
+	}
+
+	/**
+	 * Sets whether the parts of a frame which haven't changed since an
+	 * earlier frame are skipped when a movie or the stored images are
+	 * analyzed, from the next analysis on. The flies found are the same
+	 * either way; skipping only saves time on footage where little moves.
+	 * 
+	 * @param skip
+	 *            true to skip unchanged parts.
+	 */
+	public void setSkipUnchanged(boolean skip) {
+		skipUnchanged = skip;
+	}
+
+	/**
+	 * Sets how many frames of a movie or of the stored images are analyzed
+	 * between searching a whole frame. The frames in between are only
+	 * searched in a window around where each fly is expected to be, which
+	 * takes time for every fly rather than for every pixel. A frame where
+	 * the windows find fewer flies than the frame before is searched whole
+	 * anyway. Windowed frames are searched one at a time, not on the
+	 * detection threads. It is off by default.
+	 * 
+	 * @param frames
+	 *            the number of frames, or 0 to search every frame whole.
+	 */
+	public void setWindowInterval(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException("Frames must be at least 0");
+		}
+		windowInterval = frames;
+	}
+
+	/**
+	 * Sets how many pixels the windows searched around each fly reach out in
+	 * every direction. It has to be more than a fly moves between two
+	 * analyzed frames, beyond what its last movement predicts.
+	 * 
+	 * @param radius
+	 *            the radius of the windows in pixels.
+	 */
+	public void setWindowRadius(int radius) {
+		if (radius < 0) {
+			throw new IllegalArgumentException("Radius must be at least 0");
+		}
+		windowRadius = radius;
+	}
+
 	/**
 	 * Updates the range of possible fly sizes in pixels
 	 * 
@@ -908,6 +1986,8 @@ public class Analyzer {
 	 */
 	public void sizeRangeUpdate(int value) {
 		pixelRange = value;
+		detectionSettings = detectionSettings.withAreas(sizeThreshold,
+				sizeThreshold + pixelRange);
 		if (totalFrames > 0) {
 			updateImages();
 		}
@@ -923,31 +2003,413 @@ public class Analyzer {
 	 */
 	public void sizeThresholdUpdate(int input) {
 		sizeThreshold = input;
+		detectionSettings = detectionSettings.withAreas(sizeThreshold,
+				sizeThreshold + pixelRange);
 		if (totalFrames > 0) {
 			updateImages();
 		}
 	}
 
 	/**
-	 * This runs flydentify on all stored images.
+	 * Starts picking the movie pictures which are analyzed over again, from
+	 * frame 0 (see {@link #nextFrame}).
+	 * 
+	 * @param frameSpacing
+	 *            the time between two analyzed frames, in microseconds.
+	 */
+	void startFrameSelection(long frameSpacing) {
+		microSecondsBetweenFrames = frameSpacing;
+		mLastPtsWrite = Global.NO_PTS;
+		temptotalFrames = 0;
+	}
+
+	/**
+	 * Starts a run of the detection pipeline with the current detector and
+	 * settings, which hands every frame to {@link #trackFlies}. The pipeline
+	 * is made the first time it is needed. With a catalog, every blob of
+	 * every frame is found and added to it, and the flies are filtered out
+	 * of it before they are tracked; frames are then always searched whole.
+	 * 
+	 * @param catalog
+	 *            the catalog to fill, or null to only find the flies.
+	 * @return the detection pipeline.
+	 */
+	private DetectionPipeline startDetectionPipeline(
+			final ComponentCatalog catalog) {
+		if (detectionPipeline == null) {
+			detectionPipeline = new DetectionPipeline(detectionThreads);
+		}
+		detectionPipeline.setExclusionInterval(exclusionInterval);
+		detectionPipeline.setFrameCache(frameCache);
+		detectionPipeline.setSkipUnchanged(skipUnchanged);
+		detectionPipeline.setWindowInterval(windowInterval);
+		DetectionSettings settings = catalog != null ? catalog.getSettings()
+				: detectionSettings;
+		if (backgroundModel != null) {
+			settings = settings.withBackgroundModel(backgroundModel);
+		}
+		if (catalog != null) {
+			final BlobList flies = new BlobList();
+			detectionPipeline.start(blobDetector, settings,
+					new DetectionPipeline.Tracker() {
+						public void track(int frameNumber, BlobList blobs) {
+							catalog.add(frameNumber, blobs);
+							catalog.filter(frameNumber, detectionSettings, flies);
+							trackFlies(frameNumber, flies);
+						}
+					});
+			return detectionPipeline;
+		}
+		detectionPipeline.start(blobDetector, settings,
+				new DetectionPipeline.Tracker() {
+					public void track(int frameNumber, BlobList blobs) {
+						trackFlies(frameNumber, blobs);
+					}
+				}, new DetectionPipeline.Predictor() {
+					public SearchWindows predict(int frameNumber) {
+						return predictWindows(frameNumber);
+					}
+				});
+		return detectionPipeline;
+	}
+
+	/**
+	 * Stitches the flies tracked in a segment of a movie onto the flies
+	 * tracked in the frames before it. The flies where the segment starts are
+	 * matched with the flies where the frames before end, closest pair first,
+	 * and each matched fly goes on with the track of its partner. Like in
+	 * {@link #trackFlies}, a fly from before with no partner left follows the
+	 * closest fly of the segment, and a fly of the segment with no partner
+	 * left is a new fly, which takes the track of the closest fly from before
+	 * up to the segment.
+	 *
+	 * @param flies
+	 *            the flies tracked before the segment, which go on with the
+	 *            segment's tracks.
+	 * @param segment
+	 *            the flies tracked in the segment.
+	 * @param firstFrame
+	 *            the first frame of the segment.
+	 * @param endFrame
+	 *            the frame after the last one the segment tracked.
+	 * @return the stitched flies, numbered in order.
+	 */
+	static List<Fly> stitchFlies(List<Fly> flies, List<Fly> segment,
+			int firstFrame, int endFrame) {
+		List<Fly> stitched = new LinkedList<Fly>();
+		if (flies.isEmpty() || segment.isEmpty()) {
+			// there is nothing to match with
+			stitched.addAll(flies);
+			stitched.addAll(segment);
+		} else {
+			Fly[] before = flies.toArray(new Fly[flies.size()]);
+			Fly[] after = segment.toArray(new Fly[segment.size()]);
+			double[][] distance = new double[before.length][after.length];
+			for (int i = 0; i < before.length; i++) {
+				for (int j = 0; j < after.length; j++) {
+					distance[i][j] = Math.hypot(before[i].getX(firstFrame - 1)
+							- after[j].getX(firstFrame),
+							before[i].getY(firstFrame - 1)
+									- after[j].getY(firstFrame));
+				}
+			}
+			int[] partners = new int[before.length];
+			boolean[] matched = new boolean[after.length];
+			Arrays.fill(partners, -1);
+			int pairs = Math.min(before.length, after.length);
+			for (int pair = 0; pair < pairs; pair++) {
+				int closestBefore = -1;
+				int closestAfter = -1;
+				for (int i = 0; i < before.length; i++) {
+					for (int j = 0; j < after.length; j++) {
+						if (partners[i] != -1 || matched[j]) {
+							continue;
+						}
+						if (closestBefore == -1 || distance[i][j]
+								< distance[closestBefore][closestAfter]) {
+							closestBefore = i;
+							closestAfter = j;
+						}
+					}
+				}
+				partners[closestBefore] = closestAfter;
+				matched[closestAfter] = true;
+			}
+			// new flies take the track before the segment, so they are copied
+			// before the flies from before go on
+			List<Fly> newFlies = new LinkedList<Fly>();
+			for (int j = 0; j < after.length; j++) {
+				if (!matched[j]) {
+					int closest = 0;
+					for (int i = 1; i < before.length; i++) {
+						if (distance[i][j] < distance[closest][j]) {
+							closest = i;
+						}
+					}
+					Fly newFly = before[closest].copyThisFly();
+					newFly.setArena(after[j].getArena());
+					continueTrack(newFly, after[j], firstFrame, endFrame);
+					newFlies.add(newFly);
+				}
+			}
+			for (int i = 0; i < before.length; i++) {
+				if (partners[i] == -1) {
+					partners[i] = 0;
+					for (int j = 1; j < after.length; j++) {
+						if (distance[i][j] < distance[i][partners[i]]) {
+							partners[i] = j;
+						}
+					}
+				}
+				continueTrack(before[i], after[partners[i]], firstFrame,
+						endFrame);
+				stitched.add(before[i]);
+			}
+			stitched.addAll(newFlies);
+		}
+		int id = 0;
+		for (Fly fly : stitched) {
+			fly.setId(id++);
+		}
+		return stitched;
+	}
+
+	/**
+	 * Adds the flies found in one frame to the flies List, matching each one
+	 * to the closest fly found in the frame before. Frames have to be tracked
+	 * in order, starting from frame 0, which starts a new flies List.
+	 * 
+	 * @param frameNumber
+	 *            which frame out of all frames the flies were found in.
+	 * @param tempFlies
+	 *            the blobs found in the frame which are the right size to be
+	 *            flies, in the order a column by column scan finds them.
+	 */
+	private void trackFlies(int frameNumber, BlobList tempFlies) {
+		if (frameNumber == 0) {
+			flies = new LinkedList<Fly>();
+			skippedFrames = 0;
+			skippedSum = 0;
+		}
+		skippedFrames++;
+		skippedSum += tempFlies.getSkippedFraction();
+		trackFlies(flies, 0, frameNumber, tempFlies);
+	}
+
+	/**
+	 * Adds the flies found in one frame to the given flies List, matching
+	 * each one to the closest fly found in the frame before. Frames have to be
+	 * tracked in order, starting from the first frame, which just creates all
+	 * found flies. This only reads the fields of the analyzer, so segments of
+	 * a movie can be tracked into lists of their own at the same time.
+	 *
+	 * @param flies
+	 *            the flies tracked so far, empty before the first frame.
+	 * @param firstFrame
+	 *            the frame the flies are tracked from.
+	 * @param frameNumber
+	 *            which frame out of all frames the flies were found in.
+	 * @param tempFlies
+	 *            the blobs found in the frame which are the right size to be
+	 *            flies, in the order a column by column scan finds them.
+	 */
+	private void trackFlies(List<Fly> flies, int firstFrame, int frameNumber,
+			BlobList tempFlies) {
+		if (frameNumber == firstFrame) {
+			// The first frame just creates all found flies.
+			for (int i = 0; i < tempFlies.size(); i++) {
+				Fly f;
+				if (movieLoaded) {
+					f = new Fly(totalFrames);
+				} else {
+					f = new Fly();
+				}
+				f.addFrameInfo(frameNumber, tempFlies.getX(i),
+						tempFlies.getY(i));
+				f.setId(flies.size());
+				setArena(f, tempFlies, i, frameNumber);
+				flies.add(f);
+
+			}
+		} else {
+			// If not the first frame, we do the checking algorithms.
+			// (Algorithm sounds too proper for the duct-taped together thing
+			// that this is.)
+			Fly[] fullPrevFlies = new Fly[flies.size()];
+			int index = 0;
+			boolean[] prevFliesMarked = new boolean[flies.size()];
+			for (Fly fly : flies) {
+				fullPrevFlies[index] = fly;
+				index++;
+			}
+			boolean[] tempFliesMarked = new boolean[tempFlies.size()];
+			List<double[]> newFlies = new LinkedList<double[]>();
+			while (containsFalse(tempFliesMarked)
+					|| containsFalse(prevFliesMarked)) {
+				// Searches through the temp flies list to connect the closest
+				// fly.
+				if (containsFalse(tempFliesMarked)) {
+					for (int i = 0; i < tempFliesMarked.length; i++) {
+						if (!tempFliesMarked[i]) {
+							double dist = Double.MAX_VALUE;
+							int closestFlyIndex = -1;
+							double currentX = tempFlies.getX(i);
+							double currentY = tempFlies.getY(i);
+							for (int j = 0; j < fullPrevFlies.length; j++) {
+								double thisDist = Math
+										.sqrt(Math.pow(
+												currentX
+														- fullPrevFlies[j]
+																.getX(frameNumber - 1),
+												2)
+												+ Math.pow(
+														currentY
+																- fullPrevFlies[j]
+																		.getY(frameNumber - 1),
+														2));
+								if (thisDist < dist) {
+									dist = thisDist;
+									closestFlyIndex = j;
+								}
+							}
+							if (!prevFliesMarked[closestFlyIndex]) {
+								prevFliesMarked[closestFlyIndex] = true;
+								tempFliesMarked[i] = true;
+								for (Fly f : flies) {
+									if (f.getId() == closestFlyIndex) {
+										f.addFrameInfo(frameNumber, currentX,
+												currentY);
+									}
+								}
+							} else if (!containsFalse(prevFliesMarked)) {
+								// If No previous flies are found:
+								newFlies.add(new double[] { currentX, currentY,
+										closestFlyIndex, i });
+								tempFliesMarked[i] = true;
+							}
+						}
+					}
+				}
+				// Search through the previous flies for the closest current
+				// flies.
+				if (containsFalse(prevFliesMarked)) {
+					for (int i = 0; i < fullPrevFlies.length; i++) {
+						if (!prevFliesMarked[i]) {
+							double dist = Double.MAX_VALUE;
+							int closestFlyIndex = -1;
+							double pastX = fullPrevFlies[i]
+									.getX(frameNumber - 1);
+							double pastY = fullPrevFlies[i]
+									.getY(frameNumber - 1);
+							if (!containsFalse(tempFliesMarked)) {
+								for (int j = 0; j < tempFlies.size(); j++) {
+									double thisDist = Math.sqrt(Math.pow(pastX
+											- tempFlies.getX(j), 2)
+											+ Math.pow(pastY
+													- tempFlies.getY(j), 2));
+									if (thisDist < dist) {
+										dist = thisDist;
+										closestFlyIndex = j;
+									}
+								}
+							} else {
+								for (int j = 0; j < tempFlies.size(); j++) {
+									if (!tempFliesMarked[j]) {
+										double thisDist = Math.sqrt(Math.pow(
+												pastX - tempFlies.getX(j), 2)
+												+ Math.pow(pastY
+														- tempFlies.getY(j),
+														2));
+										if (thisDist < dist) {
+											dist = thisDist;
+											closestFlyIndex = j;
+										}
+									}
+								}
+							}
+							prevFliesMarked[i] = true;
+							tempFliesMarked[closestFlyIndex] = true;
+							for (Fly f : flies) {
+								if (f.getId() == i) {
+									f.addFrameInfo(frameNumber,
+											tempFlies.getX(closestFlyIndex),
+											tempFlies.getY(closestFlyIndex));
+								}
+							}
+						}
+					}
+				}
+			}
+			for (double[] d : newFlies) {
+				Fly aNewFly = flies.get((int) d[2]).copyThisFly();
+				aNewFly.addFrameInfo(frameNumber, d[0], d[1]);
+				aNewFly.setId(flies.size());
+				setArena(aNewFly, tempFlies, (int) d[3], frameNumber);
+				flies.add(aNewFly);
+			}
+		}
+
+	}
+
+	/**
+	 * Makes new detection settings out of the current contrast and size
+	 * fields.
+	 */
+	private void updateDetectionSettings() {
+		ArenaRegion arenaRegion = null;
+		if (arenasOnly && !regionMaker.getArenaAssignment().isEmpty()) {
+			arenaRegion = new ArenaRegion(regionMaker.getArenaAssignment());
+		}
+		detectionSettings = new DetectionSettings(new LuminanceTable(
+				imageContrast, contrastThreshold), sizeThreshold, sizeThreshold
+				+ pixelRange, null, arenaRegion);
+		if (adaptiveThreshold) {
+			detectionSettings = detectionSettings
+					.withAdaptiveThreshold(new AdaptiveThreshold(adaptiveRadius));
+		}
+	}
+
+	/**
+	 * This runs flydentify on all stored images, or on the first frame of the
+	 * loaded movie. Every blob of the stored images is kept in a catalog, so
+	 * when only the fly sizes have changed since, the images aren't searched
+	 * again: the flies are filtered out of the catalog and tracked again.
+	 * When the contrast threshold has changed, the catalog is made out of
+	 * the threshold trees of the images if they can be used.
 	 */
 	public void updateImages() {
 		if (movieLoaded) {
 			flydentify(firstMovieFrame, 0);
-		} else {
-			try {
+			return;
+		}
+		try {
+			if (!isCatalogUpToDate()) {
+				componentCatalog = catalogFromTrees();
+			}
+			if (isCatalogUpToDate()) {
+				BlobList blobs = new BlobList();
 				for (int i = 0; i < totalFrames; i++) {
-					// TODO this should probably create a new flies List, since
-					// it
-					// is re running flydentify on all images.
-					flies.clear();
-					BufferedImage image = ImageIO.read(images[i]);
-					flydentify(image, i);
+					componentCatalog.filter(i, detectionSettings, blobs);
+					trackFlies(i, blobs);
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.exit(1);
+			} else {
+				// every image is searched on the detection pipeline, and the
+				// flies are tracked from image 0 on, which starts a new flies
+				// List
+				backgroundModel = backgroundSamples > 0 ? learnImageBackground()
+						: null;
+				componentCatalog = new ComponentCatalog(detectionSettings,
+						totalFrames);
+				DetectionPipeline pipeline = startDetectionPipeline(
+						componentCatalog);
+				for (int i = 0; i < totalFrames; i++) {
+					pipeline.submit(i, images[i]);
+				}
+				pipeline.finish();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
 		}
 	}
 
@@ -279,6 +279,14 @@ public class AnalyzerGui extends JFrame {
 		analyzerPanel.repaint();
 	}
 
+	/**
+	 * Delegate method to turn the adaptive threshold on or off in Analyzer
+	 * @param adaptive true to compare pixels with their surroundings
+	 */
+	public void setAdaptiveThreshold(boolean adaptive) {
+		analyzer.setAdaptiveThreshold(adaptive);
+	}
+
 	/**
 	 * Delegate method to set the image contrast in Analyzer
 	 * @param d
@@ -380,6 +380,14 @@ public class AnalyzerPanel extends JPanel {
 		ipanel.setFlydentifiers();
 	}
 		
+	/**
+	 * Delegate method to turn the adaptive threshold on or off
+	 * @param adaptive true to compare pixels with their surroundings
+	 */
+	public void setAdaptiveThreshold(boolean adaptive) {
+		gui.setAdaptiveThreshold(adaptive);
+	}
+
 	/**
 	 * Delegate method to set image contrast
 	 * @param d
@@ -2,7 +2,13 @@ package edu.lclark.drosophila;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
 
 
 import org.junit.*;
@@ -95,5 +101,296 @@ public class AnalyzerTest {
 				fly.setY(myY2);
 				assertEquals(6.35, fly.totalDistance(0, 2), .1);
 			}
+
+			/**
+			 * Makes a fly of a six frame movie with the given positions from
+			 * the given frame on.
+			 */
+			private Fly makeTrack(int firstFrame, double... positions) {
+				Fly fly = new Fly(6);
+				for (int i = 0; i < positions.length; i += 2) {
+					fly.addFrameInfo(firstFrame + i / 2, positions[i],
+							positions[i + 1]);
+				}
+				return fly;
+			}
+
+			/**
+			 * Checks that the fly is at the given positions from the given
+			 * frame on.
+			 */
+			private void assertTrack(Fly fly, int firstFrame,
+					double... positions) {
+				for (int i = 0; i < positions.length; i += 2) {
+					assertEquals(positions[i], fly.getX(firstFrame + i / 2), 0);
+					assertEquals(positions[i + 1],
+							fly.getY(firstFrame + i / 2), 0);
+				}
+			}
+
+			@Test
+			public void testStitchCrossedFlies() {
+				List<Fly> before = new LinkedList<Fly>();
+				before.add(makeTrack(0, 10, 10, 10, 11, 10, 12));
+				before.add(makeTrack(0, 50, 50, 50, 51, 50, 52));
+				// the segment finds the flies in the other order
+				List<Fly> segment = new LinkedList<Fly>();
+				segment.add(makeTrack(3, 51, 52, 52, 52, 53, 52));
+				segment.add(makeTrack(3, 11, 12, 12, 12, 13, 12));
+				List<Fly> stitched = Analyzer.stitchFlies(before, segment, 3, 6);
+				assertEquals(2, stitched.size());
+				assertEquals(0, stitched.get(0).getId());
+				assertEquals(1, stitched.get(1).getId());
+				assertTrack(stitched.get(0), 0, 10, 10, 10, 11, 10, 12, 11, 12,
+						12, 12, 13, 12);
+				assertTrack(stitched.get(1), 0, 50, 50, 50, 51, 50, 52, 51, 52,
+						52, 52, 53, 52);
+				// the velocity at the cut is worked out from the frame before
+				assertEquals(1, stitched.get(0).getVx()[3], 0);
+				assertEquals(0, stitched.get(0).getVy()[3], 0);
+			}
+
+			@Test
+			public void testStitchExtraFlyAfter() {
+				List<Fly> before = new LinkedList<Fly>();
+				before.add(makeTrack(0, 10, 10, 10, 10, 10, 10));
+				// a fly which was only found from frame 1 on
+				before.add(makeTrack(1, 40, 40, 40, 41));
+				List<Fly> segment = new LinkedList<Fly>();
+				segment.add(makeTrack(3, 11, 10, 12, 10, 13, 10));
+				segment.add(makeTrack(3, 40, 42, 40, 43, 40, 44));
+				Fly extra = makeTrack(3, 44, 41, 45, 41, 46, 41);
+				extra.setArena(3);
+				segment.add(extra);
+				List<Fly> stitched = Analyzer.stitchFlies(before, segment, 3, 6);
+				assertEquals(3, stitched.size());
+				assertTrack(stitched.get(0), 0, 10, 10, 10, 10, 10, 10, 11, 10,
+						12, 10, 13, 10);
+				assertTrack(stitched.get(1), 1, 40, 40, 40, 41, 40, 42, 40, 43,
+						40, 44);
+				// the new fly takes the track of the closest fly before the
+				// cut, without the frame that fly wasn't found in
+				Fly copy = stitched.get(2);
+				assertEquals(2, copy.getId());
+				assertEquals(3, copy.getArena());
+				assertNotSame(before.get(1), copy);
+				assertEquals(-1, copy.getX(0), 0);
+				assertTrack(copy, 1, 40, 40, 40, 41, 44, 41, 45, 41, 46, 41);
+			}
+
+			@Test
+			public void testStitchExtraFlyBefore() {
+				List<Fly> before = new LinkedList<Fly>();
+				before.add(makeTrack(0, 10, 10, 10, 10, 10, 10));
+				before.add(makeTrack(0, 30, 30, 30, 30, 30, 30));
+				before.add(makeTrack(0, 14, 10, 14, 10, 14, 10));
+				List<Fly> segment = new LinkedList<Fly>();
+				segment.add(makeTrack(3, 29, 30, 28, 30, 27, 30));
+				segment.add(makeTrack(3, 11, 10, 12, 10, 13, 10));
+				List<Fly> stitched = Analyzer.stitchFlies(before, segment, 3, 6);
+				assertEquals(3, stitched.size());
+				assertTrack(stitched.get(0), 3, 11, 10, 12, 10, 13, 10);
+				assertTrack(stitched.get(1), 3, 29, 30, 28, 30, 27, 30);
+				// the fly left over follows the closest fly of the segment
+				assertTrack(stitched.get(2), 0, 14, 10, 14, 10, 14, 10, 11, 10,
+						12, 10, 13, 10);
+				assertEquals(2, stitched.get(2).getId());
+			}
+
+			@Test
+			public void testStitchEmptySide() {
+				List<Fly> segment = new LinkedList<Fly>();
+				segment.add(makeTrack(3, 11, 10, 12, 10, 13, 10));
+				segment.add(makeTrack(3, 40, 42, 40, 43, 40, 44));
+				List<Fly> stitched = Analyzer.stitchFlies(new LinkedList<Fly>(),
+						segment, 3, 6);
+				assertEquals(2, stitched.size());
+				assertSame(segment.get(0), stitched.get(0));
+				assertEquals(1, stitched.get(1).getId());
+				assertEquals(-1, stitched.get(0).getX(2), 0);
+
+				List<Fly> before = new LinkedList<Fly>();
+				before.add(makeTrack(0, 10, 10, 10, 10, 10, 10));
+				stitched = Analyzer.stitchFlies(before, new LinkedList<Fly>(),
+						3, 6);
+				assertEquals(1, stitched.size());
+				assertEquals(0, stitched.get(0).getId());
+				assertEquals(-1, stitched.get(0).getX(3), 0);
+			}
+
+			/**
+			 * Picks the analyzed pictures of a movie with the given index the
+			 * way a whole run does, and skips ahead to key frames the way the
+			 * decoder does with an index if asked to.
+			 *
+			 * @return the picture of every analyzed frame, in order.
+			 */
+			private List<Integer> selectFrames(MovieIndex index,
+					long frameSpacing, boolean skip) {
+				Analyzer analyzer = new Analyzer();
+				analyzer.startFrameSelection(frameSpacing);
+				List<Integer> selected = new LinkedList<Integer>();
+				int picture = 0;
+				while (picture < index.getFrameCount()) {
+					long timeStamp = index.getTimeStamp(picture);
+					int frame = analyzer.nextFrame(timeStamp);
+					if (frame >= 0) {
+						assertEquals(selected.size(), frame);
+						selected.add(picture);
+						int keyFrame = MovieDecoder.getKeyFrameToSkipTo(index,
+								timeStamp, analyzer.getNextDueTime());
+						if (skip && keyFrame >= 0) {
+							picture = keyFrame;
+							continue;
+						}
+					}
+					picture++;
+				}
+				return selected;
+			}
+
+			@Test
+			public void testFrameSelection() {
+				long[] steady = new long[100];
+				for (int i = 0; i < steady.length; i++) {
+					steady[i] = 1000 + 40 * i;
+				}
+				MovieIndex index = new MovieIndex(new File("movie.avi"), 0, 0,
+						steady, new int[] { 0, 10, 20, 30, 40, 50, 60, 70, 80,
+								90 });
+				List<Integer> selected = selectFrames(index, 120, false);
+				assertEquals(34, selected.size());
+				for (int i = 0; i < selected.size(); i++) {
+					assertEquals(3 * i, (int) selected.get(i));
+				}
+				// skipping to key frames doesn't change what is picked
+				assertEquals(selected, selectFrames(index, 120, true));
+				assertEquals(selectFrames(index, 1000, false), selectFrames(
+						index, 1000, true));
+
+				// after the gap the run takes one picture for every frame
+				// until it has caught up
+				long[] gap = new long[20];
+				for (int i = 0; i < gap.length; i++) {
+					gap[i] = i < 3 ? 40 * i : 280 + 40 * i;
+				}
+				index = new MovieIndex(new File("movie.avi"), 0, 0, gap,
+						new int[] { 0, 3, 12 });
+				selected = selectFrames(index, 80, false);
+				Integer[] expected = { 0, 2, 3, 4, 5, 6, 7, 8, 9, 11, 13, 15,
+						17, 19 };
+				assertArrayEquals(expected, selected.toArray());
+				assertEquals(selected, selectFrames(index, 80, true));
+			}
+
+			@Test
+			public void testSegmentsMatchWholeRun() {
+				long[] steady = new long[100];
+				for (int i = 0; i < steady.length; i++) {
+					steady[i] = 1000 + 40 * i;
+				}
+				MovieIndex index = new MovieIndex(new File("movie.avi"), 0, 0,
+						steady, new int[] { 0 });
+				assertTrue(Analyzer.segmentsMatchWholeRun(index, 1000, 40,
+						new int[] { 25, 50, 75 }));
+				assertTrue(Analyzer.segmentsMatchWholeRun(index, 1000, 120,
+						new int[] { 10, 20 }));
+
+				// after the gap the whole run stays behind the due times
+				long[] gap = new long[100];
+				for (int i = 0; i < gap.length; i++) {
+					gap[i] = i < 3 ? 40 * i : 280 + 40 * i;
+				}
+				index = new MovieIndex(new File("movie.avi"), 0, 0, gap,
+						new int[] { 0 });
+				assertTrue(Analyzer.segmentsMatchWholeRun(index, 0, 40,
+						new int[] { 2 }));
+				assertFalse(Analyzer.segmentsMatchWholeRun(index, 0, 40,
+						new int[] { 2, 50 }));
+				// a run which takes every third picture catches up again
+				assertTrue(Analyzer.segmentsMatchWholeRun(index, 0, 120,
+						new int[] { 20 }));
+			}
+
+			/**
+			 * Makes an Analyzer which finds flies of 9 to 25 pixels, with the
+			 * adaptive threshold so that images are always searched again
+			 * rather than filtered out of threshold trees.
+			 */
+			private Analyzer makeAnalyzer(int threads) {
+				Analyzer made = new Analyzer();
+				made.setDetectionThreads(threads);
+				made.setAdaptiveRadius(10);
+				made.setAdaptiveThreshold(true);
+				made.sizeThresholdUpdate(9);
+				made.sizeRangeUpdate(16);
+				return made;
+			}
+
+			private void assertSameFlies(List<Fly> expected, List<Fly> found,
+					int frames) {
+				assertEquals(expected.size(), found.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(expected.get(i).getId(), found.get(i).getId());
+					for (int frame = 0; frame < frames; frame++) {
+						assertEquals(expected.get(i).getX(frame), found.get(i)
+								.getX(frame), 0);
+						assertEquals(expected.get(i).getY(frame), found.get(i)
+								.getY(frame), 0);
+					}
+				}
+			}
+
+			@Test
+			public void testPipelineTracksTheSameFliesAsOneFrameAtATime()
+					throws Exception {
+				// flies wandering about a light frame, one image file a frame
+				Random random = new Random(61);
+				int[] x = new int[8];
+				int[] y = new int[8];
+				for (int f = 0; f < x.length; f++) {
+					x[f] = 10 + random.nextInt(140);
+					y[f] = 10 + random.nextInt(100);
+				}
+				File[] files = new File[15];
+				for (int frame = 0; frame < files.length; frame++) {
+					BufferedImage image = new BufferedImage(160, 120,
+							BufferedImage.TYPE_3BYTE_BGR);
+					for (int i = 0; i < 160; i++) {
+						for (int j = 0; j < 120; j++) {
+							image.setRGB(i, j, 0xE0E0E0);
+						}
+					}
+					for (int f = 0; f < x.length; f++) {
+						x[f] = Math.max(2, Math.min(154, x[f] - 2
+								+ random.nextInt(5)));
+						y[f] = Math.max(2, Math.min(114, y[f] - 2
+								+ random.nextInt(5)));
+						for (int i = 0; i < 3 + f % 3; i++) {
+							for (int j = 0; j < 4; j++) {
+								image.setRGB(x[f] + i, y[f] + j, 0x202020);
+							}
+						}
+					}
+					files[frame] = File.createTempFile("frame", ".png");
+					files[frame].deleteOnExit();
+					ImageIO.write(image, "png", files[frame]);
+				}
+
+				Analyzer single = makeAnalyzer(1);
+				Analyzer several = makeAnalyzer(4);
+				analyzer = makeAnalyzer(1);
+				for (File file : files) {
+					analyzer.flydentify(file);
+					single.flydentify(file);
+					several.flydentify(file);
+				}
+				List<Fly> expected = analyzer.getFlies();
+				assertTrue(expected.size() >= 6);
+				// every image searched again on the detection pipeline
+				single.updateImages();
+				several.updateImages();
+				assertSameFlies(expected, single.getFlies(), files.length);
+				assertSameFlies(expected, several.getFlies(), files.length);
+			}
 }
-			
\ No newline at end of file
@@ -0,0 +1,244 @@
+package edu.lclark.drosophila;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The arenas set up with the RegionMaker, for searching only inside them.
+ * Everything outside the union of the arena rectangles is left out of the
+ * search: it isn't even checked for dark pixels. A blob which sticks out of
+ * an arena is only seen as far as it is inside.
+ * <p>
+ * Every fly found is given the arena its center is in, the same way
+ * {@link Fly#setArena(List, int)} would: the last arena in the list whose
+ * rectangle holds the center, edges included.
+ * <p>
+ * A region is never changed once made, so it can be shared between threads.
+ * The rows it covers are worked out the first time it is used on a frame
+ * size, and kept.
+ */
+public class ArenaRegion {
+
+	/**
+	 * Which pixels of a frame of one size are inside the region.
+	 */
+	private static class Layout {
+
+		private final int height;
+
+		/**
+		 * One bit for every pixel, set if the pixel is outside every arena,
+		 * laid out like the dark mask.
+		 */
+		private final long[] outside;
+
+		/**
+		 * For every row, the x ranges inside an arena: the first x of each
+		 * range followed by the x just past its end, left to right.
+		 */
+		private final int[][] spans;
+
+		private final int width;
+
+		public Layout(int width, int height, int[][] spans, long[] outside) {
+			this.width = width;
+			this.height = height;
+			this.spans = spans;
+			this.outside = outside;
+		}
+	}
+
+	/**
+	 * The number of every arena.
+	 */
+	private final int[] arenas;
+
+	/**
+	 * The bottom edge of every arena, included.
+	 */
+	private final int[] bottoms;
+
+	/**
+	 * The layout used last.
+	 */
+	private volatile Layout layout;
+
+	/**
+	 * The left edge of every arena, included.
+	 */
+	private final int[] lefts;
+
+	/**
+	 * The right edge of every arena, included.
+	 */
+	private final int[] rights;
+
+	/**
+	 * The top edge of every arena, included.
+	 */
+	private final int[] tops;
+
+	/**
+	 * Makes a region out of the given arenas. The list is copied.
+	 *
+	 * @param arenaAssignment
+	 *            the arenas, as the RegionMaker keeps them.
+	 */
+	public ArenaRegion(List<RegionMaker.PointArena> arenaAssignment) {
+		int count = arenaAssignment.size();
+		arenas = new int[count];
+		lefts = new int[count];
+		tops = new int[count];
+		rights = new int[count];
+		bottoms = new int[count];
+		int i = 0;
+		for (RegionMaker.PointArena arena : arenaAssignment) {
+			arenas[i] = arena.getArena();
+			lefts[i] = arena.getTopleft().x;
+			tops[i] = arena.getTopleft().y;
+			rights[i] = arena.getBottomright().x;
+			bottoms[i] = arena.getBottomright().y;
+			i++;
+		}
+	}
+
+	/**
+	 * Returns the number of the arena the given point is in.
+	 *
+	 * @param x
+	 *            the x coordinate of the point.
+	 * @param y
+	 *            the y coordinate of the point.
+	 * @return the number of the last arena holding the point, or
+	 *         {@link BlobList#NO_ARENA} if no arena holds it.
+	 */
+	public int getArena(double x, double y) {
+		int arena = BlobList.NO_ARENA;
+		for (int i = 0; i < arenas.length; i++) {
+			if (x >= lefts[i] && x <= rights[i] && y >= tops[i]
+					&& y <= bottoms[i]) {
+				arena = arenas[i];
+			}
+		}
+		return arena;
+	}
+
+	/**
+	 * Returns which pixels of a frame of the given size are inside the
+	 * region, working them out if the size is new.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @return the layout for the size.
+	 */
+	private Layout getLayout(int width, int height) {
+		Layout current = layout;
+		if (current != null && current.width == width
+				&& current.height == height) {
+			return current;
+		}
+		int stride = (width + 63) >>> 6;
+		int[][] spans = new int[height][];
+		long[] outside = new long[height * stride];
+		int[] ranges = new int[2 * arenas.length];
+		for (int y = 0; y < height; y++) {
+			// the x ranges of the arenas crossing this row, sorted by start
+			int count = 0;
+			for (int i = 0; i < arenas.length; i++) {
+				int left = Math.max(lefts[i], 0);
+				int right = Math.min(rights[i] + 1, width);
+				if (y >= tops[i] && y <= bottoms[i] && left < right) {
+					ranges[2 * count] = left;
+					ranges[2 * count + 1] = right;
+					count++;
+				}
+			}
+			sortRanges(ranges, count);
+			// join ranges which overlap or touch
+			int joined = 0;
+			for (int i = 0; i < count; i++) {
+				if (joined > 0 && ranges[2 * i] <= ranges[2 * joined - 1]) {
+					ranges[2 * joined - 1] = Math.max(ranges[2 * joined - 1],
+							ranges[2 * i + 1]);
+				} else {
+					ranges[2 * joined] = ranges[2 * i];
+					ranges[2 * joined + 1] = ranges[2 * i + 1];
+					joined++;
+				}
+			}
+			spans[y] = Arrays.copyOf(ranges, 2 * joined);
+			// everything but the ranges is outside
+			int x = 0;
+			for (int i = 0; i <= joined; i++) {
+				int end = i < joined ? ranges[2 * i] : width;
+				for (; x < end; x++) {
+					outside[y * stride + (x >>> 6)] |= 1L << x;
+				}
+				if (i < joined) {
+					x = ranges[2 * i + 1];
+				}
+			}
+		}
+		current = new Layout(width, height, spans, outside);
+		layout = current;
+		return current;
+	}
+
+	/**
+	 * Returns the pixels of a frame of the given size which are outside
+	 * every arena. The array must not be changed.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @return one bit for every pixel, set if the pixel is outside, laid out
+	 *         like the dark mask.
+	 */
+	public long[] getOutside(int width, int height) {
+		return getLayout(width, height).outside;
+	}
+
+	/**
+	 * Returns the x ranges of one row of a frame of the given size which are
+	 * inside an arena. The array must not be changed.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param y
+	 *            the row.
+	 * @return the first x of each range followed by the x just past its
+	 *         end, left to right.
+	 */
+	public int[] getSpans(int width, int height, int y) {
+		return getLayout(width, height).spans[y];
+	}
+
+	/**
+	 * Sorts the first count ranges of the given array by their start. There
+	 * are only ever a few dozen arenas, so this is an insertion sort.
+	 *
+	 * @param ranges
+	 *            the start and end of every range.
+	 * @param count
+	 *            the number of ranges to sort.
+	 */
+	private static void sortRanges(int[] ranges, int count) {
+		for (int i = 1; i < count; i++) {
+			int start = ranges[2 * i];
+			int end = ranges[2 * i + 1];
+			int j = i - 1;
+			while (j >= 0 && ranges[2 * j] > start) {
+				ranges[2 * j + 2] = ranges[2 * j];
+				ranges[2 * j + 3] = ranges[2 * j + 1];
+				j--;
+			}
+			ranges[2 * j + 2] = start;
+			ranges[2 * j + 3] = end;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * What a frame looks like without any flies in it, for finding the flies by
+ * what has changed. It keeps the median gray scale value of every pixel over
+ * a handful of frames spread over the start of a movie. Flies move, so at
+ * most pixels the median is the background; arena walls and other things
+ * which stay put are part of it.
+ * <p>
+ * A dark pixel only counts as part of a fly if it is darker than the
+ * background by more than the difference. Dark things which never move are
+ * then never searched. The pixels whose background is too dark for anything
+ * to be that much darker are worked out once, and whole longs of the dark
+ * mask are cleared with them, so those pixels don't even cost a lookup.
+ * <p>
+ * A model is never changed once made, so it can be shared between threads.
+ * It is only used for frames of the size it was made from.
+ */
+public class BackgroundModel {
+
+	/**
+	 * Gathers the gray scale values of sample frames, and makes a model out
+	 * of them.
+	 */
+	public static class Sampler {
+
+		/**
+		 * Gets the BGR bytes of the sample frames.
+		 */
+		private final DetectionContext context;
+
+		/**
+		 * The height of the sample frames.
+		 */
+		private int height;
+
+		/**
+		 * The gray scale values of every sample frame so far.
+		 */
+		private final byte[][] levels;
+
+		/**
+		 * The number of sample frames so far.
+		 */
+		private int samples;
+
+		/**
+		 * The settings the gray scale values are worked out with.
+		 */
+		private final DetectionSettings settings;
+
+		/**
+		 * The width of the sample frames.
+		 */
+		private int width;
+
+		/**
+		 * Makes a sampler which takes up to the given number of frames.
+		 *
+		 * @param table
+		 *            the lookup tables the gray scale values are worked out
+		 *            with.
+		 * @param samples
+		 *            the largest number of frames to take, at least 1.
+		 */
+		public Sampler(LuminanceTable table, int samples) {
+			if (samples < 1) {
+				throw new IllegalArgumentException("Samples must be at least 1");
+			}
+			levels = new byte[samples][];
+			settings = new DetectionSettings(table, 0, 0);
+			context = new DetectionContext();
+		}
+
+		/**
+		 * Adds a sample frame. Frames past the largest number of frames, and
+		 * frames of another size than the first, are left out.
+		 *
+		 * @param frame
+		 *            the frame to add.
+		 */
+		public void add(BufferedImage frame) {
+			if (isFull()) {
+				return;
+			}
+			if (samples == 0) {
+				width = frame.getWidth();
+				height = frame.getHeight();
+			} else if (frame.getWidth() != width
+					|| frame.getHeight() != height) {
+				return;
+			}
+			byte[] pixels = context.prepare(frame, settings);
+			LuminanceTable table = settings.getLuminanceTable();
+			byte[] frameLevels = new byte[width * height];
+			for (int i = 0; i < frameLevels.length; i++) {
+				frameLevels[i] = (byte) table.getLevel(pixels, i * 3);
+			}
+			levels[samples++] = frameLevels;
+		}
+
+		/**
+		 * Makes a model out of the frames added so far.
+		 *
+		 * @param difference
+		 *            how much darker than the background a pixel has to be to
+		 *            count as part of a fly.
+		 * @return the model, or null if no frame was added.
+		 */
+		public BackgroundModel build(int difference) {
+			if (samples == 0) {
+				return null;
+			}
+			byte[] median = new byte[width * height];
+			int[] values = new int[samples];
+			for (int i = 0; i < median.length; i++) {
+				for (int s = 0; s < samples; s++) {
+					values[s] = levels[s][i] & 0xFF;
+				}
+				Arrays.sort(values);
+				median[i] = (byte) values[samples / 2];
+			}
+			return new BackgroundModel(width, height, median, difference);
+		}
+
+		/**
+		 * Tells if as many frames as were asked for have been added.
+		 *
+		 * @return true if no more frames are taken.
+		 */
+		public boolean isFull() {
+			return samples == levels.length;
+		}
+	}
+
+	/**
+	 * How much darker than the background a pixel has to be when nothing
+	 * else is asked for.
+	 */
+	public static final int DEFAULT_DIFFERENCE = 40;
+
+	/**
+	 * One bit for every pixel, set if the background is light enough for the
+	 * pixel to ever count, laid out like the dark mask.
+	 */
+	private final long[] candidates;
+
+	/**
+	 * How much darker than the background a pixel has to be to count as part
+	 * of a fly.
+	 */
+	private final int difference;
+
+	/**
+	 * The height of the frames the model was made from.
+	 */
+	private final int height;
+
+	/**
+	 * The gray scale value of the background at every pixel, row by row.
+	 */
+	private final byte[] levels;
+
+	/**
+	 * The width of the frames the model was made from.
+	 */
+	private final int width;
+
+	/**
+	 * Makes a model out of the given background.
+	 *
+	 * @param width
+	 *            the width of the frames in pixels.
+	 * @param height
+	 *            the height of the frames in pixels.
+	 * @param levels
+	 *            the gray scale value of the background at every pixel.
+	 * @param difference
+	 *            how much darker than the background a pixel has to be.
+	 */
+	private BackgroundModel(int width, int height, byte[] levels,
+			int difference) {
+		this.width = width;
+		this.height = height;
+		this.levels = levels;
+		this.difference = difference;
+		int stride = (width + 63) >>> 6;
+		candidates = new long[height * stride];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if ((levels[y * width + x] & 0xFF) > difference) {
+					candidates[y * stride + (x >>> 6)] |= 1L << x;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if the model can be used for frames of the given size.
+	 *
+	 * @param width
+	 *            the width of the frames in pixels.
+	 * @param height
+	 *            the height of the frames in pixels.
+	 * @return true if the model was made from frames of that size.
+	 */
+	public boolean fits(int width, int height) {
+		return width == this.width && height == this.height;
+	}
+
+	/**
+	 * Returns how much darker than the background a pixel has to be to count
+	 * as part of a fly.
+	 *
+	 * @return the difference in gray scale values.
+	 */
+	public int getDifference() {
+		return difference;
+	}
+
+	/**
+	 * Checks if the given pixel is darker than the background by more than
+	 * the difference.
+	 *
+	 * @param pixel
+	 *            the index of the pixel (y * width + x).
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param table
+	 *            the lookup tables which give the gray scale values.
+	 * @return true if the pixel has changed enough.
+	 */
+	public boolean isForeground(int pixel, byte[] pixels, LuminanceTable table) {
+		return isForeground(pixel, table.getLevel(pixels, pixel * 3));
+	}
+
+	/**
+	 * Checks if the given pixel is darker than the background by more than
+	 * the difference.
+	 *
+	 * @param pixel
+	 *            the index of the pixel (y * width + x).
+	 * @param level
+	 *            the gray scale value of the pixel.
+	 * @return true if the pixel has changed enough.
+	 */
+	public boolean isForeground(int pixel, int level) {
+		return (levels[pixel] & 0xFF) - level > difference;
+	}
+
+	/**
+	 * Clears every bit of the rows from top up to bottom of a dark mask whose
+	 * pixel isn't darker than the background by more than the difference.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param table
+	 *            the lookup tables which give the gray scale values.
+	 * @param mask
+	 *            the dark mask of the frame.
+	 * @param top
+	 *            the first row to clear bits in.
+	 * @param bottom
+	 *            the row just past the last row to clear bits in.
+	 */
+	public void keepForeground(byte[] pixels, LuminanceTable table,
+			long[] mask, int top, int bottom) {
+		keepForeground(pixels, table, null, mask, top, bottom, 0, width);
+	}
+
+	/**
+	 * Clears every bit of a box of a dark mask whose pixel isn't darker than
+	 * the background by more than the difference. The other bits of the longs
+	 * the box is in are cleared the same way.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param table
+	 *            the lookup tables which give the gray scale values.
+	 * @param mask
+	 *            the dark mask of the frame.
+	 * @param top
+	 *            the first row of the box.
+	 * @param bottom
+	 *            the row just past the last row of the box.
+	 * @param left
+	 *            the first column of the box.
+	 * @param right
+	 *            the column just past the last column of the box.
+	 */
+	public void keepForeground(byte[] pixels, LuminanceTable table,
+			long[] mask, int top, int bottom, int left, int right) {
+		keepForeground(pixels, table, null, mask, top, bottom, left, right);
+	}
+
+	/**
+	 * Clears every bit of the rows from top up to bottom of a dark mask whose
+	 * pixel isn't darker than the background by more than the difference.
+	 *
+	 * @param frame
+	 *            the gray scale values of the frame.
+	 * @param mask
+	 *            the dark mask of the frame.
+	 * @param top
+	 *            the first row to clear bits in.
+	 * @param bottom
+	 *            the row just past the last row to clear bits in.
+	 */
+	public void keepForeground(LumaFrame frame, long[] mask, int top,
+			int bottom) {
+		keepForeground(null, null, frame, mask, top, bottom, 0, width);
+	}
+
+	/**
+	 * Clears every bit of a box of a dark mask whose pixel isn't darker than
+	 * the background by more than the difference. The other bits of the longs
+	 * the box is in are cleared the same way.
+	 *
+	 * @param frame
+	 *            the gray scale values of the frame.
+	 * @param mask
+	 *            the dark mask of the frame.
+	 * @param top
+	 *            the first row of the box.
+	 * @param bottom
+	 *            the row just past the last row of the box.
+	 * @param left
+	 *            the first column of the box.
+	 * @param right
+	 *            the column just past the last column of the box.
+	 */
+	public void keepForeground(LumaFrame frame, long[] mask, int top,
+			int bottom, int left, int right) {
+		keepForeground(null, null, frame, mask, top, bottom, left, right);
+	}
+
+	/**
+	 * Clears the bits of the pixels which haven't changed enough, reading
+	 * the gray scale values either from the BGR bytes with the lookup tables
+	 * or from the frame of gray scale values.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, or null if it is given as gray
+	 *            scale values.
+	 * @param table
+	 *            the lookup tables, or null if the frame is given as gray
+	 *            scale values.
+	 * @param frame
+	 *            the gray scale values of the frame, or null if it is given
+	 *            as BGR bytes.
+	 * @param mask
+	 *            the dark mask of the frame.
+	 * @param top
+	 *            the first row to clear bits in.
+	 * @param bottom
+	 *            the row just past the last row to clear bits in.
+	 * @param left
+	 *            the first column to clear bits in.
+	 * @param right
+	 *            the column just past the last column to clear bits in.
+	 */
+	private void keepForeground(byte[] pixels, LuminanceTable table,
+			LumaFrame frame, long[] mask, int top, int bottom, int left,
+			int right) {
+		int stride = (width + 63) >>> 6;
+		int first = left >>> 6;
+		int end = (right + 63) >>> 6;
+		for (int y = top; y < bottom; y++) {
+			int word = y * stride + first;
+			for (int w = first; w < end; w++, word++) {
+				long bits = mask[word] & candidates[word];
+				long rest = bits;
+				while (rest != 0) {
+					int x = (w << 6) + Long.numberOfTrailingZeros(rest);
+					int level = frame != null ? frame.getLevel(x, y) : table
+							.getLevel(pixels, (y * width + x) * 3);
+					if (!isForeground(y * width + x, level)) {
+						bits &= ~(1L << x);
+					}
+					rest &= rest - 1;
+				}
+				mask[word] = bits;
+			}
+		}
+	}
+}
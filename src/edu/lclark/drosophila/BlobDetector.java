@@ -0,0 +1,37 @@
+package edu.lclark.drosophila;
+
+/**
+ * Finds the blobs of dark pixels in a frame which are the right size to be
+ * flies. There is more than one way to do this, and which one is fastest
+ * depends on the size of the frames and how many dark pixels they have, so
+ * the Analyzer can be given any implementation of this interface.
+ * <p>
+ * Implementations must find every 4-connected blob of dark pixels whose size
+ * the settings accept, and nothing else, so that every detector gives the
+ * same flies. They should tell which pixels are dark from the dark mask of
+ * the context, which {@link DetectionContext#maskRows} works out with the
+ * fastest mask kernel there is. They keep no state between calls; all of
+ * their scratch space lives in the DetectionContext they are given.
+ */
+public interface BlobDetector {
+
+	/**
+	 * Finds the flies in the given frame and adds them to the blob list of
+	 * the context, in no particular order.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, three bytes per pixel, row by
+	 *            row.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param settings
+	 *            the settings which decide which pixels are dark and which
+	 *            blobs are the right size.
+	 * @param context
+	 *            the scratch space to use, already reset for this frame.
+	 */
+	public void detect(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context);
+}
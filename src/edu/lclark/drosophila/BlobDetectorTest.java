@@ -0,0 +1,850 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+
+public class BlobDetectorTest {
+
+	/**
+	 * Makes a light frame with random dark blobs on it: round ones, lines
+	 * one pixel wide, and little squares.
+	 */
+	private BufferedImage makeFrame(Random random, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int v = 180 + random.nextInt(76);
+				image.setRGB(x, y, (v << 16) | (v << 8) | v);
+			}
+		}
+		int blobs = 5 + random.nextInt(30);
+		for (int b = 0; b < blobs; b++) {
+			int cx = random.nextInt(width);
+			int cy = random.nextInt(height);
+			int size = 1 + random.nextInt(12);
+			int shape = random.nextInt(4);
+			for (int y = Math.max(0, cy - size); y < Math.min(height, cy
+					+ size); y++) {
+				for (int x = Math.max(0, cx - size); x < Math.min(width, cx
+						+ size); x++) {
+					int dx = x - cx;
+					int dy = y - cy;
+					boolean dark;
+					if (shape == 0) {
+						dark = dx * dx + dy * dy <= size * size;
+					} else if (shape == 1) {
+						dark = dy == 0;
+					} else if (shape == 2) {
+						dark = dx == 0;
+					} else {
+						dark = dx >= 0 && dy >= 0;
+					}
+					if (dark && random.nextInt(10) > 0) {
+						int v = random.nextInt(100);
+						image.setRGB(x, y, (v << 16) | (v << 8) | v);
+					}
+				}
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Checks that the blobs found are the blobs expected, in the same order.
+	 */
+	private void assertSameBlobs(BlobList expected, BlobList found) {
+		assertEquals(expected.size(), found.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getArea(i), found.getArea(i));
+			assertEquals(expected.getSumX(i), found.getSumX(i));
+			assertEquals(expected.getSumY(i), found.getSumY(i));
+			assertEquals(expected.getFirstPixel(i), found.getFirstPixel(i));
+		}
+	}
+
+	/**
+	 * Checks that the detector finds the same flies as the flood fill on a
+	 * lot of random frames.
+	 */
+	private void assertSameFlies(BlobDetector detector, long seed) {
+		Random random = new Random(seed);
+		for (int frame = 0; frame < 200; frame++) {
+			int width = 20 + random.nextInt(150);
+			int height = 20 + random.nextInt(150);
+			BufferedImage image = makeFrame(random, width, height);
+			int minArea = random.nextInt(40);
+			DetectionSettings settings = new DetectionSettings(
+					new LuminanceTable(1.0, 120), minArea, minArea
+							+ random.nextInt(300));
+			BlobList expected = detect(image, new FloodFillDetector(),
+					settings);
+			BlobList found = detect(image, detector, settings);
+			assertSameBlobs(expected, found);
+		}
+	}
+
+	/**
+	 * Finds the flies in the image with the given detector.
+	 */
+	private BlobList detect(BufferedImage image, BlobDetector detector,
+			DetectionSettings settings) {
+		DetectionContext context = new DetectionContext();
+		context.detect(image, detector, settings);
+		return context.getBlobs();
+	}
+
+	/**
+	 * Makes a light frame with dark rectangles on it, each given as left,
+	 * top, width and height.
+	 */
+	private BufferedImage makeRectangles(int width, int height,
+			int... rectangles) {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_3BYTE_BGR);
+		paint(image, 0xE0E0E0, 0, 0, width, height);
+		paint(image, 0x202020, rectangles);
+		return image;
+	}
+
+	/**
+	 * Paints rectangles, each given as left, top, width and height, in the
+	 * given color.
+	 */
+	private void paint(BufferedImage image, int rgb, int... rectangles) {
+		for (int i = 0; i < rectangles.length; i += 4) {
+			for (int y = rectangles[i + 1]; y < rectangles[i + 1]
+					+ rectangles[i + 3]; y++) {
+				for (int x = rectangles[i]; x < rectangles[i]
+						+ rectangles[i + 2]; x++) {
+					image.setRGB(x, y, rgb);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSeedSamplingStep() {
+		assertEquals(1, SeedSamplingDetector.getStep(0));
+		assertEquals(1, SeedSamplingDetector.getStep(1));
+		assertEquals(2, SeedSamplingDetector.getStep(2));
+		assertEquals(2, SeedSamplingDetector.getStep(4));
+		assertEquals(3, SeedSamplingDetector.getStep(5));
+		assertEquals(4, SeedSamplingDetector.getStep(10));
+		assertEquals(4, SeedSamplingDetector.getStep(16));
+		assertEquals(5, SeedSamplingDetector.getStep(17));
+	}
+
+	@Test
+	public void testAdaptiveThresholdComparesWithTheSquareAround() {
+		Random random = new Random(14);
+		for (int frame = 0; frame < 50; frame++) {
+			int width = 1 + random.nextInt(150);
+			int height = 1 + random.nextInt(60);
+			BufferedImage image = makeFrame(random, width, height);
+			int radius = 1 + random.nextInt(20);
+			LuminanceTable table = new LuminanceTable(1.0,
+					150 + random.nextInt(100));
+			DetectionSettings settings = new DetectionSettings(table, 1, 100)
+					.withAdaptiveThreshold(new AdaptiveThreshold(radius));
+			DetectionContext context = new DetectionContext();
+			byte[] pixels = context.prepare(image, settings);
+			long[] mask = context.getDarkMask();
+			int stride = context.getMaskStride();
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					long sum = 0;
+					long area = 0;
+					for (int j = Math.max(y - radius, 0); j < Math.min(y
+							+ radius + 1, height); j++) {
+						for (int i = Math.max(x - radius, 0); i < Math.min(x
+								+ radius + 1, width); i++) {
+							sum += table.getLevel(pixels, (j * width + i) * 3);
+							area++;
+						}
+					}
+					int level = table.getLevel(pixels, (y * width + x) * 3);
+					boolean dark = level * 255 * area <= sum
+							* table.getContrastThreshold();
+					assertEquals(dark,
+							(mask[y * stride + (x >>> 6)] & (1L << x)) != 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testArenasFindTheFliesInsideThem() {
+		Random random = new Random(31);
+		RegionMaker maker = new RegionMaker(null);
+		BlobDetector[] detectors = { new FloodFillDetector(),
+				new LabelingDetector(), new ParallelLabelingDetector(3),
+				new PyramidDetector(), new SeedSamplingDetector() };
+		for (int frame = 0; frame < 100; frame++) {
+			int width = 20 + random.nextInt(150);
+			int height = 20 + random.nextInt(150);
+			BufferedImage image = makeFrame(random, width, height);
+			// overlapping arenas, some of them partly off the frame
+			List<RegionMaker.PointArena> arenas;
+			arenas = new ArrayList<RegionMaker.PointArena>();
+			int count = 1 + random.nextInt(5);
+			for (int i = 0; i < count; i++) {
+				int left = random.nextInt(width + 20) - 10;
+				int top = random.nextInt(height + 20) - 10;
+				arenas.add(maker.new PointArena(new Point(left, top),
+						new Point(left + random.nextInt(width), top
+								+ random.nextInt(height)), i + 1));
+			}
+			ArenaRegion region = new ArenaRegion(arenas);
+			// the same frame with everything outside the arenas light
+			BufferedImage inside = new BufferedImage(width, height,
+					BufferedImage.TYPE_3BYTE_BGR);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					inside.setRGB(x, y, region.getArena(x, y)
+							== BlobList.NO_ARENA ? 0xFFFFFF : image.getRGB(x,
+							y));
+				}
+			}
+			int minArea = random.nextInt(40);
+			DetectionSettings plain = new DetectionSettings(
+					new LuminanceTable(1.0, 120), minArea, minArea
+							+ random.nextInt(300));
+			DetectionSettings settings = new DetectionSettings(
+					plain.getLuminanceTable(), plain.getMinArea(),
+					plain.getMaxArea(), null, region);
+			BlobList expected = detect(inside, new FloodFillDetector(), plain);
+			BlobDetector detector = detectors[frame % detectors.length];
+			BlobList found = detect(image, detector, settings);
+			assertSameBlobs(expected, found);
+			for (int i = 0; i < expected.size(); i++) {
+				// a blob is in the arena its middle is in
+				assertEquals(region.getArena(expected.getX(i),
+						expected.getY(i)), found.getArena(i));
+			}
+		}
+	}
+
+	@Test
+	public void testBackgroundModelKeepsOnlyWhatChanged() {
+		// every sample has the wall and a gray patch, and a fly somewhere
+		// else each time
+		LuminanceTable table = new LuminanceTable(1.0, 120);
+		BackgroundModel.Sampler sampler = new BackgroundModel.Sampler(table,
+				3);
+		for (int i = 0; i < 3; i++) {
+			BufferedImage sample = makeRectangles(80, 40, 5, 5, 30, 3,
+					10 + 20 * i, 32, 3, 3);
+			paint(sample, 0x909090, 50, 15, 20, 20);
+			sampler.add(sample);
+		}
+		assertTrue(sampler.isFull());
+		BackgroundModel model = sampler.build(40);
+		assertTrue(model.fits(80, 40));
+		// a fly on the light floor, a fly on the patch, and a fly on the
+		// patch which is only 32 gray levels darker than it
+		BufferedImage image = makeRectangles(80, 40, 5, 5, 30, 3, 10, 20, 3,
+				3);
+		paint(image, 0x909090, 50, 15, 20, 20);
+		paint(image, 0x202020, 55, 20, 3, 3);
+		paint(image, 0x707070, 62, 20, 3, 3);
+		DetectionSettings settings = new DetectionSettings(table, 5, 100);
+		assertEquals(4, detect(image, new FloodFillDetector(), settings)
+				.size());
+
+		BlobDetector[] detectors = { new FloodFillDetector(),
+				new LabelingDetector(), new PyramidDetector(),
+				new SeedSamplingDetector() };
+		for (BlobDetector detector : detectors) {
+			BlobList found = detect(image, detector,
+					settings.withBackgroundModel(model));
+			assertEquals(2, found.size());
+			assertEquals(9, found.getArea(0));
+			assertEquals(11, found.getX(0), 0);
+			assertEquals(21, found.getY(0), 0);
+			assertEquals(9, found.getArea(1));
+			assertEquals(56, found.getX(1), 0);
+			assertEquals(21, found.getY(1), 0);
+		}
+	}
+
+	@Test
+	public void testCatalogFindsTheSameFlies() {
+		Random random = new Random(37);
+		RegionMaker maker = new RegionMaker(null);
+		List<RegionMaker.PointArena> arenas;
+		arenas = new ArrayList<RegionMaker.PointArena>();
+		arenas.add(maker.new PointArena(new Point(10, 10), new Point(90, 60),
+				1));
+		arenas.add(maker.new PointArena(new Point(70, 40), new Point(140, 95),
+				2));
+		DetectionSettings settings = new DetectionSettings(
+				new LuminanceTable(1.0, 120), 5, 60, null, new ArenaRegion(
+						arenas));
+		ComponentCatalog catalog = new ComponentCatalog(settings, 20);
+		// every frame is shown twice, so some of it is skipped
+		BufferedImage[] frames = new BufferedImage[20];
+		for (int frame = 0; frame < 20; frame += 2) {
+			frames[frame] = makeFrame(random, 150, 100);
+			frames[frame + 1] = frames[frame];
+		}
+		DetectionContext context = new DetectionContext();
+		context.setSkipUnchanged(true);
+		for (int frame = 0; frame < 20; frame++) {
+			context.detect(frames[frame], new FloodFillDetector(),
+					catalog.getSettings());
+			catalog.add(frame, context.getBlobs());
+		}
+		assertTrue(catalog.isComplete());
+		for (int sizes = 0; sizes < 5; sizes++) {
+			int minArea = random.nextInt(40);
+			DetectionSettings flySettings = settings.withAreas(minArea,
+					minArea + random.nextInt(300));
+			assertTrue(catalog.matches(flySettings));
+			context = new DetectionContext();
+			context.setSkipUnchanged(true);
+			BlobList flies = new BlobList();
+			for (int frame = 0; frame < 20; frame++) {
+				context.detect(frames[frame], new FloodFillDetector(),
+						flySettings);
+				BlobList expected = context.getBlobs();
+				catalog.filter(frame, flySettings, flies);
+				assertSameBlobs(expected, flies);
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(expected.getArena(i), flies.getArena(i));
+				}
+				assertEquals(expected.getSkippedFraction(),
+						flies.getSkippedFraction(), 0);
+			}
+			assertTrue(flies.getSkippedFraction() > 0);
+		}
+	}
+
+	@Test
+	public void testCatalogMatchesOnlyOtherFlySizes() {
+		DetectionSettings settings = new DetectionSettings(
+				new LuminanceTable(1.0, 120), 5, 60);
+		ComponentCatalog catalog = new ComponentCatalog(settings, 1);
+		assertTrue(catalog.matches(settings));
+		assertTrue(catalog.matches(settings.withAreas(20, 30)));
+		assertFalse(catalog.matches(settings.withSearchWindows(
+				new SearchWindows(new double[] { 10 }, new double[] { 10 },
+						5))));
+		assertFalse(catalog.matches(new DetectionSettings(
+				new LuminanceTable(1.0, 120), 5, 60)));
+	}
+
+	/**
+	 * Checks every bit of the dark mask of a context against the lookup
+	 * tables, one pixel at a time, in the box from left, top up to right,
+	 * bottom. Bits past the end of a row must be clear.
+	 */
+	private void assertMaskMatches(DetectionContext context,
+			BufferedImage image, LuminanceTable table, ArenaRegion region,
+			int left, int top, int right, int bottom) {
+		long[] mask = context.getDarkMask();
+		int stride = context.getMaskStride();
+		assertEquals((image.getWidth() + 63) >>> 6, stride);
+		for (int y = top; y < bottom; y++) {
+			for (int x = left; x < Math.max(right, stride * 64); x++) {
+				if (x >= right && x < image.getWidth()) {
+					continue;
+				}
+				boolean expected = false;
+				if (x < right) {
+					int rgb = image.getRGB(x, y);
+					expected = table.isDark(rgb & 0xFF, (rgb >> 8) & 0xFF,
+							(rgb >> 16) & 0xFF)
+							&& (region == null || region.getArena(x, y)
+									!= BlobList.NO_ARENA);
+				}
+				assertEquals("pixel " + x + ", " + y, expected,
+						(mask[y * stride + (x >>> 6)] & 1L << x) != 0);
+			}
+		}
+	}
+
+	@Test
+	public void testDarkMaskMatchesEveryPixel() {
+		Random random = new Random(47);
+		RegionMaker maker = new RegionMaker(null);
+		int[] widths = { 1, 5, 63, 64, 65, 127, 128, 129, 200 };
+		// one context for every frame, so wider frames come before narrower
+		DetectionContext context = new DetectionContext();
+		for (int frame = 0; frame < 54; frame++) {
+			int width = widths[frame % widths.length];
+			int height = 1 + random.nextInt(20);
+			BufferedImage image = new BufferedImage(width, height,
+					BufferedImage.TYPE_3BYTE_BGR);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					image.setRGB(x, y, random.nextInt(0x1000000));
+				}
+			}
+			LuminanceTable table = new LuminanceTable(
+					0.8 + random.nextInt(8) * 0.1, 60 + random.nextInt(150));
+			DetectionSettings settings = new DetectionSettings(table, 1, 1);
+			ArenaRegion region = null;
+			if (frame % 3 == 2) {
+				List<RegionMaker.PointArena> arenas;
+				arenas = new ArrayList<RegionMaker.PointArena>();
+				int left = random.nextInt(width);
+				int top = random.nextInt(height);
+				arenas.add(maker.new PointArena(new Point(left, top),
+						new Point(left + random.nextInt(width), top
+								+ random.nextInt(height)), 1));
+				region = new ArenaRegion(arenas);
+				settings = new DetectionSettings(table, 1, 1, null, region);
+			}
+			byte[] pixels = context.prepare(image, settings);
+			context.maskRows(pixels, 0, height, table);
+			assertMaskMatches(context, image, table, region, 0, 0, width,
+					height);
+
+			// a box worked out over a mask full of other bits, though none
+			// past the end of a row or outside the arenas
+			assertTrue(context.canMaskBoxes());
+			long[] mask = context.getDarkMask();
+			int stride = context.getMaskStride();
+			long[] outside = region != null ? region.getOutside(width,
+					height) : null;
+			long[] before = new long[height * stride];
+			for (int i = 0; i < before.length; i++) {
+				before[i] = random.nextLong();
+				if (i % stride == stride - 1 && width % 64 != 0) {
+					before[i] &= (1L << width) - 1;
+				}
+				if (outside != null) {
+					before[i] &= ~outside[i];
+				}
+				mask[i] = before[i];
+			}
+			int left = random.nextInt(width);
+			int right = left + 1 + random.nextInt(width - left);
+			int top = random.nextInt(height);
+			int bottom = top + 1 + random.nextInt(height - top);
+			context.maskBox(pixels, left, top, right, bottom, table);
+			assertMaskMatches(context, image, table, region, left, top,
+					right, bottom);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (x < left || x >= right || y < top || y >= bottom) {
+						int word = y * stride + (x >>> 6);
+						assertEquals((before[word] & 1L << x) != 0,
+								(mask[word] & 1L << x) != 0);
+					}
+				}
+			}
+
+			// the same frame as gray scale values
+			LumaFrame luma = LumaFrame.fromImage(image, table);
+			pixels = context.prepare(luma, settings);
+			context.maskRows(pixels, 0, height, table);
+			assertMaskMatches(context, image, table, region, 0, 0, width,
+					height);
+		}
+	}
+
+	@Test
+	public void testExclusionMaskLeavesOutLargeBlobs() {
+		// a wall too large to be a fly, a fly three pixels below it, and a
+		// fly out in the open
+		BufferedImage image = makeRectangles(80, 40, 5, 5, 30, 3, 20, 11, 3,
+				3, 60, 30, 4, 2);
+		DetectionSettings settings = new DetectionSettings(
+				new LuminanceTable(1.0, 120), 5, 50);
+		ExclusionMask mask = ExclusionMask.find(image, settings,
+				new DetectionContext(), 2);
+		assertTrue(mask.fits(80, 40));
+		// the wall, grown by two pixels all round, and nothing else
+		long[] plane = mask.getPlane();
+		int excluded = 0;
+		for (int y = 0; y < 40; y++) {
+			for (int x = 0; x < 80; x++) {
+				int dx = Math.max(0, Math.max(5 - x, x - 34));
+				int dy = Math.max(0, Math.max(5 - y, y - 7));
+				boolean expected = dx + dy <= 2;
+				assertEquals(expected,
+						(plane[y * 2 + (x >>> 6)] & 1L << x) != 0);
+				if (expected) {
+					excluded++;
+				}
+			}
+		}
+		assertEquals(excluded, mask.getExcludedPixels());
+
+		BlobDetector[] detectors = { new FloodFillDetector(),
+				new LabelingDetector(), new PyramidDetector(),
+				new SeedSamplingDetector() };
+		for (BlobDetector detector : detectors) {
+			BlobList found = detect(image, detector,
+					settings.withExclusionMask(mask));
+			assertEquals(2, found.size());
+			assertEquals(9, found.getArea(0));
+			assertEquals(21, found.getX(0), 0);
+			assertEquals(12, found.getY(0), 0);
+			assertEquals(8, found.getArea(1));
+		}
+	}
+
+	@Test
+	public void testFillStopsAddingUpLargeBlobs() {
+		BufferedImage image = makeRectangles(40, 30, 2, 2, 10, 20, 30, 5, 3,
+				3);
+		DetectionSettings settings = new DetectionSettings(
+				new LuminanceTable(1.0, 120), 1, 50);
+		DetectionContext context = new DetectionContext();
+		byte[] pixels = context.prepare(image, settings);
+		context.maskRows(pixels, 0, 30, settings.getLuminanceTable());
+		context.clearVisited();
+		assertTrue(context.visitDark(5, 10));
+		assertEquals(51, FloodFillDetector.fill(5, 10, pixels, 40, 30,
+				settings, context, true));
+		assertEquals(0, context.getBlobs().size());
+		// the whole blob is marked as searched, and nothing else is
+		long[] visited = context.getVisited();
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 40; x++) {
+				boolean inBlob = x >= 2 && x < 12 && y >= 2 && y < 22;
+				assertEquals(inBlob, (visited[y + (x >>> 6)] & 1L << x) != 0);
+			}
+		}
+		// the small blob is still filled as usual
+		assertTrue(context.visitDark(31, 6));
+		assertEquals(9, FloodFillDetector.fill(31, 6, pixels, 40, 30,
+				settings, context, true));
+		assertEquals(1, context.getBlobs().size());
+	}
+
+	@Test
+	public void testLabelingFindsTheSameFlies() {
+		assertSameFlies(new LabelingDetector(), 5);
+	}
+
+	@Test
+	public void testLumaFrameFindsTheSameFlies() {
+		Random random = new Random(23);
+		BlobDetector[] detectors = { new FloodFillDetector(),
+				new LabelingDetector(), new ParallelLabelingDetector(3),
+				new PyramidDetector(), new SeedSamplingDetector() };
+		for (int frame = 0; frame < 100; frame++) {
+			int width = 20 + random.nextInt(150);
+			int height = 20 + random.nextInt(150);
+			BufferedImage image = makeFrame(random, width, height);
+			LuminanceTable table = new LuminanceTable(
+					0.8 + random.nextInt(8) * 0.1, 60 + random.nextInt(150));
+			int minArea = random.nextInt(40);
+			DetectionSettings settings = new DetectionSettings(table, minArea,
+					minArea + random.nextInt(300));
+			if (random.nextBoolean()) {
+				settings = settings.withAdaptiveThreshold(new AdaptiveThreshold(
+						1 + random.nextInt(20)));
+			}
+			// the frame is given with padded rows, half the time as codes in
+			// a direct buffer with a level map, like a decoded plane
+			LumaFrame levels = LumaFrame.fromImage(image, table);
+			int stride = width + random.nextInt(5);
+			ByteBuffer padded = ByteBuffer.allocateDirect(stride * height);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					padded.put(y * stride + x, (byte) levels.getLevel(x, y));
+				}
+			}
+			int[] levelMap = null;
+			if (random.nextBoolean()) {
+				levelMap = new int[256];
+				for (int code = 0; code < 256; code++) {
+					levelMap[code] = code;
+				}
+			}
+			LumaFrame luma = new LumaFrame(padded, width, height, stride,
+					levelMap, table.getImageContrast());
+			BlobDetector detector = detectors[frame % detectors.length];
+			BlobList expected = detect(image, detector, settings);
+			DetectionContext context = new DetectionContext();
+			context.detect(luma, detector, settings);
+			BlobList found = context.getBlobs();
+			assertSameBlobs(expected, found);
+		}
+	}
+
+	@Test
+	public void testParallelLabelingFindsTheSameFlies() {
+		assertSameFlies(new ParallelLabelingDetector(2), 15);
+		assertSameFlies(new ParallelLabelingDetector(3), 16);
+		// more strips than rows, so some strips are one row tall
+		assertSameFlies(new ParallelLabelingDetector(1000), 17);
+	}
+
+	@Test
+	public void testParallelLabelingJoinsBlobsAcrossSeams() {
+		Random random = new Random(19);
+		for (int frame = 0; frame < 100; frame++) {
+			int width = 20 + random.nextInt(100);
+			int height = 10 + random.nextInt(60);
+			int strips = 2 + random.nextInt(height);
+			BufferedImage image = makeFrame(random, width, height);
+			// lines one pixel tall on the last row of a strip, the first row
+			// of the next one, or both, some of them joined by a dark pixel
+			// on the other row
+			for (int i = 1; i < strips && i < height; i++) {
+				int seam = i * height / strips;
+				if (seam == 0 || random.nextBoolean()) {
+					continue;
+				}
+				int left = random.nextInt(width);
+				int right = left + random.nextInt(width - left) + 1;
+				int kind = random.nextInt(3);
+				for (int x = left; x < right; x++) {
+					if (kind != 1) {
+						image.setRGB(x, seam - 1, 0);
+					}
+					if (kind != 0) {
+						image.setRGB(x, seam, 0);
+					}
+				}
+				if (kind != 2) {
+					image.setRGB(random.nextInt(width), kind == 0 ? seam
+							: seam - 1, 0);
+				}
+			}
+			DetectionSettings settings = new DetectionSettings(
+					new LuminanceTable(1.0, 120), 0, 10000);
+			BlobList expected = detect(image, new FloodFillDetector(),
+					settings);
+			BlobList found = detect(image, new ParallelLabelingDetector(
+					strips), settings);
+			assertSameBlobs(expected, found);
+		}
+	}
+
+	@Test
+	public void testPipelineStartDropsFramesOfARunGivenUpOn()
+			throws Exception {
+		BufferedImage image = makeRectangles(80, 40, 20, 20, 3, 8);
+		DetectionSettings settings = new DetectionSettings(
+				new LuminanceTable(1.0, 120), 5, 50);
+		final List<Integer> tracked = new ArrayList<Integer>();
+		DetectionPipeline.Tracker tracker = new DetectionPipeline.Tracker() {
+			public void track(int frameNumber, BlobList blobs) {
+				tracked.add(frameNumber);
+			}
+		};
+		DetectionPipeline pipeline = new DetectionPipeline(2);
+		try {
+			// a run which is never finished
+			pipeline.start(new FloodFillDetector(), settings, tracker);
+			pipeline.submit(0, image);
+			pipeline.submit(1, image);
+			pipeline.start(new FloodFillDetector(), settings, tracker);
+			assertEquals(0, pipeline.getPending());
+			pipeline.submit(7, image);
+			pipeline.finish();
+			assertEquals(1, tracked.size());
+			assertEquals(7, (int) tracked.get(0));
+			pipeline.submit(8, image);
+			pipeline.abort();
+			pipeline.finish();
+			assertEquals(1, tracked.size());
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testPyramidScale() {
+		assertEquals(1, PyramidDetector.getScale(0));
+		assertEquals(1, PyramidDetector.getScale(4));
+		assertEquals(2, PyramidDetector.getScale(5));
+		assertEquals(2, PyramidDetector.getScale(16));
+		assertEquals(4, PyramidDetector.getScale(17));
+		assertEquals(4, PyramidDetector.getScale(1000));
+	}
+
+	@Test
+	public void testPyramidFindsTheSameFlies() {
+		assertSameFlies(new PyramidDetector(), 13);
+	}
+
+	@Test
+	public void testPyramidFindsTheSameFliesFrameAfterFrame() {
+		// one context for every frame, so the parts of the dark mask which
+		// aren't worked out must not keep the bits of the frame before
+		Random random = new Random(21);
+		DetectionContext context = new DetectionContext();
+		int width = 150;
+		int height = 100;
+		for (int frame = 0; frame < 100; frame++) {
+			BufferedImage image = makeFrame(random, width, height);
+			LuminanceTable table = new LuminanceTable(1.0, 120);
+			int minArea = 5 + random.nextInt(60);
+			DetectionSettings settings = new DetectionSettings(table, minArea,
+					minArea + random.nextInt(300));
+			if (random.nextBoolean()) {
+				BackgroundModel.Sampler sampler = new BackgroundModel.Sampler(
+						table, 3);
+				sampler.add(makeFrame(random, width, height));
+				sampler.add(image);
+				sampler.add(makeFrame(random, width, height));
+				settings = settings.withBackgroundModel(sampler
+						.build(random.nextInt(60)));
+			}
+			BlobList expected = detect(image, new FloodFillDetector(),
+					settings);
+			context.detect(image, new PyramidDetector(), settings);
+			BlobList found = context.getBlobs();
+			assertSameBlobs(expected, found);
+		}
+	}
+
+	@Test
+	public void testSkipUnchangedFindsTheSameFlies() {
+		Random random = new Random(27);
+		BlobDetector[] detectors = { new FloodFillDetector(),
+				new LabelingDetector(), new SeedSamplingDetector() };
+		for (int run = 0; run < 6; run++) {
+			BlobDetector detector = detectors[run % detectors.length];
+			boolean luma = run >= detectors.length;
+			int width = 70 + random.nextInt(100);
+			int height = 20 + random.nextInt(100);
+			BufferedImage image = makeFrame(random, width, height);
+			LuminanceTable table = new LuminanceTable(1.0, 120);
+			DetectionContext context = new DetectionContext();
+			context.setSkipUnchanged(true);
+			double skipped = 0;
+			for (int frame = 0; frame < 40; frame++) {
+				if (frame == 20) {
+					// every row has to be looked up again with new tables
+					table = new LuminanceTable(1.1, 100);
+				}
+				// a few little squares change, some of them only slightly
+				int changes = random.nextInt(4);
+				for (int c = 0; c < changes; c++) {
+					int left = random.nextInt(width);
+					int top = random.nextInt(height);
+					int v = random.nextBoolean() ? random.nextInt(100)
+							: 180 + random.nextInt(76);
+					for (int y = top; y < Math.min(top + 4, height); y++) {
+						for (int x = left; x < Math.min(left + 4, width); x++) {
+							int rgb = random.nextBoolean() ? v : (image
+									.getRGB(x, y) & 0xFF) ^ 1;
+							image.setRGB(x, y, (rgb << 16) | (rgb << 8) | rgb);
+						}
+					}
+				}
+				int minArea = random.nextInt(20);
+				DetectionSettings settings = new DetectionSettings(table,
+						minArea, minArea + random.nextInt(300));
+				BlobList expected = detect(image, detector, settings);
+				if (luma) {
+					context.detect(LumaFrame.fromImage(image, table),
+							detector, settings);
+				} else {
+					context.detect(image, detector, settings);
+				}
+				BlobList found = context.getBlobs();
+				assertSameBlobs(expected, found);
+				skipped += found.getSkippedFraction();
+			}
+			// a good part of every frame after the first was skipped
+			assertTrue(skipped > 10);
+		}
+	}
+
+	@Test
+	public void testThresholdTreeFindsTheBlobsOfEveryThreshold() {
+		Random random = new Random(21);
+		for (int frame = 0; frame < 20; frame++) {
+			BufferedImage image = makeFrame(random, 20 + random.nextInt(150),
+					20 + random.nextInt(150));
+			ThresholdTree tree = new ThresholdTree(image,
+					new DetectionSettings(new LuminanceTable(1.0, 0), 1, 1),
+					new DetectionContext());
+			BlobList found = new BlobList();
+			for (int threshold = 0; threshold < 256; threshold += 15) {
+				BlobList expected = detect(image, new FloodFillDetector(),
+						new DetectionSettings(new LuminanceTable(1.0, threshold),
+								1, Integer.MAX_VALUE));
+				tree.getComponents(threshold, found);
+				assertSameBlobs(expected, found);
+			}
+		}
+	}
+
+	@Test
+	public void testSeedSamplingFindsTheSameFlies() {
+		assertSameFlies(new SeedSamplingDetector(), 9);
+	}
+
+	@Test
+	public void testWindowsFindFliesPartlyOutsideThemWhole() {
+		// a tall fly with only its top inside the window, and a fly which is
+		// nowhere near it
+		BufferedImage image = makeRectangles(80, 40, 20, 20, 3, 8, 60, 10, 4,
+				4);
+		DetectionSettings settings = new DetectionSettings(
+				new LuminanceTable(1.0, 120), 5, 50);
+		SearchWindows windows = new SearchWindows(new double[] { 21 },
+				new double[] { 19 }, 2);
+		BlobDetector[] detectors = { new FloodFillDetector(),
+				new PyramidDetector() };
+		for (BlobDetector detector : detectors) {
+			BlobList found = detect(image, detector,
+					settings.withSearchWindows(windows));
+			assertEquals(1, found.size());
+			assertEquals(24, found.getArea(0));
+			assertEquals(21, found.getX(0), 0);
+			assertEquals(23.5, found.getY(0), 0);
+		}
+	}
+
+	@Test
+	public void testWindowsFindingFewerFliesFallBackToTheWholeFrame()
+			throws Exception {
+		BufferedImage[] frames = {
+				makeRectangles(80, 40, 20, 20, 3, 8, 60, 10, 4, 4),
+				makeRectangles(80, 40, 20, 20, 3, 8, 60, 10, 4, 4),
+				makeRectangles(80, 40, 20, 20, 3, 8, 60, 10, 4, 4, 70, 30, 3,
+						3) };
+		final int[] tracked = new int[frames.length];
+		DetectionPipeline pipeline = new DetectionPipeline(2);
+		pipeline.setWindowInterval(10);
+		try {
+			pipeline.start(new FloodFillDetector(), new DetectionSettings(
+					new LuminanceTable(1.0, 120), 5, 50),
+					new DetectionPipeline.Tracker() {
+						public void track(int frameNumber, BlobList blobs) {
+							tracked[frameNumber] = blobs.size();
+						}
+					}, new DetectionPipeline.Predictor() {
+						public SearchWindows predict(int frameNumber) {
+							// the second frame misses a fly, the third
+							// has a new one away from the windows
+							if (frameNumber == 1) {
+								return new SearchWindows(new double[] { 21 },
+										new double[] { 19 }, 2);
+							}
+							return new SearchWindows(new double[] { 21, 61 },
+									new double[] { 19, 11 }, 2);
+						}
+					});
+			for (int frame = 0; frame < frames.length; frame++) {
+				pipeline.submit(frame, frames[frame]);
+			}
+			pipeline.finish();
+		} finally {
+			pipeline.shutdown();
+		}
+		assertEquals(2, tracked[0]);
+		assertEquals(2, tracked[1]);
+		assertEquals(2, tracked[2]);
+	}
+}
@@ -0,0 +1,289 @@
+package edu.lclark.drosophila;
+
+import java.util.Arrays;
+
+/**
+ * A list of the dark blobs found in a frame. For every blob it stores the
+ * number of pixels in it, the sums of their x and y coordinates, and the
+ * first pixel of the blob in column by column order, which is used to keep
+ * blobs in the order the original flydentify found them. When the search is
+ * kept to the arenas, it also stores the arena each blob is in, and it keeps
+ * how much of the frame was skipped because it hadn't changed.
+ * <p>
+ * The list is kept in plain arrays which only grow, so the same list can be
+ * cleared and filled again every frame without making any garbage.
+ */
+public class BlobList {
+
+	/**
+	 * The arena of a blob which isn't in any arena, or whose arena wasn't
+	 * worked out.
+	 */
+	public static final int NO_ARENA = Integer.MIN_VALUE;
+
+	/**
+	 * The number of pixels in each blob.
+	 */
+	private int[] area;
+
+	/**
+	 * The arena each blob is in.
+	 */
+	private int[] arena;
+
+	/**
+	 * The index (x * image height + y) of the left-most, then top-most pixel
+	 * of each blob.
+	 */
+	private int[] firstPixel;
+
+	/**
+	 * The number of blobs in the list.
+	 */
+	private int size;
+
+	/**
+	 * How much of the frame was taken from the frame searched before it
+	 * rather than looked at again.
+	 */
+	private double skippedFraction;
+
+	/**
+	 * The sum of the x coordinates of every pixel in each blob.
+	 */
+	private long[] sumX;
+
+	/**
+	 * The sum of the y coordinates of every pixel in each blob.
+	 */
+	private long[] sumY;
+
+	/**
+	 * Makes an empty list.
+	 */
+	public BlobList() {
+		area = new int[16];
+		arena = new int[16];
+		firstPixel = new int[16];
+		sumX = new long[16];
+		sumY = new long[16];
+	}
+
+	/**
+	 * Adds a blob which isn't in any arena to the end of this list.
+	 *
+	 * @param area
+	 *            the number of pixels in the blob.
+	 * @param sumX
+	 *            the sum of the x coordinates of the pixels in the blob.
+	 * @param sumY
+	 *            the sum of the y coordinates of the pixels in the blob.
+	 * @param firstPixel
+	 *            the index (x * image height + y) of the left-most, then
+	 *            top-most pixel of the blob.
+	 */
+	public void add(int area, long sumX, long sumY, int firstPixel) {
+		if (size == this.area.length) {
+			int capacity = size * 2;
+			this.area = Arrays.copyOf(this.area, capacity);
+			this.arena = Arrays.copyOf(this.arena, capacity);
+			this.firstPixel = Arrays.copyOf(this.firstPixel, capacity);
+			this.sumX = Arrays.copyOf(this.sumX, capacity);
+			this.sumY = Arrays.copyOf(this.sumY, capacity);
+		}
+		this.area[size] = area;
+		this.arena[size] = NO_ARENA;
+		this.firstPixel[size] = firstPixel;
+		this.sumX[size] = sumX;
+		this.sumY[size] = sumY;
+		size++;
+	}
+
+	/**
+	 * Adds every blob of another list to the end of this list.
+	 *
+	 * @param other
+	 *            the list whose blobs are added.
+	 */
+	public void addAll(BlobList other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.area[i], other.sumX[i], other.sumY[i], other.firstPixel[i]);
+			arena[size - 1] = other.arena[i];
+		}
+	}
+
+	/**
+	 * Removes every blob from this list, keeping the arrays for reuse.
+	 */
+	public void clear() {
+		size = 0;
+		skippedFraction = 0;
+	}
+
+	/**
+	 * Returns the number of pixels in the given blob.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the number of pixels in the blob.
+	 */
+	public int getArea(int blob) {
+		return area[blob];
+	}
+
+	/**
+	 * Returns the arena the given blob is in.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the number of the arena, or {@link #NO_ARENA}.
+	 */
+	public int getArena(int blob) {
+		return arena[blob];
+	}
+
+	/**
+	 * Returns the left-most, then top-most pixel of the given blob.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the index (x * image height + y) of the pixel.
+	 */
+	public int getFirstPixel(int blob) {
+		return firstPixel[blob];
+	}
+
+	/**
+	 * Returns how much of the frame was taken from the frame searched before
+	 * it rather than looked at again.
+	 *
+	 * @return the fraction of the frame, from 0 to 1.
+	 */
+	public double getSkippedFraction() {
+		return skippedFraction;
+	}
+
+	/**
+	 * Returns the sum of the x coordinates of the pixels in the given blob.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the sum of the x coordinates.
+	 */
+	public long getSumX(int blob) {
+		return sumX[blob];
+	}
+
+	/**
+	 * Returns the sum of the y coordinates of the pixels in the given blob.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the sum of the y coordinates.
+	 */
+	public long getSumY(int blob) {
+		return sumY[blob];
+	}
+
+	/**
+	 * Returns the x coordinate of the center of mass of the given blob.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the mean x coordinate of the pixels in the blob.
+	 */
+	public double getX(int blob) {
+		return (double) sumX[blob] / area[blob];
+	}
+
+	/**
+	 * Returns the y coordinate of the center of mass of the given blob.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @return the mean y coordinate of the pixels in the blob.
+	 */
+	public double getY(int blob) {
+		return (double) sumY[blob] / area[blob];
+	}
+
+	/**
+	 * Adds the pixels of one blob to another, for when two blobs turn out to
+	 * be parts of the same blob. The blob merged from is left as it was.
+	 *
+	 * @param into
+	 *            the index of the blob which gets the pixels.
+	 * @param from
+	 *            the index of the blob whose pixels are added.
+	 */
+	public void merge(int into, int from) {
+		area[into] += area[from];
+		sumX[into] += sumX[from];
+		sumY[into] += sumY[from];
+		if (firstPixel[from] < firstPixel[into]) {
+			firstPixel[into] = firstPixel[from];
+		}
+	}
+
+	/**
+	 * Sets the arena the given blob is in.
+	 *
+	 * @param blob
+	 *            the index of the blob in this list.
+	 * @param arena
+	 *            the number of the arena, or {@link #NO_ARENA}.
+	 */
+	public void setArena(int blob, int arena) {
+		this.arena[blob] = arena;
+	}
+
+	/**
+	 * Sets how much of the frame was taken from the frame searched before it
+	 * rather than looked at again.
+	 *
+	 * @param fraction
+	 *            the fraction of the frame, from 0 to 1.
+	 */
+	public void setSkippedFraction(double fraction) {
+		skippedFraction = fraction;
+	}
+
+	/**
+	 * Returns the number of blobs in this list.
+	 *
+	 * @return the number of blobs.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the blobs in this list by their first pixel, which is the order a
+	 * column by column scan of the image would find them in. There are only a
+	 * few dozen blobs in a frame, and they are usually close to sorted
+	 * already, so this is an insertion sort.
+	 */
+	public void sortByFirstPixel() {
+		for (int i = 1; i < size; i++) {
+			int a = area[i];
+			int r = arena[i];
+			int f = firstPixel[i];
+			long x = sumX[i];
+			long y = sumY[i];
+			int j = i - 1;
+			while (j >= 0 && firstPixel[j] > f) {
+				area[j + 1] = area[j];
+				arena[j + 1] = arena[j];
+				firstPixel[j + 1] = firstPixel[j];
+				sumX[j + 1] = sumX[j];
+				sumY[j + 1] = sumY[j];
+				j--;
+			}
+			area[j + 1] = a;
+			arena[j + 1] = r;
+			firstPixel[j + 1] = f;
+			sumX[j + 1] = x;
+			sumY[j + 1] = y;
+		}
+	}
+}
@@ -26,6 +26,22 @@ import java.awt.event.TextListener;
 
 public class ButtonToolbar extends JMenuBar {
 
+	/**
+	 * The action listener which turns the adaptive threshold on or off when
+	 * its checkbox is clicked.
+	 */
+	private class AdaptiveThresholdAction implements ActionListener {
+
+		/**
+		 * Tells the AnalyzerPanel whether to compare pixels with their
+		 * surroundings.
+		 */
+		public void actionPerformed(ActionEvent e) {
+			analyzerPanel.setAdaptiveThreshold(adaptiveThreshold.isSelected());
+			analyzerPanel.repaint();
+		}
+	}
+
 	/**
 	 * begins analyzing a movie after setting the various thresholds
 	 */
@@ -628,6 +644,12 @@ public class ButtonToolbar extends JMenuBar {
 	 */
 	private static final int MIN_SLIDER_THRESHOLD = 0;
 
+	/**
+	 * A checkbox for comparing pixels with their surroundings instead of with
+	 * the contrast threshold alone
+	 */
+	private JCheckBoxMenuItem adaptiveThreshold;
+
 	/**
 	 * Button for analyzing the movie already opened
 	 */
@@ -931,6 +953,12 @@ public class ButtonToolbar extends JMenuBar {
 
 		editMenu.add(contrastThresholdText);
 
+		adaptiveThreshold = new JCheckBoxMenuItem("Adaptive Threshold");
+		adaptiveThreshold
+				.setToolTipText("Compares each pixel with the pixels around it, for unevenly lit rigs");
+		adaptiveThreshold.addActionListener(new AdaptiveThresholdAction());
+		editMenu.add(adaptiveThreshold);
+
 		editMenu.addSeparator();
 
 		editMenu.add(new JLabel("Image Contrast"));
@@ -0,0 +1,139 @@
+package edu.lclark.drosophila;
+
+/**
+ * Every blob of dark pixels in every frame of a run, whatever its size, so
+ * that the flies can be picked out again for other fly sizes without
+ * searching the frames again. Which blobs are flies only depends on their
+ * number of pixels, so filtering the catalog by size gives the same flies,
+ * in the same order, as searching the frames with the new sizes would.
+ * <p>
+ * A catalog is made with the settings the frames are searched with, and can
+ * be used for any settings which only differ from them in the fly sizes. The
+ * lookup tables, exclusion mask, arenas and adaptive threshold of the
+ * settings are compared by identity, so settings made with
+ * {@link DetectionSettings#withAreas} from the same settings match.
+ */
+public class ComponentCatalog {
+
+	/**
+	 * The blobs of every frame, or null for frames which haven't been added.
+	 */
+	private final BlobList[] components;
+
+	/**
+	 * The number of frames added so far.
+	 */
+	private int frames;
+
+	/**
+	 * The settings the frames are searched with, for any fly size.
+	 */
+	private final DetectionSettings settings;
+
+	/**
+	 * Makes an empty catalog for the given number of frames.
+	 *
+	 * @param settings
+	 *            the settings the frames are searched with. Their fly sizes
+	 *            don't matter.
+	 * @param frames
+	 *            the number of frames.
+	 */
+	public ComponentCatalog(DetectionSettings settings, int frames) {
+		this.settings = settings.withAreas(1, Integer.MAX_VALUE);
+		components = new BlobList[frames];
+	}
+
+	/**
+	 * Adds the blobs of a frame, replacing any added before.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param blobs
+	 *            every blob found in the frame, searched with
+	 *            {@link #getSettings}. They are copied.
+	 */
+	public void add(int frameNumber, BlobList blobs) {
+		if (components[frameNumber] == null) {
+			components[frameNumber] = new BlobList();
+			frames++;
+		}
+		BlobList copy = components[frameNumber];
+		copy.clear();
+		copy.addAll(blobs);
+		copy.setSkippedFraction(blobs.getSkippedFraction());
+	}
+
+	/**
+	 * Puts the blobs of a frame which are the right size to be flies with
+	 * the given settings into a list.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param flySettings
+	 *            the settings which decide which blobs are the right size.
+	 * @param flies
+	 *            the list the flies are put into, which is cleared first.
+	 */
+	public void filter(int frameNumber, DetectionSettings flySettings,
+			BlobList flies) {
+		BlobList blobs = components[frameNumber];
+		flies.clear();
+		for (int i = 0; i < blobs.size(); i++) {
+			if (flySettings.isFlySize(blobs.getArea(i))) {
+				flies.add(blobs.getArea(i), blobs.getSumX(i), blobs.getSumY(i),
+						blobs.getFirstPixel(i));
+				flies.setArena(flies.size() - 1, blobs.getArena(i));
+			}
+		}
+		flies.setSkippedFraction(blobs.getSkippedFraction());
+	}
+
+	/**
+	 * Returns the settings the frames have to be searched with for the
+	 * catalog: the settings it was made with, but with every blob counting as
+	 * the right size.
+	 *
+	 * @return the settings to search with.
+	 */
+	public DetectionSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Tells if the blobs of every frame have been added.
+	 *
+	 * @return true if the catalog is complete.
+	 */
+	public boolean isComplete() {
+		return frames == components.length;
+	}
+
+	/**
+	 * Checks if the catalog can be used for the given settings, which is when
+	 * they only differ in the fly sizes from the settings it was made with.
+	 *
+	 * @param other
+	 *            the settings to check.
+	 * @return true if filtering the catalog finds the same flies as
+	 *         searching the frames with the settings would.
+	 */
+	public boolean matches(DetectionSettings other) {
+		return other.getLuminanceTable() == settings.getLuminanceTable()
+				&& other.getExclusionMask() == settings.getExclusionMask()
+				&& other.getArenaRegion() == settings.getArenaRegion()
+				&& other.getAdaptiveThreshold() == settings
+						.getAdaptiveThreshold()
+				&& other.getBackgroundModel() == settings.getBackgroundModel()
+				&& other.getSearchWindows() == null;
+	}
+
+	/**
+	 * Returns the number of frames the catalog is made for.
+	 *
+	 * @return the number of frames.
+	 */
+	public int size() {
+		return components.length;
+	}
+}
@@ -0,0 +1,1232 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The scratch space the blob detectors need to find the blobs in a frame:
+ * the dark mask, which pixels have been searched, the flood fill stack, the
+ * runs and labels of the labeling detectors, and the list of blobs that were
+ * found.
+ * <p>
+ * All of it is sized for one image resolution and reused between frames, so
+ * once the first frame of a movie has been analyzed the following frames do
+ * not need to allocate anything. Buffers are only made the first time a
+ * detector asks for them. A context is not thread safe; every thread finding
+ * flies needs its own.
+ * <p>
+ * A context can also skip the parts of a frame which haven't changed since
+ * the frame it searched before. It keeps a copy of the BGR bytes and of the
+ * dark mask it worked out, and every 64 pixels of a row which are the same
+ * bytes as last time get their mask bits from the copy instead of the lookup
+ * tables. Decoders copy the blocks of a movie which haven't changed from the
+ * frame before, so still stretches of footage cost little more than reading
+ * through them. The blobs are found in the whole mask as usual, so flies in
+ * the parts which were skipped are found where they were before.
+ * <p>
+ * A frame can be given as a decoded image or as a {@link LumaFrame}. The
+ * bytes {@link #prepare} hands back for a LumaFrame are empty, since its
+ * plane may not be an array at all, and the detectors pass them back to the
+ * context as usual, which reads the frame's plane instead wherever it would
+ * have looked the BGR bytes up in the lookup tables. A pixel of the plane is
+ * dark enough when its code is at most the frame's dark limit, so the level
+ * map of the frame is only looked at once per frame.
+ */
+public class DetectionContext {
+
+	/**
+	 * The bytes {@link #prepare} hands back for a LumaFrame.
+	 */
+	private static final byte[] NO_PIXELS = new byte[0];
+
+	/**
+	 * The adaptive threshold of the current frame's settings, or null if the
+	 * dark mask is worked out with the mask kernel.
+	 */
+	private AdaptiveThreshold adaptiveThreshold;
+
+	/**
+	 * The arenas of the current frame's settings, or null if the whole frame
+	 * is searched.
+	 */
+	private ArenaRegion arenaRegion;
+
+	/**
+	 * The background model of the current frame's settings, or null if
+	 * every dark pixel is searched.
+	 */
+	private BackgroundModel backgroundModel;
+
+	/**
+	 * The darkest value of every byte of a row over the rows of a band of
+	 * squares, for working out the small copy of the dark mask.
+	 */
+	private int[] bandMinimums;
+
+	/**
+	 * The pixels of the current frame which aren't searched, because the
+	 * exclusion mask leaves them out or they are outside every arena, or null
+	 * if every pixel is searched.
+	 */
+	private long[] blocked;
+
+	/**
+	 * Holds the pixels which aren't searched when there is both an exclusion
+	 * mask and a region of arenas.
+	 */
+	private long[] blockedBuffer;
+
+	/**
+	 * The blobs found in the current frame.
+	 */
+	private BlobList blobs;
+
+	/**
+	 * A smaller copy of the dark mask, for detectors which search one first.
+	 */
+	private long[] coarseMask;
+
+	/**
+	 * The searched pixels of the smaller copy of the dark mask.
+	 */
+	private long[] coarseVisited;
+
+	/**
+	 * Every blob of dark pixels in the current frame, whatever its size, for
+	 * detectors which find all of them before filtering by size.
+	 */
+	private BlobList components;
+
+	/**
+	 * Holds the BGR bytes of a frame which had to be converted from another
+	 * image type.
+	 */
+	private byte[] convertedPixels;
+
+	/**
+	 * The runs of dark pixels in the row being labeled, three ints per run:
+	 * the first x of the run, the x just past its end, and its label.
+	 */
+	private int[] currentRuns;
+
+	/**
+	 * One bit for every pixel of the frame, set if the pixel is dark enough,
+	 * laid out as described in {@link MaskKernel}.
+	 */
+	private long[] darkMask;
+
+	/**
+	 * The height of the frames this context is sized for.
+	 */
+	private int height;
+
+	/**
+	 * The union-find parent of every label given out by the labeling
+	 * detector.
+	 */
+	private int[] labelParents;
+
+	/**
+	 * The summed area table of the gray scale values of the current frame,
+	 * for the adaptive threshold.
+	 */
+	private int[] levelSums;
+
+	/**
+	 * The current frame if it was given as gray scale values, or null if it
+	 * was given as an image.
+	 */
+	private LumaFrame lumaFrame;
+
+	/**
+	 * The largest code of the current LumaFrame which is dark enough.
+	 */
+	private int lumaLimit;
+
+	/**
+	 * The kernel which works out the dark mask.
+	 */
+	private final MaskKernel maskKernel;
+
+	/**
+	 * The number of longs in each row of the dark mask.
+	 */
+	private int maskStride;
+
+	/**
+	 * The runs of dark pixels in the row above the one being labeled, laid
+	 * out like {@link #currentRuns}.
+	 */
+	private int[] previousRuns;
+
+	/**
+	 * The dark mask of the frame searched before, as the lookup tables gave
+	 * it, before anything was left out.
+	 */
+	private long[] referenceMask;
+
+	/**
+	 * Whether the copied frame was given as gray scale values.
+	 */
+	private boolean referenceLuma;
+
+	/**
+	 * The BGR bytes or LumaFrame codes of the frame searched before, as far
+	 * as they were looked at.
+	 */
+	private byte[] referencePixels;
+
+	/**
+	 * Which rows of the copied frame have been worked out with the current
+	 * lookup tables, so that they can be compared with, or null if unchanged
+	 * parts aren't skipped in the current frame.
+	 */
+	private boolean[] referenceRows;
+
+	/**
+	 * The lookup tables the rows of the copied frame were worked out with.
+	 */
+	private LuminanceTable referenceTable;
+
+	/**
+	 * The number of longs of each row of the dark mask of the current frame
+	 * which were taken from the frame before.
+	 */
+	private int[] reusedWords;
+
+	/**
+	 * Holds one row of packed RGB values while a frame is being converted.
+	 */
+	private int[] rowBuffer;
+
+	/**
+	 * Whether the parts of a frame which haven't changed since the frame
+	 * before are skipped.
+	 */
+	private boolean skipUnchanged;
+
+	/**
+	 * The contexts used by the strips of a frame being searched in parallel.
+	 */
+	private DetectionContext[] stripContexts;
+
+	/**
+	 * The flood fill stack. It holds pixel indices (y * width + x), and since
+	 * a pixel is only pushed once it never needs to be larger than the frame.
+	 */
+	private int[] stack;
+
+	/**
+	 * The fork/join task a parallel detector searches with this context, kept
+	 * so that it isn't made again every frame.
+	 */
+	private RecursiveAction task;
+
+	/**
+	 * One bit for every pixel of the frame, set once the pixel has been
+	 * searched. It is laid out like the dark mask, so the two can be combined
+	 * a long at a time.
+	 */
+	private long[] visited;
+
+	/**
+	 * The width of the frames this context is sized for.
+	 */
+	private int width;
+
+	/**
+	 * Makes a context which will size itself on the first frame it is reset
+	 * for.
+	 */
+	public DetectionContext() {
+		blobs = new BlobList();
+		components = new BlobList();
+		labelParents = new int[64];
+		maskKernel = MaskKernels.getDefault();
+	}
+
+	/**
+	 * Finds the flies in the given image with the given detector. Afterwards
+	 * the list of blobs holds them in the order a column by column scan of the
+	 * image finds them, which is the order the original flydentify found them
+	 * in and the order the Analyzer's matching expects. If the settings have
+	 * search windows, only the windows are searched, and the detector isn't
+	 * used. If they have a region of arenas, every blob is given the arena
+	 * its center is in. The list also gets how much of the frame was
+	 * skipped.
+	 *
+	 * @param image
+	 *            the image to search.
+	 * @param detector
+	 *            the detector to search it with.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 */
+	public void detect(BufferedImage image, BlobDetector detector,
+			DetectionSettings settings) {
+		search(prepare(image, settings), detector, settings);
+	}
+
+	/**
+	 * Finds the flies in the given frame of gray scale values with the given
+	 * detector, like {@link #detect(BufferedImage, BlobDetector,
+	 * DetectionSettings)} does for an image.
+	 *
+	 * @param frame
+	 *            the frame to search, made with the image contrast of the
+	 *            settings.
+	 * @param detector
+	 *            the detector to search it with.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 */
+	public void detect(LumaFrame frame, BlobDetector detector,
+			DetectionSettings settings) {
+		search(prepare(frame, settings), detector, settings);
+	}
+
+	/**
+	 * Searches the prepared frame with the given detector, or in the search
+	 * windows of the settings, and fills in the list of blobs.
+	 *
+	 * @param pixels
+	 *            the bytes {@link #prepare} handed back.
+	 * @param detector
+	 *            the detector to search with.
+	 * @param settings
+	 *            the settings the frame was prepared with.
+	 */
+	private void search(byte[] pixels, BlobDetector detector,
+			DetectionSettings settings) {
+		SearchWindows windows = settings.getSearchWindows();
+		if (windows != null) {
+			windows.search(pixels, width, height, settings, this);
+		} else {
+			detector.detect(pixels, width, height, settings, this);
+		}
+		blobs.sortByFirstPixel();
+		if (arenaRegion != null) {
+			for (int i = 0; i < blobs.size(); i++) {
+				blobs.setArena(i,
+						arenaRegion.getArena(blobs.getX(i), blobs.getY(i)));
+			}
+		}
+		blobs.setSkippedFraction(getSkippedFraction());
+	}
+
+	/**
+	 * Tells if the dark mask of the current frame can be worked out a box at
+	 * a time with {@link #maskBox}. It can't with an adaptive threshold, which
+	 * has worked out the whole mask already, or when unchanged parts are
+	 * skipped, since that compares whole rows with the frame before and keeps
+	 * their bits for the frame after.
+	 *
+	 * @return true if boxes of the mask can be worked out on their own.
+	 */
+	public boolean canMaskBoxes() {
+		return adaptiveThreshold == null && referenceRows == null;
+	}
+
+	/**
+	 * Marks every pixel of the current frame as not searched yet, except the
+	 * pixels the exclusion mask leaves out and the pixels outside the arenas,
+	 * which are marked as searched already.
+	 */
+	public void clearVisited() {
+		if (visited == null) {
+			visited = new long[height * maskStride];
+		}
+		if (blocked != null) {
+			System.arraycopy(blocked, 0, visited, 0, visited.length);
+		} else {
+			Arrays.fill(visited, 0L);
+		}
+	}
+
+	/**
+	 * Drops the copy of the frame searched before, so the next frame is
+	 * looked up whole.
+	 */
+	private void dropReference() {
+		referenceMask = null;
+		referencePixels = null;
+		referenceRows = null;
+		referenceTable = null;
+		reusedWords = null;
+	}
+
+	/**
+	 * Returns the pixels of the given image as BGR bytes, three bytes per
+	 * pixel, row by row. A TYPE_3BYTE_BGR image (which is what we ask Xuggler
+	 * for) is read straight out of its raster, any other image is converted
+	 * once through getRGB into a buffer of this context, which is reused for
+	 * every frame of the same size.
+	 *
+	 * @param image
+	 *            the image whose pixels are wanted.
+	 * @return the pixels of the image, with the pixel at (x, y) starting at
+	 *         index (y * width + x) * 3.
+	 */
+	private byte[] getBgrPixels(BufferedImage image) {
+		int imgWidth = image.getWidth();
+		int imgHeight = image.getHeight();
+		WritableRaster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+				&& raster.getParent() == null
+				&& raster.getDataBuffer().getNumBanks() == 1) {
+			byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			if (data.length == imgWidth * imgHeight * 3) {
+				return data;
+			}
+		}
+		if (convertedPixels == null) {
+			convertedPixels = new byte[imgWidth * imgHeight * 3];
+			rowBuffer = new int[imgWidth];
+		}
+		byte[] pixels = convertedPixels;
+		int[] row = rowBuffer;
+		for (int j = 0; j < imgHeight; j++) {
+			image.getRGB(0, j, imgWidth, 1, row, 0, imgWidth);
+			int offset = j * imgWidth * 3;
+			for (int i = 0; i < imgWidth; i++) {
+				int rgb = row[i];
+				pixels[offset++] = (byte) rgb;
+				pixels[offset++] = (byte) (rgb >> 8);
+				pixels[offset++] = (byte) (rgb >> 16);
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Returns the list of blobs found in the current frame.
+	 *
+	 * @return the list of blobs, which is cleared by {@link #reset}.
+	 */
+	public BlobList getBlobs() {
+		return blobs;
+	}
+
+	/**
+	 * Returns an array for a smaller copy of the dark mask, with room for at
+	 * least the given number of longs. Its contents are left over from the
+	 * frame before.
+	 *
+	 * @param length
+	 *            the number of longs needed.
+	 * @return the array.
+	 */
+	public long[] getCoarseMask(int length) {
+		if (coarseMask == null || coarseMask.length < length) {
+			coarseMask = new long[length];
+		}
+		return coarseMask;
+	}
+
+	/**
+	 * Returns an array for the searched pixels of a smaller copy of the dark
+	 * mask, with room for at least the given number of longs. Its contents
+	 * are left over from the frame before.
+	 *
+	 * @param length
+	 *            the number of longs needed.
+	 * @return the array.
+	 */
+	public long[] getCoarseVisited(int length) {
+		if (coarseVisited == null || coarseVisited.length < length) {
+			coarseVisited = new long[length];
+		}
+		return coarseVisited;
+	}
+
+	/**
+	 * Returns the list detectors can keep every blob of the current frame in,
+	 * whatever its size. Detectors clear it themselves.
+	 *
+	 * @return the list of all blobs.
+	 */
+	public BlobList getComponents() {
+		return components;
+	}
+
+	/**
+	 * Returns the runs of the row being labeled, three ints per run.
+	 *
+	 * @return an array with room for every run a row can have.
+	 */
+	public int[] getCurrentRuns() {
+		if (currentRuns == null) {
+			currentRuns = new int[3 * ((width + 1) / 2)];
+		}
+		return currentRuns;
+	}
+
+	/**
+	 * Returns the dark mask of the current frame, which holds whatever the
+	 * last call to {@link #maskRows} wrote into it.
+	 *
+	 * @return the dark mask, with {@link #getMaskStride} longs per row.
+	 */
+	public long[] getDarkMask() {
+		if (darkMask == null) {
+			darkMask = new long[height * maskStride];
+		}
+		return darkMask;
+	}
+
+	/**
+	 * Returns the array of union-find parents of the labeling detector, with
+	 * room for at least the given number of labels. Existing parents are kept
+	 * when the array has to grow.
+	 *
+	 * @param capacity
+	 *            the number of labels needed.
+	 * @return the array of parents.
+	 */
+	public int[] getLabelParents(int capacity) {
+		if (labelParents.length < capacity) {
+			labelParents = Arrays.copyOf(labelParents,
+					Math.max(capacity, labelParents.length * 2));
+		}
+		return labelParents;
+	}
+
+	/**
+	 * Returns the number of longs in each row of the dark mask.
+	 *
+	 * @return the stride of the dark mask.
+	 */
+	public int getMaskStride() {
+		return maskStride;
+	}
+
+	/**
+	 * Returns the runs of the row above the one being labeled, three ints per
+	 * run.
+	 *
+	 * @return an array with room for every run a row can have.
+	 */
+	public int[] getPreviousRuns() {
+		if (previousRuns == null) {
+			previousRuns = new int[3 * ((width + 1) / 2)];
+		}
+		return previousRuns;
+	}
+
+	/**
+	 * Returns how much of the dark mask of the current frame was taken from
+	 * the frame searched before.
+	 *
+	 * @return the fraction of the mask, from 0 to 1.
+	 */
+	public double getSkippedFraction() {
+		if (reusedWords == null || height == 0) {
+			return 0;
+		}
+		long reused = 0;
+		for (int y = 0; y < height; y++) {
+			reused += reusedWords[y];
+		}
+		return (double) reused / ((long) height * maskStride);
+	}
+
+	/**
+	 * Returns the flood fill stack, which holds width * height pixel indices.
+	 *
+	 * @return the stack.
+	 */
+	public int[] getStack() {
+		if (stack == null) {
+			stack = new int[width * height];
+		}
+		return stack;
+	}
+
+	/**
+	 * Returns a context for each strip of a frame which is being searched in
+	 * parallel, reset for the size of the current frame. The same contexts
+	 * are handed out frame after frame.
+	 *
+	 * @param count
+	 *            the number of strips.
+	 * @return an array of at least count contexts.
+	 */
+	public DetectionContext[] getStripContexts(int count) {
+		if (stripContexts == null || stripContexts.length < count) {
+			stripContexts = new DetectionContext[count];
+			for (int i = 0; i < count; i++) {
+				stripContexts[i] = new DetectionContext();
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			stripContexts[i].reset(width, height);
+		}
+		return stripContexts;
+	}
+
+	/**
+	 * Returns the fork/join task a parallel detector left in this context.
+	 *
+	 * @return the task, or null if there is none yet.
+	 */
+	public RecursiveAction getTask() {
+		return task;
+	}
+
+	/**
+	 * Returns the bit plane of searched pixels, laid out like the dark mask.
+	 * {@link #clearVisited} has to be called first in every frame.
+	 *
+	 * @return the searched pixels.
+	 */
+	public long[] getVisited() {
+		return visited;
+	}
+
+	/**
+	 * Returns the number of bytes each pixel of the current frame takes up.
+	 *
+	 * @return 1 for gray scale values, 3 for BGR bytes.
+	 */
+	private int getPixelBytes() {
+		return lumaFrame != null ? 1 : 3;
+	}
+
+	/**
+	 * Returns the index of the first byte of a row of the current frame.
+	 *
+	 * @param y
+	 *            the row.
+	 * @return the index of the row's first byte.
+	 */
+	private int getRowStart(int y) {
+		return lumaFrame != null ? y * lumaFrame.getStride() : y * width * 3;
+	}
+
+	/**
+	 * Checks if the bytes of the given 64 pixels of a row are the same as in
+	 * the frame searched before.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, or nothing for a LumaFrame.
+	 * @param offset
+	 *            the index of the first byte of the row.
+	 * @param word
+	 *            which 64 pixels of the row to compare.
+	 * @return true if none of the bytes have changed.
+	 */
+	private boolean isUnchanged(byte[] pixels, int offset, int word) {
+		int pixelBytes = getPixelBytes();
+		int end = offset + Math.min((word + 1) << 6, width) * pixelBytes;
+		if (lumaFrame != null) {
+			ByteBuffer plane = lumaFrame.getPlane();
+			for (int i = offset + (word << 6); i < end; i++) {
+				if (plane.get(i) != referencePixels[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int i = offset + (word << 6) * pixelBytes; i < end; i++) {
+			if (pixels[i] != referencePixels[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Works out the dark mask of a box of the current frame, like
+	 * {@link #maskRows} does for whole rows. The bits outside the box are
+	 * left as they are, except that the bits of the longs the box is in
+	 * which are excluded, outside the arenas or not darker than the
+	 * background are cleared, as they would be in any mask worked out for
+	 * the frame. Only to be used when {@link #canMaskBoxes} says so.
+	 *
+	 * @param pixels
+	 *            the bytes {@link #prepare} handed back for the frame.
+	 * @param left
+	 *            the first column of the box.
+	 * @param top
+	 *            the first row of the box.
+	 * @param right
+	 *            the column just past the last column of the box.
+	 * @param bottom
+	 *            the row just past the last row of the box.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 */
+	public void maskBox(byte[] pixels, int left, int top, int right,
+			int bottom, LuminanceTable table) {
+		long[] mask = getDarkMask();
+		if (arenaRegion == null) {
+			maskSpan(pixels, top, bottom, left, right, table, mask);
+		} else {
+			for (int y = top; y < bottom; y++) {
+				for (int x = left; x < right;) {
+					int start = x & 63;
+					int end = Math.min(right - (x - start), 64);
+					long covered = -1L << start;
+					if (end < 64) {
+						covered &= (1L << end) - 1;
+					}
+					mask[y * maskStride + (x >>> 6)] &= ~covered;
+					x += end - start;
+				}
+				int[] spans = arenaRegion.getSpans(width, height, y);
+				for (int i = 0; i < spans.length; i += 2) {
+					int from = Math.max(spans[i], left);
+					int to = Math.min(spans[i + 1], right);
+					if (from < to) {
+						maskSpan(pixels, y, y + 1, from, to, table, mask);
+					}
+				}
+			}
+		}
+		int first = left >>> 6;
+		int end = (right + 63) >>> 6;
+		if (blocked != null) {
+			for (int y = top; y < bottom; y++) {
+				int row = y * maskStride;
+				for (int word = row + first; word < row + end; word++) {
+					mask[word] &= ~blocked[word];
+				}
+			}
+		}
+		if (backgroundModel != null) {
+			if (lumaFrame != null) {
+				backgroundModel.keepForeground(lumaFrame, mask, top, bottom,
+						left, right);
+			} else {
+				backgroundModel.keepForeground(pixels, table, mask, top,
+						bottom, left, right);
+			}
+		}
+	}
+
+	/**
+	 * Works out the dark mask of the rows from top up to bottom of a frame
+	 * with the lookup tables only where the frame has changed since the frame
+	 * searched before, and copies the rest from the frame before. The copy of
+	 * the frame is brought up to date as it goes.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, or nothing for a LumaFrame.
+	 * @param top
+	 *            the first row to work out.
+	 * @param bottom
+	 *            the row just past the last row to work out.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param mask
+	 *            the dark mask the rows are written to.
+	 */
+	private void maskChangedRows(byte[] pixels, int top, int bottom,
+			LuminanceTable table, long[] mask) {
+		int pixelBytes = getPixelBytes();
+		// a duplicate of its own, since other threads may be reading other
+		// rows of the same plane
+		ByteBuffer plane = lumaFrame != null ? lumaFrame.getPlane()
+				.duplicate() : null;
+		for (int y = top; y < bottom; y++) {
+			int offset = getRowStart(y);
+			boolean known = referenceRows[y];
+			int reused = 0;
+			int changed = -1;
+			for (int w = 0; w <= maskStride; w++) {
+				if (w < maskStride && (!known || !isUnchanged(pixels, offset, w))) {
+					if (changed < 0) {
+						changed = w;
+					}
+					continue;
+				}
+				if (changed >= 0) {
+					// work out the run of changed longs all at once
+					int left = changed << 6;
+					int right = Math.min(w << 6, width);
+					maskSpan(pixels, y, y + 1, left, right, table,
+							referenceMask);
+					if (plane != null) {
+						plane.position(offset + left);
+						plane.get(referencePixels, offset + left, right - left);
+					} else {
+						System.arraycopy(pixels, offset + left * pixelBytes,
+								referencePixels, offset + left * pixelBytes,
+								(right - left) * pixelBytes);
+					}
+					changed = -1;
+				}
+				if (w < maskStride) {
+					reused++;
+				}
+			}
+			System.arraycopy(referenceMask, y * maskStride, mask, y * maskStride,
+					maskStride);
+			referenceRows[y] = true;
+			reusedWords[y] = reused;
+		}
+	}
+
+	/**
+	 * Works out a small copy of the dark mask of the current frame, in which
+	 * every square of scale by scale pixels is one pixel. A pixel of the copy
+	 * is set if the darkest value of every channel of its square, taken
+	 * together, is dark. Each channel's lookup table only ever goes up with
+	 * the channel, so that is never lighter than the darkest pixel of the
+	 * square, and a square with a dark pixel is always set. It only takes
+	 * one lookup per square rather than one per pixel, though a square can be
+	 * set without a dark pixel, when its darkest channels come from
+	 * different pixels. The arenas, the excluded pixels and the background
+	 * model only ever leave pixels out, and are left out here. Squares which
+	 * are cut off by the right or bottom edge of the frame count as if they
+	 * were whole.
+	 *
+	 * @param pixels
+	 *            the bytes {@link #prepare} handed back for the frame.
+	 * @param scale
+	 *            the width and height of the squares.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param coarse
+	 *            the mask the small copy is written to.
+	 * @param coarseStride
+	 *            the number of longs in each row of the small copy.
+	 */
+	public void maskCoarse(byte[] pixels, int scale, LuminanceTable table,
+			long[] coarse, int coarseStride) {
+		int coarseHeight = (height + scale - 1) / scale;
+		int rowBytes = width * getPixelBytes();
+		if (bandMinimums == null || bandMinimums.length < rowBytes) {
+			bandMinimums = new int[rowBytes];
+		}
+		int[] darkest = bandMinimums;
+		ByteBuffer plane = lumaFrame != null ? lumaFrame.getPlane() : null;
+		for (int cy = 0; cy < coarseHeight; cy++) {
+			// the darkest value of every byte down the rows of the squares
+			int top = cy * scale;
+			int bottom = Math.min(top + scale, height);
+			for (int y = top; y < bottom; y++) {
+				int offset = getRowStart(y);
+				if (plane != null) {
+					for (int i = 0; i < rowBytes; i++) {
+						int code = plane.get(offset + i) & 0xFF;
+						darkest[i] = y == top ? code : Math.min(darkest[i],
+								code);
+					}
+				} else if (y == top) {
+					for (int i = 0; i < rowBytes; i++) {
+						darkest[i] = pixels[offset + i] & 0xFF;
+					}
+				} else {
+					for (int i = 0; i < rowBytes; i++) {
+						darkest[i] = Math.min(darkest[i],
+								pixels[offset + i] & 0xFF);
+					}
+				}
+			}
+			// then across every square, with one lookup for the square
+			int row = cy * coarseStride;
+			Arrays.fill(coarse, row, row + coarseStride, 0L);
+			for (int cx = 0, x = 0; x < width; cx++) {
+				int end = Math.min(x + scale, width);
+				boolean dark;
+				if (plane != null) {
+					int code = 255;
+					for (; x < end; x++) {
+						code = Math.min(code, darkest[x]);
+					}
+					dark = code <= lumaLimit;
+				} else {
+					int blue = 255;
+					int green = 255;
+					int red = 255;
+					for (; x < end; x++) {
+						blue = Math.min(blue, darkest[3 * x]);
+						green = Math.min(green, darkest[3 * x + 1]);
+						red = Math.min(red, darkest[3 * x + 2]);
+					}
+					dark = table.isDark(blue, green, red);
+				}
+				if (dark) {
+					coarse[row + (cx >>> 6)] |= 1L << cx;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Works out the dark mask of the rows from top up to bottom of the given
+	 * frame, leaving out the pixels of the exclusion mask. If there is a
+	 * region of arenas, only the pixels inside it are looked at, and the rest
+	 * are left clear. Different rows of the same context can be worked out by
+	 * different threads at once, once {@link #getDarkMask} has been called.
+	 * With a background model, only the dark pixels which are darker than the
+	 * background by enough are kept. When unchanged parts are skipped, only
+	 * the parts of the rows which have changed since the frame before are
+	 * looked up, and the region of arenas only counts through the pixels it
+	 * leaves out. With an adaptive threshold the whole
+	 * mask has been worked out by {@link #prepare} already, and this does
+	 * nothing.
+	 *
+	 * @param pixels
+	 *            the bytes {@link #prepare} handed back for the frame.
+	 * @param top
+	 *            the first row to work out.
+	 * @param bottom
+	 *            the row just past the last row to work out.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 */
+	public void maskRows(byte[] pixels, int top, int bottom,
+			LuminanceTable table) {
+		if (adaptiveThreshold != null) {
+			return;
+		}
+		long[] mask = getDarkMask();
+		if (referenceRows != null) {
+			maskChangedRows(pixels, top, bottom, table, mask);
+		} else if (arenaRegion == null) {
+			maskSpan(pixels, top, bottom, 0, width, table, mask);
+		} else {
+			Arrays.fill(mask, top * maskStride, bottom * maskStride, 0L);
+			for (int y = top; y < bottom; y++) {
+				int[] spans = arenaRegion.getSpans(width, height, y);
+				for (int i = 0; i < spans.length; i += 2) {
+					maskSpan(pixels, y, y + 1, spans[i], spans[i + 1], table,
+							mask);
+				}
+			}
+		}
+		if (blocked != null) {
+			int end = bottom * maskStride;
+			for (int word = top * maskStride; word < end; word++) {
+				mask[word] &= ~blocked[word];
+			}
+		}
+		if (backgroundModel != null) {
+			if (lumaFrame != null) {
+				backgroundModel.keepForeground(lumaFrame, mask, top, bottom);
+			} else {
+				backgroundModel.keepForeground(pixels, table, mask, top, bottom);
+			}
+		}
+	}
+
+	/**
+	 * Works out the dark mask of the columns from left up to right of the
+	 * rows from top up to bottom, with the mask kernel for BGR bytes, or by
+	 * comparing the codes of a LumaFrame with its dark limit.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, or nothing for a LumaFrame.
+	 * @param top
+	 *            the first row to work out.
+	 * @param bottom
+	 *            the row just past the last row to work out.
+	 * @param left
+	 *            the first column to work out.
+	 * @param right
+	 *            the column just past the last column to work out.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param mask
+	 *            the mask the rows are written to.
+	 */
+	private void maskSpan(byte[] pixels, int top, int bottom, int left,
+			int right, LuminanceTable table, long[] mask) {
+		if (lumaFrame == null) {
+			maskKernel.maskRows(pixels, width, top, bottom, left, right, table,
+					mask, maskStride);
+			return;
+		}
+		ByteBuffer plane = lumaFrame.getPlane();
+		for (int y = top; y < bottom; y++) {
+			int rowStart = getRowStart(y);
+			for (int x = left; x < right;) {
+				int word = y * maskStride + (x >>> 6);
+				int start = x & 63;
+				int end = Math.min(right - (x - start), 64);
+				int offset = rowStart + x;
+				long bits = 0;
+				for (int bit = start; bit < end; bit++, offset++) {
+					if ((plane.get(offset) & 0xFF) <= lumaLimit) {
+						bits |= 1L << bit;
+					}
+				}
+				long covered = -1L << start;
+				if (end < 64) {
+					covered &= (1L << end) - 1;
+				}
+				mask[word] = (mask[word] & ~covered) | bits;
+				x += end - start;
+			}
+		}
+	}
+
+	/**
+	 * Gets this context ready to search the given frame with the given
+	 * settings, and returns the pixels of the frame.
+	 *
+	 * @param image
+	 *            the frame to search.
+	 * @param settings
+	 *            the settings it is searched with. Their exclusion mask is
+	 *            used if it was found in a frame of the same size, and the
+	 *            search is kept to their region of arenas if they have one.
+	 *            If they have an adaptive threshold, the dark mask of the
+	 *            whole frame is worked out with it right away. Their
+	 *            background model is used if it was made from frames of the
+	 *            same size. Unchanged parts of the frame are only skipped
+	 *            without an adaptive threshold, and only looked for where the
+	 *            lookup tables are the same as for the frame before.
+	 * @return the BGR bytes of the frame, as described in
+	 *         {@link #getBgrPixels}.
+	 */
+	public byte[] prepare(BufferedImage image, DetectionSettings settings) {
+		lumaFrame = null;
+		reset(image.getWidth(), image.getHeight());
+		byte[] pixels = getBgrPixels(image);
+		prepareMasks(pixels, settings);
+		return pixels;
+	}
+
+	/**
+	 * Gets this context ready to search the given frame of gray scale values
+	 * with the given settings, like {@link #prepare(BufferedImage,
+	 * DetectionSettings)} does for an image. The context reads the frame's
+	 * plane itself, so the bytes handed back are empty.
+	 *
+	 * @param frame
+	 *            the frame to search.
+	 * @param settings
+	 *            the settings it is searched with, whose lookup tables must
+	 *            have the image contrast the frame was made with.
+	 * @return the bytes to hand to the detectors, which are empty.
+	 */
+	public byte[] prepare(LumaFrame frame, DetectionSettings settings) {
+		if (!frame.fits(settings.getLuminanceTable())) {
+			throw new IllegalArgumentException("Frame must be made with the "
+					+ "image contrast of the settings");
+		}
+		lumaFrame = frame;
+		lumaLimit = frame.getDarkLimit(settings.getLuminanceTable()
+				.getContrastThreshold());
+		reset(frame.getWidth(), frame.getHeight());
+		prepareMasks(NO_PIXELS, settings);
+		return NO_PIXELS;
+	}
+
+	/**
+	 * Works out which pixels aren't searched, and with an adaptive threshold
+	 * the dark mask of the whole frame, for a frame which has been reset for.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, or nothing for a LumaFrame.
+	 * @param settings
+	 *            the settings it is searched with.
+	 */
+	private void prepareMasks(byte[] pixels, DetectionSettings settings) {
+		ExclusionMask mask = settings.getExclusionMask();
+		long[] excluded = mask != null && mask.fits(width, height) ? mask
+				.getPlane() : null;
+		arenaRegion = settings.getArenaRegion();
+		if (arenaRegion == null) {
+			blocked = excluded;
+		} else if (excluded == null) {
+			blocked = arenaRegion.getOutside(width, height);
+		} else {
+			long[] outside = arenaRegion.getOutside(width, height);
+			if (blockedBuffer == null) {
+				blockedBuffer = new long[height * maskStride];
+			}
+			for (int i = 0; i < blockedBuffer.length; i++) {
+				blockedBuffer[i] = excluded[i] | outside[i];
+			}
+			blocked = blockedBuffer;
+		}
+		BackgroundModel model = settings.getBackgroundModel();
+		backgroundModel = model != null && model.fits(width, height) ? model
+				: null;
+		adaptiveThreshold = settings.getAdaptiveThreshold();
+		if (adaptiveThreshold != null) {
+			if (levelSums == null) {
+				levelSums = new int[(width + 1) * (height + 1)];
+			}
+			long[] dark = getDarkMask();
+			dropReference();
+			LuminanceTable table = settings.getLuminanceTable();
+			if (lumaFrame != null) {
+				adaptiveThreshold.maskFrame(lumaFrame,
+						table.getContrastThreshold(), levelSums, dark, maskStride);
+			} else {
+				adaptiveThreshold.maskFrame(pixels, width, height, table,
+						levelSums, dark, maskStride);
+			}
+			if (blocked != null) {
+				for (int i = 0; i < dark.length; i++) {
+					dark[i] &= ~blocked[i];
+				}
+			}
+			if (backgroundModel != null) {
+				if (lumaFrame != null) {
+					backgroundModel.keepForeground(lumaFrame, dark, 0, height);
+				} else {
+					backgroundModel.keepForeground(pixels, table, dark, 0,
+							height);
+				}
+			}
+		} else if (skipUnchanged) {
+			// a copy of a frame given the other way, or with other rows,
+			// can't be compared with
+			int length = getRowStart(height - 1) + width * getPixelBytes();
+			if (referenceRows != null
+					&& (referenceLuma != (lumaFrame != null)
+							|| referencePixels.length != length)) {
+				dropReference();
+			}
+			if (referenceRows == null) {
+				referenceMask = new long[height * maskStride];
+				referencePixels = new byte[length];
+				referenceRows = new boolean[height];
+				referenceLuma = lumaFrame != null;
+				reusedWords = new int[height];
+			}
+			if (settings.getLuminanceTable() != referenceTable) {
+				Arrays.fill(referenceRows, false);
+				referenceTable = settings.getLuminanceTable();
+			}
+			Arrays.fill(reusedWords, 0);
+		}
+	}
+
+	/**
+	 * Gets this context ready for a new frame of the given size. Buffers made
+	 * for a different size are dropped, and the list of blobs is cleared.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 */
+	public void reset(int width, int height) {
+		if (width != this.width || height != this.height) {
+			this.width = width;
+			this.height = height;
+			bandMinimums = null;
+			blockedBuffer = null;
+			convertedPixels = null;
+			currentRuns = null;
+			darkMask = null;
+			levelSums = null;
+			maskStride = (width + 63) >>> 6;
+			previousRuns = null;
+			rowBuffer = null;
+			dropReference();
+			stack = null;
+			visited = null;
+		}
+		blobs.clear();
+	}
+
+	/**
+	 * Sets whether the parts of a frame which haven't changed since the frame
+	 * searched before are skipped, from the next frame on. Turning it off
+	 * drops the copy of the frame before.
+	 *
+	 * @param skip
+	 *            true to skip unchanged parts.
+	 */
+	public void setSkipUnchanged(boolean skip) {
+		skipUnchanged = skip;
+		if (!skip) {
+			dropReference();
+		}
+	}
+
+	/**
+	 * Keeps a fork/join task in this context for the parallel detector which
+	 * searches with it, so that the task can be used again in the next frame.
+	 *
+	 * @param task
+	 *            the task.
+	 */
+	public void setTask(RecursiveAction task) {
+		this.task = task;
+	}
+
+	/**
+	 * Makes the runs of the row being labeled the runs of the row above, once
+	 * the labeling detector moves on to the next row.
+	 */
+	public void swapRuns() {
+		int[] runs = previousRuns;
+		previousRuns = currentRuns;
+		currentRuns = runs;
+	}
+
+	/**
+	 * Marks the given pixel as searched if it is dark and hasn't been
+	 * searched yet.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel.
+	 * @param y
+	 *            the y coordinate of the pixel.
+	 * @return true if the pixel was dark and not searched before.
+	 */
+	public boolean visitDark(int x, int y) {
+		int word = y * maskStride + (x >>> 6);
+		long bit = 1L << x;
+		if ((darkMask[word] & ~visited[word] & bit) == 0) {
+			return false;
+		}
+		visited[word] |= bit;
+		return true;
+	}
+
+	/**
+	 * Marks the given pixel as searched if it hasn't been searched yet, and
+	 * checks it with the lookup tables. This is for detectors which don't
+	 * work out the dark mask of the whole frame: a light pixel which has been
+	 * checked once is marked as searched too, so that it's never checked
+	 * again. With an adaptive threshold the pixel is looked up in the dark
+	 * mask instead, which has been worked out already. With a background
+	 * model the pixel also has to be darker than the background by enough.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel.
+	 * @param y
+	 *            the y coordinate of the pixel.
+	 * @param pixels
+	 *            the bytes {@link #prepare} handed back for the frame.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @return true if the pixel is dark and wasn't searched before.
+	 */
+	public boolean visitPixel(int x, int y, byte[] pixels,
+			LuminanceTable table) {
+		int word = y * maskStride + (x >>> 6);
+		long bit = 1L << x;
+		if ((visited[word] & bit) != 0) {
+			return false;
+		}
+		visited[word] |= bit;
+		if (adaptiveThreshold != null) {
+			return (darkMask[word] & bit) != 0;
+		}
+		int pixel = y * width + x;
+		if (lumaFrame != null) {
+			int level = lumaFrame.getLevel(x, y);
+			return level <= table.getContrastThreshold()
+					&& (backgroundModel == null || backgroundModel.isForeground(
+							pixel, level));
+		}
+		return table.isDark(pixels, pixel * 3)
+				&& (backgroundModel == null || backgroundModel.isForeground(
+						pixel, pixels, table));
+	}
+}
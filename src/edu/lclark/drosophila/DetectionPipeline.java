@@ -0,0 +1,768 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Finds the flies in many frames at once, and hands them to a tracker one
+ * frame at a time, in the order the frames were submitted.
+ * <p>
+ * Finding the blobs in a frame doesn't depend on any other frame, so every
+ * submitted frame is searched on a pool of worker threads, each with its own
+ * DetectionContext. Matching flies to the flies of the frame before does
+ * depend on the frame before, so the tracker is only ever called from the
+ * thread submitting the frames, in frame order. Only a few frames per worker
+ * are let into the pool at once; submitting a frame past that waits for the
+ * oldest frame and tracks it first.
+ * <p>
+ * Frames can be submitted as decoded images, as image files which are read
+ * on the workers, or as {@link LumaFrame}s. How many frames are in flight and
+ * how long tracking waited for the workers are kept count of, to tell if
+ * detection holds a run back.
+ * <p>
+ * A pipeline is made once and used for run after run. Each run starts with
+ * {@link #start} and ends with {@link #finish}, or with {@link #abort} if it
+ * is given up on.
+ * <p>
+ * A pipeline can also leave the large dark structures of the frames, like
+ * arena walls, out of the search (see {@link ExclusionMask}). The mask is
+ * found again every so many frames, on the submitting thread, and every
+ * frame submitted after that is searched with it. Which mask a frame gets
+ * only depends on the order the frames are submitted in, so the flies found
+ * don't depend on how many threads there are.
+ * <p>
+ * Finally, a pipeline can search most frames only around where the flies
+ * are expected to be (see {@link SearchWindows}), asking a {@link Predictor}
+ * for the windows. Every so many frames, and whenever the windows find fewer
+ * flies than the frame before had, the whole frame is searched instead, to
+ * pick up flies which came in from elsewhere. The windows of a frame depend
+ * on the flies tracked in the frame before, so windowed frames are searched
+ * on the submitting thread once every frame before them has been tracked.
+ * Their cost grows with the number of flies rather than the size of the
+ * frame.
+ * <p>
+ * The workers can also skip the parts of a frame which haven't changed since
+ * the frame they searched before (see {@link DetectionContext}). Every worker
+ * compares with its own last frame, which is a few frames back, but the parts
+ * which are skipped are exactly the ones that would come out the same, so
+ * the flies found still don't depend on how many threads there are. How much
+ * of each frame was skipped is handed to the tracker with its blobs.
+ */
+public class DetectionPipeline {
+
+	/**
+	 * Takes the flies found in each frame, in frame order.
+	 */
+	public interface Tracker {
+
+		/**
+		 * Takes the flies found in one frame.
+		 *
+		 * @param frameNumber
+		 *            the number of the frame.
+		 * @param blobs
+		 *            the blobs found in the frame which are the right size to
+		 *            be flies, in the order a column by column scan finds
+		 *            them. The list is reused once this method returns.
+		 */
+		public void track(int frameNumber, BlobList blobs);
+	}
+
+	/**
+	 * Tells where the flies of a frame are expected to be.
+	 */
+	public interface Predictor {
+
+		/**
+		 * Predicts where the flies of the given frame will be, once every
+		 * frame before it has been tracked.
+		 *
+		 * @param frameNumber
+		 *            the number of the frame.
+		 * @return the windows to search the frame in, or null to search the
+		 *         whole frame.
+		 */
+		public SearchWindows predict(int frameNumber);
+	}
+
+	/**
+	 * A frame which has been submitted but not tracked yet.
+	 */
+	private static class PendingFrame {
+
+		private final int frameNumber;
+
+		/**
+		 * Set once a worker starts on the frame, or once the frame is
+		 * dropped before any worker got to it.
+		 */
+		private final AtomicBoolean claimed;
+
+		/**
+		 * Counted down once a worker which started on the frame is done
+		 * with it.
+		 */
+		private final CountDownLatch done;
+
+		private Future<BlobList> blobs;
+
+		public PendingFrame(int frameNumber) {
+			this.frameNumber = frameNumber;
+			claimed = new AtomicBoolean();
+			done = new CountDownLatch(1);
+		}
+	}
+
+	/**
+	 * The context each worker thread finds flies with.
+	 */
+	private final ThreadLocal<DetectionContext> contexts;
+
+	/**
+	 * The detector used for the current run.
+	 */
+	private BlobDetector detector;
+
+	/**
+	 * How many frames are submitted between finding the exclusion mask
+	 * again, or 0 if no exclusion mask is used.
+	 */
+	private int exclusionInterval;
+
+	/**
+	 * The cache image files are read through, or null to always read them.
+	 */
+	private FrameCache frameCache;
+
+	/**
+	 * The settings the frames of the current run are submitted with, which
+	 * have the latest exclusion mask.
+	 */
+	private DetectionSettings frameSettings;
+
+	/**
+	 * The context used on the submitting thread, to find the exclusion mask
+	 * and to search windowed frames.
+	 */
+	private final DetectionContext localContext;
+
+	/**
+	 * The most frames which were submitted but not tracked yet at once in
+	 * the current run.
+	 */
+	private int maxPending;
+
+	/**
+	 * The frames submitted but not yet tracked, oldest first.
+	 */
+	private final LinkedList<PendingFrame> pending;
+
+	/**
+	 * The worker threads.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * Whether the workers skip the parts of a frame which haven't changed.
+	 */
+	private boolean skipUnchanged;
+
+	/**
+	 * The predictor of the current run, or null if every frame is searched
+	 * whole.
+	 */
+	private Predictor predictor;
+
+	/**
+	 * The settings used for the current run.
+	 */
+	private DetectionSettings settings;
+
+	/**
+	 * Lists of blobs which have been tracked, kept to be filled again.
+	 */
+	private final LinkedList<BlobList> spareBlobs;
+
+	/**
+	 * The number of frames submitted in the current run.
+	 */
+	private int submitted;
+
+	/**
+	 * The number of worker threads.
+	 */
+	private final int threads;
+
+	/**
+	 * The number of flies found in the frame tracked last.
+	 */
+	private int trackedFlies;
+
+	/**
+	 * How long the submitting thread has waited for frames to be searched
+	 * in the current run, in nanoseconds.
+	 */
+	private long trackWait;
+
+	/**
+	 * The tracker of the current run.
+	 */
+	private Tracker tracker;
+
+	/**
+	 * How many frames are submitted between searching a frame whole when
+	 * there is a predictor, or 0 if every frame is searched whole.
+	 */
+	private int windowInterval;
+
+	/**
+	 * Makes a pipeline with the given number of worker threads. The threads
+	 * are daemon threads, so they don't keep the program running.
+	 *
+	 * @param threads
+	 *            the number of worker threads, at least 1.
+	 */
+	public DetectionPipeline(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1");
+		}
+		this.threads = threads;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "flydentify");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		contexts = new ThreadLocal<DetectionContext>() {
+			@Override
+			protected DetectionContext initialValue() {
+				return new DetectionContext();
+			}
+		};
+		pending = new LinkedList<PendingFrame>();
+		spareBlobs = new LinkedList<BlobList>();
+		localContext = new DetectionContext();
+	}
+
+	/**
+	 * Drops a frame which hasn't been tracked. If a worker has started on it
+	 * already, this waits for the worker to be done with it.
+	 *
+	 * @param frame
+	 *            the frame to drop.
+	 */
+	private static void abandon(PendingFrame frame) {
+		if (frame.claimed.compareAndSet(false, true)) {
+			frame.blobs.cancel(false);
+			return;
+		}
+		// the frame may be read from memory which is let go of next
+		boolean interrupted = false;
+		while (true) {
+			try {
+				frame.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Drops every frame which hasn't been tracked yet, and waits for the
+	 * workers to be done with the frames they already started on. None of
+	 * the frames is handed to the tracker. Afterwards no worker reads any
+	 * frame submitted so far, so whatever they were decoded into can be let
+	 * go of.
+	 */
+	public void abort() {
+		while (!pending.isEmpty()) {
+			abandon(pending.removeFirst());
+		}
+	}
+
+	/**
+	 * Finds the flies in a frame given either as an image or as gray scale
+	 * values.
+	 *
+	 * @param context
+	 *            the context to find them with.
+	 * @param frame
+	 *            the image or gray scale values of the frame.
+	 * @param detector
+	 *            the detector to search the frame with.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 */
+	private static void detect(DetectionContext context, Object frame,
+			BlobDetector detector, DetectionSettings settings) {
+		if (frame instanceof LumaFrame) {
+			context.detect((LumaFrame) frame, detector, settings);
+		} else {
+			context.detect((BufferedImage) frame, detector, settings);
+		}
+	}
+
+	/**
+	 * Waits for every submitted frame, and tracks them in order.
+	 *
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	public void finish() throws IOException {
+		while (!pending.isEmpty()) {
+			trackOldest();
+		}
+	}
+
+	/**
+	 * Returns the most frames which can be submitted but not tracked yet at
+	 * once. A frame which is submitted has to stay as it is until that many
+	 * more frames have been submitted, or the run is finished.
+	 *
+	 * @return the number of frames, a few for every worker thread.
+	 */
+	public int getCapacity() {
+		return 2 * threads;
+	}
+
+	/**
+	 * Returns how many frames are submitted between finding the exclusion
+	 * mask again.
+	 *
+	 * @return the number of frames, or 0 if no exclusion mask is used.
+	 */
+	public int getExclusionInterval() {
+		return exclusionInterval;
+	}
+
+	/**
+	 * Returns the cache image files are read through.
+	 *
+	 * @return the cache, or null if image files are always read.
+	 */
+	public FrameCache getFrameCache() {
+		return frameCache;
+	}
+
+	/**
+	 * Returns the most frames which were submitted but not tracked yet at
+	 * once in the current run. A run which keeps {@link #getCapacity} frames
+	 * in flight is held back by detection.
+	 *
+	 * @return the largest number of frames in flight.
+	 */
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	/**
+	 * Returns the number of frames which have been submitted but not tracked
+	 * yet.
+	 *
+	 * @return the number of frames in flight.
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 *
+	 * @return the number of worker threads.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Returns how long the submitting thread has waited in the current run
+	 * for frames to be searched before it could track them, which is how
+	 * long submitting was held back by detection.
+	 *
+	 * @return the time in nanoseconds.
+	 */
+	public long getTrackWait() {
+		return trackWait;
+	}
+
+	/**
+	 * Returns how many frames are submitted between searching a frame whole
+	 * when there is a predictor.
+	 *
+	 * @return the number of frames, or 0 if every frame is searched whole.
+	 */
+	public int getWindowInterval() {
+		return windowInterval;
+	}
+
+	/**
+	 * Tells if the workers skip the parts of a frame which haven't changed
+	 * since the frame they searched before.
+	 *
+	 * @return true if unchanged parts are skipped.
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Sets how many frames are submitted between finding the exclusion mask
+	 * again, from the next run on. The first frame of every run finds it.
+	 *
+	 * @param frames
+	 *            the number of frames, or 0 to search every frame whole.
+	 */
+	public void setExclusionInterval(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException("Frames must be at least 0");
+		}
+		exclusionInterval = frames;
+	}
+
+	/**
+	 * Sets the cache image files are read through, from the next frame
+	 * submitted on. A file found in the cache isn't read again, and a file
+	 * which is read is put into it.
+	 *
+	 * @param cache
+	 *            the cache, or null to always read image files.
+	 */
+	public void setFrameCache(FrameCache cache) {
+		frameCache = cache;
+	}
+
+	/**
+	 * Sets whether the workers skip the parts of a frame which haven't
+	 * changed since the frame they searched before, from the next frame
+	 * submitted on.
+	 *
+	 * @param skip
+	 *            true to skip unchanged parts.
+	 */
+	public void setSkipUnchanged(boolean skip) {
+		skipUnchanged = skip;
+	}
+
+	/**
+	 * Sets how many frames are submitted between searching a frame whole,
+	 * from the next run on. The frames in between are only searched in the
+	 * windows the predictor gives. The first frame of every run is searched
+	 * whole.
+	 *
+	 * @param frames
+	 *            the number of frames, or 0 to search every frame whole.
+	 */
+	public void setWindowInterval(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException("Frames must be at least 0");
+		}
+		windowInterval = frames;
+	}
+
+	/**
+	 * Stops the worker threads. The pipeline can't be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Starts a new run. Frames of this run are searched with the given
+	 * detector and settings and handed to the given tracker.
+	 *
+	 * @param detector
+	 *            the detector to find blobs with.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 * @param tracker
+	 *            the tracker which takes the flies of every frame.
+	 */
+	public void start(BlobDetector detector, DetectionSettings settings,
+			Tracker tracker) {
+		start(detector, settings, tracker, null);
+	}
+
+	/**
+	 * Starts a new run which searches frames in the windows the given
+	 * predictor gives, as far as the window interval allows. Frames of this
+	 * run are searched with the given detector and settings and handed to
+	 * the given tracker.
+	 *
+	 * @param detector
+	 *            the detector to find blobs with.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 * @param tracker
+	 *            the tracker which takes the flies of every frame.
+	 * @param predictor
+	 *            the predictor which tells where to search, or null to
+	 *            search every frame whole.
+	 */
+	public void start(BlobDetector detector, DetectionSettings settings,
+			Tracker tracker, Predictor predictor) {
+		// frames of a run which was given up on aren't tracked in this one
+		abort();
+		this.detector = detector;
+		this.settings = settings;
+		this.tracker = tracker;
+		this.predictor = predictor;
+		frameSettings = settings;
+		submitted = 0;
+		trackedFlies = 0;
+		maxPending = 0;
+		trackWait = 0;
+	}
+
+	/**
+	 * Submits a frame whose image has already been decoded.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param image
+	 *            the image of the frame.
+	 */
+	public void submit(int frameNumber, final BufferedImage image) {
+		try {
+			submit(frameNumber, new Callable<BufferedImage>() {
+				public BufferedImage call() {
+					return image;
+				}
+			});
+		} catch (IOException e) {
+			// only frames read from files can fail to be read
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Submits a frame whose gray scale values have already been worked out,
+	 * with the image contrast of the settings of the run.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param frame
+	 *            the gray scale values of the frame.
+	 */
+	public void submit(int frameNumber, final LumaFrame frame) {
+		try {
+			submit(frameNumber, new Callable<LumaFrame>() {
+				public LumaFrame call() {
+					return frame;
+				}
+			});
+		} catch (IOException e) {
+			// only frames read from files can fail to be read
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Submits a frame which still has to be read from an image file. The file
+	 * is looked up in the frame cache, if there is one, and read on a worker
+	 * thread if it isn't there.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param file
+	 *            the image file of the frame.
+	 * @throws IOException
+	 *             if an image file submitted earlier could not be read.
+	 */
+	public void submit(int frameNumber, final File file) throws IOException {
+		final FrameCache cache = frameCache;
+		submit(frameNumber, new Callable<BufferedImage>() {
+			public BufferedImage call() throws IOException {
+				if (cache == null) {
+					return ImageIO.read(file);
+				}
+				String key = FrameCache.key(file);
+				BufferedImage image = cache.get(key);
+				if (image == null) {
+					image = ImageIO.read(file);
+					cache.put(key, image);
+				}
+				return image;
+			}
+		});
+	}
+
+	/**
+	 * Submits a frame which comes from the given source, tracking the oldest
+	 * frame first if too many frames are waiting already. If it is time to
+	 * find the exclusion mask again, the frame is read and the mask found
+	 * right away. A frame which is only searched in windows is searched and
+	 * tracked right away.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param source
+	 *            gives the frame when called, as an image or as gray scale
+	 *            values.
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	private void submit(int frameNumber, Callable<?> source)
+			throws IOException {
+		if (pending.size() >= getCapacity()) {
+			trackOldest();
+		}
+		if (exclusionInterval > 0 && submitted % exclusionInterval == 0) {
+			final Object frame = read(source);
+			ExclusionMask mask;
+			if (frame instanceof LumaFrame) {
+				mask = ExclusionMask.find((LumaFrame) frame, settings,
+						localContext, ExclusionMask.DEFAULT_MARGIN);
+			} else {
+				mask = ExclusionMask.find((BufferedImage) frame, settings,
+						localContext, ExclusionMask.DEFAULT_MARGIN);
+			}
+			frameSettings = settings.withExclusionMask(mask);
+			source = new Callable<Object>() {
+				public Object call() {
+					return frame;
+				}
+			};
+		}
+		boolean windowed = predictor != null && windowInterval > 0
+				&& submitted % windowInterval != 0;
+		submitted++;
+		if (windowed) {
+			searchWindows(frameNumber, source);
+			return;
+		}
+		final Callable<?> frameSource = source;
+		final BlobList blobs = spareBlobs.isEmpty() ? new BlobList()
+				: spareBlobs.removeFirst();
+		final BlobDetector detector = this.detector;
+		final DetectionSettings settings = frameSettings;
+		final boolean skip = skipUnchanged;
+		final PendingFrame frame = new PendingFrame(frameNumber);
+		frame.blobs = pool.submit(new Callable<BlobList>() {
+			public BlobList call() throws Exception {
+				if (!frame.claimed.compareAndSet(false, true)) {
+					// the frame was dropped before this worker got to it
+					return null;
+				}
+				try {
+					DetectionContext context = contexts.get();
+					context.setSkipUnchanged(skip);
+					detect(context, frameSource.call(), detector, settings);
+					blobs.clear();
+					blobs.addAll(context.getBlobs());
+					blobs.setSkippedFraction(context.getBlobs()
+							.getSkippedFraction());
+					return blobs;
+				} finally {
+					frame.done.countDown();
+				}
+			}
+		});
+		pending.addLast(frame);
+		maxPending = Math.max(maxPending, pending.size());
+	}
+
+	/**
+	 * Tracks every frame submitted before the given frame, then searches it
+	 * in the windows the predictor gives and tracks it. If the windows find
+	 * fewer flies than the frame before had, the whole frame is searched
+	 * after all.
+	 *
+	 * @param frameNumber
+	 *            the number of the frame.
+	 * @param source
+	 *            gives the frame when called.
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	private void searchWindows(int frameNumber, Callable<?> source)
+			throws IOException {
+		finish();
+		Object frame = read(source);
+		SearchWindows windows = predictor.predict(frameNumber);
+		if (windows != null) {
+			detect(localContext, frame, detector,
+					frameSettings.withSearchWindows(windows));
+		}
+		if (windows == null || localContext.getBlobs().size() < trackedFlies) {
+			detect(localContext, frame, detector, frameSettings);
+		}
+		trackedFlies = localContext.getBlobs().size();
+		tracker.track(frameNumber, localContext.getBlobs());
+	}
+
+	/**
+	 * Gets a frame on the submitting thread.
+	 *
+	 * @param source
+	 *            gives the frame when called.
+	 * @return the image or gray scale values of the frame.
+	 * @throws IOException
+	 *             if an image file could not be read.
+	 */
+	private Object read(Callable<?> source) throws IOException {
+		try {
+			return source.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits for the oldest submitted frame and tracks it. If finding its
+	 * flies failed, every other waiting frame is dropped.
+	 *
+	 * @throws IOException
+	 *             if the image file of the frame could not be read.
+	 */
+	private void trackOldest() throws IOException {
+		PendingFrame frame = pending.removeFirst();
+		BlobList blobs;
+		long start = System.nanoTime();
+		try {
+			blobs = frame.blobs.get();
+		} catch (InterruptedException e) {
+			abandon(frame);
+			abort();
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			abort();
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+		trackWait += System.nanoTime() - start;
+		trackedFlies = blobs.size();
+		tracker.track(frame.frameNumber, blobs);
+		spareBlobs.addLast(blobs);
+	}
+}
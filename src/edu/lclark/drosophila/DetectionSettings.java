@@ -0,0 +1,320 @@
+package edu.lclark.drosophila;
+
+/**
+ * The user's settings which decide what counts as a fly: how dark a pixel
+ * has to be, how many pixels a blob of dark pixels needs to have, and which
+ * parts of the frame are searched at all.
+ * <p>
+ * Settings are never changed once made, so the same settings can be handed
+ * to detection running on several threads. The Analyzer makes new settings
+ * whenever the user changes one of them.
+ */
+public class DetectionSettings {
+
+	/**
+	 * Decides which pixels are dark by comparing them with the pixels around
+	 * them, or null if every pixel is compared with the contrast threshold.
+	 */
+	private final AdaptiveThreshold adaptiveThreshold;
+
+	/**
+	 * The arenas the search is kept to, or null if the whole frame is
+	 * searched.
+	 */
+	private final ArenaRegion arenaRegion;
+
+	/**
+	 * What the frames look like without flies, for only searching what has
+	 * changed, or null if every dark pixel is searched.
+	 */
+	private final BackgroundModel backgroundModel;
+
+	/**
+	 * The parts of the frame which are left out of the search, or null if
+	 * the whole frame is searched.
+	 */
+	private final ExclusionMask exclusionMask;
+
+	/**
+	 * The lookup tables which tell if a pixel is dark enough.
+	 */
+	private final LuminanceTable luminanceTable;
+
+	/**
+	 * The largest number of pixels a blob can have and still be a fly.
+	 */
+	private final int maxArea;
+
+	/**
+	 * The smallest number of pixels a blob can have and still be a fly.
+	 */
+	private final int minArea;
+
+	/**
+	 * The only parts of the frame where a search for flies starts, or null
+	 * if it can start anywhere.
+	 */
+	private final SearchWindows searchWindows;
+
+	/**
+	 * Makes settings out of the given values.
+	 *
+	 * @param luminanceTable
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param minArea
+	 *            the smallest number of pixels a fly can have.
+	 * @param maxArea
+	 *            the largest number of pixels a fly can have.
+	 */
+	public DetectionSettings(LuminanceTable luminanceTable, int minArea,
+			int maxArea) {
+		this(luminanceTable, minArea, maxArea, null, null);
+	}
+
+	/**
+	 * Makes settings out of the given values, which leave the given parts of
+	 * the frame out of the search.
+	 *
+	 * @param luminanceTable
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param minArea
+	 *            the smallest number of pixels a fly can have.
+	 * @param maxArea
+	 *            the largest number of pixels a fly can have.
+	 * @param exclusionMask
+	 *            the parts of the frame to leave out, or null to search the
+	 *            whole frame.
+	 */
+	public DetectionSettings(LuminanceTable luminanceTable, int minArea,
+			int maxArea, ExclusionMask exclusionMask) {
+		this(luminanceTable, minArea, maxArea, exclusionMask, null);
+	}
+
+	/**
+	 * Makes settings out of the given values, which leave the given parts of
+	 * the frame out of the search and keep it to the given arenas.
+	 *
+	 * @param luminanceTable
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param minArea
+	 *            the smallest number of pixels a fly can have.
+	 * @param maxArea
+	 *            the largest number of pixels a fly can have.
+	 * @param exclusionMask
+	 *            the parts of the frame to leave out, or null to search the
+	 *            whole frame.
+	 * @param arenaRegion
+	 *            the arenas to keep the search to, or null to search the
+	 *            whole frame.
+	 */
+	public DetectionSettings(LuminanceTable luminanceTable, int minArea,
+			int maxArea, ExclusionMask exclusionMask, ArenaRegion arenaRegion) {
+		this(luminanceTable, minArea, maxArea, exclusionMask, arenaRegion,
+				null, null, null);
+	}
+
+	/**
+	 * Makes settings out of the given values, which leave the given parts of
+	 * the frame out of the search, keep it to the given arenas, only start it
+	 * in the given windows, maybe decide which pixels are dark by their
+	 * surroundings, and maybe only search what has changed from the
+	 * background.
+	 *
+	 * @param luminanceTable
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param minArea
+	 *            the smallest number of pixels a fly can have.
+	 * @param maxArea
+	 *            the largest number of pixels a fly can have.
+	 * @param exclusionMask
+	 *            the parts of the frame to leave out, or null to search the
+	 *            whole frame.
+	 * @param arenaRegion
+	 *            the arenas to keep the search to, or null to search the
+	 *            whole frame.
+	 * @param searchWindows
+	 *            the windows to start the search in, or null to search the
+	 *            whole frame.
+	 * @param adaptiveThreshold
+	 *            decides which pixels are dark by their surroundings, or null
+	 *            to compare every pixel with the contrast threshold.
+	 * @param backgroundModel
+	 *            what the frames look like without flies, or null to search
+	 *            every dark pixel.
+	 */
+	private DetectionSettings(LuminanceTable luminanceTable, int minArea,
+			int maxArea, ExclusionMask exclusionMask, ArenaRegion arenaRegion,
+			SearchWindows searchWindows, AdaptiveThreshold adaptiveThreshold,
+			BackgroundModel backgroundModel) {
+		this.luminanceTable = luminanceTable;
+		this.minArea = minArea;
+		this.maxArea = maxArea;
+		this.exclusionMask = exclusionMask;
+		this.arenaRegion = arenaRegion;
+		this.searchWindows = searchWindows;
+		this.adaptiveThreshold = adaptiveThreshold;
+		this.backgroundModel = backgroundModel;
+	}
+
+	/**
+	 * Returns what decides which pixels are dark by their surroundings.
+	 *
+	 * @return the adaptive threshold, or null if every pixel is compared with
+	 *         the contrast threshold.
+	 */
+	public AdaptiveThreshold getAdaptiveThreshold() {
+		return adaptiveThreshold;
+	}
+
+	/**
+	 * Returns the arenas the search is kept to.
+	 *
+	 * @return the region of arenas, or null if the whole frame is searched.
+	 */
+	public ArenaRegion getArenaRegion() {
+		return arenaRegion;
+	}
+
+	/**
+	 * Returns what the frames look like without flies.
+	 *
+	 * @return the background model, or null if every dark pixel is
+	 *         searched.
+	 */
+	public BackgroundModel getBackgroundModel() {
+		return backgroundModel;
+	}
+
+	/**
+	 * Returns the parts of the frame which are left out of the search.
+	 *
+	 * @return the exclusion mask, or null if the whole frame is searched.
+	 */
+	public ExclusionMask getExclusionMask() {
+		return exclusionMask;
+	}
+
+	/**
+	 * Returns the lookup tables which tell if a pixel is dark enough.
+	 *
+	 * @return the lookup tables.
+	 */
+	public LuminanceTable getLuminanceTable() {
+		return luminanceTable;
+	}
+
+	/**
+	 * Returns the largest number of pixels a blob can have and still be a
+	 * fly.
+	 *
+	 * @return the largest fly size in pixels.
+	 */
+	public int getMaxArea() {
+		return maxArea;
+	}
+
+	/**
+	 * Returns the smallest number of pixels a blob can have and still be a
+	 * fly.
+	 *
+	 * @return the smallest fly size in pixels.
+	 */
+	public int getMinArea() {
+		return minArea;
+	}
+
+	/**
+	 * Returns the only parts of the frame where the search for flies starts.
+	 *
+	 * @return the search windows, or null if the whole frame is searched.
+	 */
+	public SearchWindows getSearchWindows() {
+		return searchWindows;
+	}
+
+	/**
+	 * Checks if a blob of the given size is the right size to be a fly.
+	 *
+	 * @param area
+	 *            the number of pixels in the blob.
+	 * @return true if the blob is neither too small nor too large.
+	 */
+	public boolean isFlySize(int area) {
+		return area >= minArea && area <= maxArea;
+	}
+
+	/**
+	 * Makes a copy of these settings which decides which pixels are dark
+	 * with the given adaptive threshold instead.
+	 *
+	 * @param threshold
+	 *            decides which pixels are dark by their surroundings, or null
+	 *            to compare every pixel with the contrast threshold.
+	 * @return the new settings.
+	 */
+	public DetectionSettings withAdaptiveThreshold(AdaptiveThreshold threshold) {
+		return new DetectionSettings(luminanceTable, minArea, maxArea,
+				exclusionMask, arenaRegion, searchWindows, threshold,
+				backgroundModel);
+	}
+
+	/**
+	 * Makes a copy of these settings which counts blobs of the given sizes as
+	 * flies instead.
+	 *
+	 * @param min
+	 *            the smallest number of pixels a fly can have.
+	 * @param max
+	 *            the largest number of pixels a fly can have.
+	 * @return the new settings.
+	 */
+	public DetectionSettings withAreas(int min, int max) {
+		return new DetectionSettings(luminanceTable, min, max, exclusionMask,
+				arenaRegion, searchWindows, adaptiveThreshold, backgroundModel);
+	}
+
+	/**
+	 * Makes a copy of these settings which only searches what has changed
+	 * from the given background instead.
+	 *
+	 * @param model
+	 *            what the frames look like without flies, or null to search
+	 *            every dark pixel.
+	 * @return the new settings.
+	 */
+	public DetectionSettings withBackgroundModel(BackgroundModel model) {
+		return new DetectionSettings(luminanceTable, minArea, maxArea,
+				exclusionMask, arenaRegion, searchWindows, adaptiveThreshold,
+				model);
+	}
+
+	/**
+	 * Makes a copy of these settings which leaves the given parts of the
+	 * frame out of the search instead.
+	 *
+	 * @param mask
+	 *            the parts of the frame to leave out, or null to search the
+	 *            whole frame.
+	 * @return the new settings.
+	 */
+	public DetectionSettings withExclusionMask(ExclusionMask mask) {
+		return new DetectionSettings(luminanceTable, minArea, maxArea, mask,
+				arenaRegion, searchWindows, adaptiveThreshold,
+				backgroundModel);
+	}
+
+	/**
+	 * Makes a copy of these settings which only starts the search for flies
+	 * in the given windows instead.
+	 *
+	 * @param windows
+	 *            the windows to start the search in, or null to search the
+	 *            whole frame.
+	 * @return the new settings.
+	 */
+	public DetectionSettings withSearchWindows(SearchWindows windows) {
+		return new DetectionSettings(luminanceTable, minArea, maxArea,
+				exclusionMask, arenaRegion, windows, adaptiveThreshold,
+				backgroundModel);
+	}
+}
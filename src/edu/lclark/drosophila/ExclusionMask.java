@@ -0,0 +1,292 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The parts of a frame which are left out of the search for flies: arena
+ * walls, plate edges, shadows, and anything else that forms a blob of dark
+ * pixels too large to be a fly. They are found once, in one frame, and the
+ * frames after it skip them without looking at them, which is a lot of work
+ * saved when they cover much of the frame.
+ * <p>
+ * The mask is grown by a margin of a few pixels all round, so that a wall
+ * whose edge flickers from frame to frame doesn't leave slivers next to it
+ * which could be taken for flies. The price is that a fly touching an
+ * excluded part is only seen as far as it sticks out of it, so the mask
+ * has to be found again now and then, in case something moved.
+ * <p>
+ * A mask is never changed once made, so it can be shared between threads.
+ * It has the same layout as the dark mask (see {@link MaskKernel}).
+ */
+public class ExclusionMask {
+
+	/**
+	 * How many pixels the mask is grown by all round when nothing else is
+	 * asked for.
+	 */
+	public static final int DEFAULT_MARGIN = 2;
+
+	/**
+	 * The height of the frame the mask was found in.
+	 */
+	private final int height;
+
+	/**
+	 * One bit for every pixel of the frame, set if the pixel is left out.
+	 */
+	private final long[] plane;
+
+	/**
+	 * The width of the frame the mask was found in.
+	 */
+	private final int width;
+
+	/**
+	 * Makes a mask out of the given plane.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param plane
+	 *            one bit for every pixel, set if the pixel is left out.
+	 */
+	private ExclusionMask(int width, int height, long[] plane) {
+		this.width = width;
+		this.height = height;
+		this.plane = plane;
+	}
+
+	/**
+	 * Sets the bit of every pixel of the blob around the given dark pixel.
+	 *
+	 * @param seedX
+	 *            the x coordinate of a pixel of the blob.
+	 * @param seedY
+	 *            the y coordinate of a pixel of the blob.
+	 * @param dark
+	 *            the dark mask of the frame.
+	 * @param plane
+	 *            the plane the blob is added to.
+	 * @param stride
+	 *            the number of longs in each row of the masks.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param stack
+	 *            a stack with room for every pixel of the frame.
+	 */
+	private static void addBlob(int seedX, int seedY, long[] dark,
+			long[] plane, int stride, int width, int height, int[] stack) {
+		int curIdx = 0;
+		stack[curIdx++] = seedY * width + seedX;
+		plane[seedY * stride + (seedX >>> 6)] |= 1L << seedX;
+		while (curIdx > 0) {
+			int pixel = stack[--curIdx];
+			int y = pixel / width;
+			int x = pixel - y * width;
+			if (x > 0 && addPixel(x - 1, y, dark, plane, stride)) {
+				stack[curIdx++] = pixel - 1;
+			}
+			if (y > 0 && addPixel(x, y - 1, dark, plane, stride)) {
+				stack[curIdx++] = pixel - width;
+			}
+			if (x < width - 1 && addPixel(x + 1, y, dark, plane, stride)) {
+				stack[curIdx++] = pixel + 1;
+			}
+			if (y < height - 1 && addPixel(x, y + 1, dark, plane, stride)) {
+				stack[curIdx++] = pixel + width;
+			}
+		}
+	}
+
+	/**
+	 * Sets the bit of the given pixel if it is dark and not set yet.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel.
+	 * @param y
+	 *            the y coordinate of the pixel.
+	 * @param dark
+	 *            the dark mask of the frame.
+	 * @param plane
+	 *            the plane the pixel is added to.
+	 * @param stride
+	 *            the number of longs in each row of the masks.
+	 * @return true if the bit was set by this call.
+	 */
+	private static boolean addPixel(int x, int y, long[] dark, long[] plane,
+			int stride) {
+		int word = y * stride + (x >>> 6);
+		long bit = 1L << x;
+		if ((dark[word] & ~plane[word] & bit) == 0) {
+			return false;
+		}
+		plane[word] |= bit;
+		return true;
+	}
+
+	/**
+	 * Finds every blob of dark pixels in the given frame which is too large
+	 * to be a fly, and makes a mask of them.
+	 *
+	 * @param image
+	 *            the frame to search.
+	 * @param settings
+	 *            the settings which decide what counts as a fly. Any
+	 *            exclusion mask they have is not used.
+	 * @param context
+	 *            the scratch space to use.
+	 * @param margin
+	 *            how many pixels the mask is grown by all round.
+	 * @return the mask of the large blobs.
+	 */
+	public static ExclusionMask find(BufferedImage image,
+			DetectionSettings settings, DetectionContext context, int margin) {
+		settings = settings.withExclusionMask(null);
+		return find(context.prepare(image, settings), image.getWidth(),
+				image.getHeight(), settings, context, margin);
+	}
+
+	/**
+	 * Finds every blob of dark pixels in the given frame of gray scale values
+	 * which is too large to be a fly, and makes a mask of them.
+	 *
+	 * @param frame
+	 *            the frame to search.
+	 * @param settings
+	 *            the settings which decide what counts as a fly. Any
+	 *            exclusion mask they have is not used.
+	 * @param context
+	 *            the scratch space to use.
+	 * @param margin
+	 *            how many pixels the mask is grown by all round.
+	 * @return the mask of the large blobs.
+	 */
+	public static ExclusionMask find(LumaFrame frame,
+			DetectionSettings settings, DetectionContext context, int margin) {
+		settings = settings.withExclusionMask(null);
+		return find(context.prepare(frame, settings), frame.getWidth(),
+				frame.getHeight(), settings, context, margin);
+	}
+
+	/**
+	 * Finds the large blobs of a frame the context has been prepared for.
+	 *
+	 * @param pixels
+	 *            the bytes the context handed back for the frame.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param settings
+	 *            the settings the frame was prepared with.
+	 * @param context
+	 *            the prepared context.
+	 * @param margin
+	 *            how many pixels the mask is grown by all round.
+	 * @return the mask of the large blobs.
+	 */
+	private static ExclusionMask find(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context, int margin) {
+		context.maskRows(pixels, 0, height, settings.getLuminanceTable());
+		context.clearVisited();
+		long[] dark = context.getDarkMask();
+		long[] visited = context.getVisited();
+		int stride = context.getMaskStride();
+		long[] plane = new long[height * stride];
+		for (int j = 0; j < height; j++) {
+			int word = j * stride;
+			for (int w = 0; w < stride; w++, word++) {
+				long unsearched;
+				while ((unsearched = dark[word] & ~visited[word]) != 0) {
+					int i = (w << 6) + Long.numberOfTrailingZeros(unsearched);
+					context.visitDark(i, j);
+					if (FloodFillDetector.fill(i, j, pixels, width, height,
+							settings, context, true) > settings.getMaxArea()) {
+						addBlob(i, j, dark, plane, stride, width, height,
+								context.getStack());
+					}
+				}
+			}
+		}
+		for (int i = 0; i < margin; i++) {
+			plane = grow(plane, stride, width, height);
+		}
+		return new ExclusionMask(width, height, plane);
+	}
+
+	/**
+	 * Grows the set pixels of a plane by one pixel to the left, right, top
+	 * and bottom.
+	 *
+	 * @param plane
+	 *            the plane to grow.
+	 * @param stride
+	 *            the number of longs in each row of the plane.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @return a new plane with the grown pixels.
+	 */
+	private static long[] grow(long[] plane, int stride, int width,
+			int height) {
+		long[] grown = new long[plane.length];
+		// the bits of the last long of a row which are inside the frame
+		long lastWord = (width & 63) == 0 ? -1L : (1L << width) - 1;
+		for (int y = 0; y < height; y++) {
+			int row = y * stride;
+			for (int w = 0; w < stride; w++) {
+				long bits = plane[row + w];
+				long left = w > 0 ? plane[row + w - 1] >>> 63 : 0;
+				long right = w < stride - 1 ? plane[row + w + 1] << 63 : 0;
+				bits |= (bits << 1) | left | (plane[row + w] >>> 1) | right;
+				if (y > 0) {
+					bits |= plane[row - stride + w];
+				}
+				if (y < height - 1) {
+					bits |= plane[row + stride + w];
+				}
+				grown[row + w] = w == stride - 1 ? bits & lastWord : bits;
+			}
+		}
+		return grown;
+	}
+
+	/**
+	 * Checks if this mask was found in a frame of the given size.
+	 *
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @return true if the mask can be used on the frame.
+	 */
+	public boolean fits(int width, int height) {
+		return width == this.width && height == this.height;
+	}
+
+	/**
+	 * Counts the pixels which are left out.
+	 *
+	 * @return the number of pixels left out.
+	 */
+	public int getExcludedPixels() {
+		int count = 0;
+		for (long bits : plane) {
+			count += Long.bitCount(bits);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the plane of left out pixels. It must not be changed.
+	 *
+	 * @return one bit for every pixel, set if the pixel is left out.
+	 */
+	public long[] getPlane() {
+		return plane;
+	}
+}
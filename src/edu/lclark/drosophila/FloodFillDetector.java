@@ -0,0 +1,232 @@
+package edu.lclark.drosophila;
+
+/**
+ * Finds flies the way flydentify always has: it goes through the frame row by
+ * row, and whenever it comes to a dark pixel which hasn't been searched it
+ * flood fills the blob around it, adding up how many pixels it has and where
+ * they are. Which pixels are dark is worked out for the whole frame first,
+ * into the dark mask of the context.
+ * <p>
+ * The dark mask and the searched pixels are kept as two bit planes with the
+ * same layout, so the scan for the next blob goes through them a long at a
+ * time: the dark pixels of 64 pixels which haven't been searched are one AND
+ * NOT away, and a long of nothing but background is skipped in one step.
+ */
+public class FloodFillDetector implements BlobDetector {
+
+	/**
+	 * Flood fills the blob around the given dark pixel, and adds it to the
+	 * blobs of the context if it is the right size to be a fly. The pixel
+	 * must already be marked as searched.
+	 * <p>
+	 * Once the blob has more pixels than a fly can have it can't be a fly
+	 * any more, so the fill stops adding up where its pixels are and only
+	 * marks the rest of the blob as searched, which it still has to do so
+	 * that no part of the blob is taken for a blob of its own.
+	 *
+	 * @param seedX
+	 *            the x coordinate of the pixel to start from.
+	 * @param seedY
+	 *            the y coordinate of the pixel to start from.
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 * @param context
+	 *            the scratch space to use.
+	 * @param masked
+	 *            true if the dark mask of the whole frame has been worked
+	 *            out, false if every pixel the fill comes to has to be
+	 *            checked with the lookup tables. In that case every pixel
+	 *            checked is marked as searched, dark or not.
+	 * @return the number of pixels in the blob, or a number larger than the
+	 *         largest fly if the blob is too large to be a fly.
+	 */
+	static int fill(int seedX, int seedY, byte[] pixels, int width,
+			int height, DetectionSettings settings, DetectionContext context,
+			boolean masked) {
+		LuminanceTable table = settings.getLuminanceTable();
+		int maxArea = settings.getMaxArea();
+		// the flood fill stack, holding pixel indices (y * width + x)
+		int stack[] = context.getStack();
+		long totalX = 0;
+		long totalY = 0;
+		int numPixels = 0;
+		// the left-most, then top-most pixel of the blob
+		int firstX = seedX;
+		int firstY = seedY;
+		// Pixels are marked as searched when they are pushed, so that no
+		// pixel is counted twice.
+		int curIdx = 0;
+		stack[curIdx] = seedY * width + seedX;
+		curIdx++;
+		while (curIdx > 0) {
+			if (numPixels == maxArea) {
+				// the next pixel makes the blob too large to be a fly
+				markRest(stack, curIdx, pixels, width, height, table, context,
+						masked);
+				return maxArea + 1;
+			}
+			curIdx--;
+			int pixel = stack[curIdx];
+			int tempy = pixel / width;
+			int tempx = pixel - tempy * width;
+			totalX += tempx;
+			totalY += tempy;
+			numPixels++;
+			if (tempx < firstX || (tempx == firstX && tempy < firstY)) {
+				firstX = tempx;
+				firstY = tempy;
+			}
+			curIdx = pushNeighbors(stack, curIdx, pixel, tempx, tempy,
+					pixels, width, height, table, context, masked);
+		}
+		if (settings.isFlySize(numPixels)) {
+			// if the blob is large enough to be a fly, but not too big, keep
+			// it as a temporary fly
+			context.getBlobs().add(numPixels, totalX, totalY,
+					firstX * height + firstY);
+		}
+		return numPixels;
+	}
+
+	/**
+	 * Marks every pixel of the blob which is still to be filled as searched,
+	 * without adding up anything.
+	 *
+	 * @param stack
+	 *            the flood fill stack.
+	 * @param curIdx
+	 *            the number of pixels on the stack.
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param context
+	 *            the scratch space to use.
+	 * @param masked
+	 *            true to go by the dark mask, false to go by the tables.
+	 */
+	private static void markRest(int[] stack, int curIdx, byte[] pixels,
+			int width, int height, LuminanceTable table,
+			DetectionContext context, boolean masked) {
+		while (curIdx > 0) {
+			curIdx--;
+			int pixel = stack[curIdx];
+			int tempy = pixel / width;
+			curIdx = pushNeighbors(stack, curIdx, pixel, pixel - tempy
+					* width, tempy, pixels, width, height, table, context,
+					masked);
+		}
+	}
+
+	/**
+	 * Marks the dark neighbors of a pixel which haven't been searched yet as
+	 * searched, and pushes them on the flood fill stack.
+	 *
+	 * @param stack
+	 *            the flood fill stack.
+	 * @param curIdx
+	 *            the number of pixels on the stack.
+	 * @param pixel
+	 *            the index (y * width + x) of the pixel.
+	 * @param tempx
+	 *            the x coordinate of the pixel.
+	 * @param tempy
+	 *            the y coordinate of the pixel.
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param context
+	 *            the scratch space to use.
+	 * @param masked
+	 *            true to go by the dark mask, false to go by the tables.
+	 * @return the number of pixels on the stack afterwards.
+	 */
+	private static int pushNeighbors(int[] stack, int curIdx, int pixel,
+			int tempx, int tempy, byte[] pixels, int width, int height,
+			LuminanceTable table, DetectionContext context, boolean masked) {
+		if ((tempx > 0)
+				&& visit(tempx - 1, tempy, pixels, table, context, masked)) {
+			stack[curIdx] = pixel - 1;
+			curIdx++;
+		}
+		if ((tempy > 0)
+				&& visit(tempx, tempy - 1, pixels, table, context, masked)) {
+			stack[curIdx] = pixel - width;
+			curIdx++;
+		}
+		if ((tempx < width - 1)
+				&& visit(tempx + 1, tempy, pixels, table, context, masked)) {
+			stack[curIdx] = pixel + 1;
+			curIdx++;
+		}
+		if ((tempy < height - 1)
+				&& visit(tempx, tempy + 1, pixels, table, context, masked)) {
+			stack[curIdx] = pixel + width;
+			curIdx++;
+		}
+		return curIdx;
+	}
+
+	/**
+	 * Marks the given pixel as searched if it is dark and hasn't been
+	 * searched yet, going by the dark mask or by the lookup tables.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel.
+	 * @param y
+	 *            the y coordinate of the pixel.
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param context
+	 *            the scratch space to use.
+	 * @param masked
+	 *            true to go by the dark mask, false to go by the tables.
+	 * @return true if the pixel is dark and wasn't searched before.
+	 */
+	private static boolean visit(int x, int y, byte[] pixels,
+			LuminanceTable table, DetectionContext context, boolean masked) {
+		return masked ? context.visitDark(x, y) : context.visitPixel(x, y,
+				pixels, table);
+	}
+
+	@Override
+	public void detect(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context) {
+		context.maskRows(pixels, 0, height, settings.getLuminanceTable());
+		context.clearVisited();
+		long[] dark = context.getDarkMask();
+		long[] visited = context.getVisited();
+		int stride = context.getMaskStride();
+		for (int j = 0; j < height; j++) {
+			int word = j * stride;
+			for (int w = 0; w < stride; w++, word++) {
+				// the dark pixels of these 64 which haven't been searched.
+				// Filling a blob marks its pixels as searched, so this is
+				// worked out again after every blob.
+				long unsearched;
+				while ((unsearched = dark[word] & ~visited[word]) != 0) {
+					int i = (w << 6) + Long.numberOfTrailingZeros(unsearched);
+					context.visitDark(i, j);
+					fill(i, j, pixels, width, height, settings, context, true);
+				}
+			}
+		}
+	}
+}
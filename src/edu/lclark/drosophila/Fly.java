@@ -150,8 +150,10 @@ public class Fly {
 	public Fly copyThisFly(){
 		Fly newFly = new Fly(numFrames);
 		for(int i = 0; i < numFrames; i++){
+			// a fly tracked from the middle of a movie has no position
+			// before that
 			if(x[i] == -1){
-				break;
+				continue;
 			}
 			newFly.addFrameInfo(i,  x[i], y[i]);
 		}
@@ -0,0 +1,442 @@
+package edu.lclark.drosophila;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded frames kept around, so that analyzing the same images or movie
+ * again doesn't have to decode them again. Frames are kept as the BGR bytes
+ * the blob detectors read, and handed back as TYPE_3BYTE_BGR images around
+ * those bytes, so a frame from the cache costs nothing to search.
+ * <p>
+ * The frames used least recently are moved out of memory into a spill file
+ * once the frames in memory take up more than the memory budget. Once the
+ * spill file is full as well, frames moved out of memory are dropped. Frames
+ * read back from the spill file stay there rather than being moved into
+ * memory again, so reading every frame of a run in order, as another analysis
+ * of it does, never pushes out a frame which is still to come. The file is a
+ * temporary file which is deleted when the cache is cleared or the program
+ * ends.
+ * <p>
+ * Frames are kept under keys made by {@link #key(File)} for image files and
+ * {@link #key(File, int, int)} for movie frames. The keys hold the time the
+ * file was last changed, so a file which changes on disk is decoded again.
+ * A cache can be used from several threads at once.
+ */
+public class FrameCache {
+
+	/**
+	 * A frame in the cache.
+	 */
+	private static class Entry {
+
+		/**
+		 * The width of the frame in pixels.
+		 */
+		private final int width;
+
+		/**
+		 * The height of the frame in pixels.
+		 */
+		private final int height;
+
+		/**
+		 * The BGR bytes of the frame, or null if it is in the spill file.
+		 */
+		private byte[] pixels;
+
+		/**
+		 * Where the frame starts in the spill file.
+		 */
+		private long offset;
+
+		public Entry(int width, int height, byte[] pixels) {
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * The most bytes of frames kept in memory when nothing else is asked
+	 * for.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+
+	/**
+	 * The most bytes of frames kept in the spill file when nothing else is
+	 * asked for.
+	 */
+	public static final long DEFAULT_SPILL_BUDGET = 2L << 30;
+
+	/**
+	 * Returns the key the decoded image of the given image file is kept
+	 * under.
+	 *
+	 * @param file
+	 *            the image file.
+	 * @return the key.
+	 */
+	public static String key(File file) {
+		return file.getAbsolutePath() + "@" + file.lastModified();
+	}
+
+	/**
+	 * Returns the key a frame of the given movie is kept under.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @param sampleRate
+	 *            how many frames of the movie there are for every frame
+	 *            analyzed.
+	 * @param frameNumber
+	 *            the number of the analyzed frame.
+	 * @return the key.
+	 */
+	public static String key(File movie, int sampleRate, int frameNumber) {
+		return key(movie) + "/" + sampleRate + "#" + frameNumber;
+	}
+
+	/**
+	 * The frames in memory, the ones used least recently first.
+	 */
+	private final LinkedHashMap<String, Entry> inMemory;
+
+	/**
+	 * The frames which are only in the spill file.
+	 */
+	private final HashMap<String, Entry> spilled;
+
+	/**
+	 * The number of frames found in memory.
+	 */
+	private long hits;
+
+	/**
+	 * The number of bytes of frames in memory.
+	 */
+	private long memoryBytes;
+
+	/**
+	 * The most bytes of frames kept in memory.
+	 */
+	private final long memoryBudget;
+
+	/**
+	 * The number of frames asked for which weren't in the cache.
+	 */
+	private long misses;
+
+	/**
+	 * The number of bytes written to the spill file.
+	 */
+	private long spillBytes;
+
+	/**
+	 * The most bytes written to the spill file.
+	 */
+	private final long spillBudget;
+
+	/**
+	 * The spill file, or null if nothing has been spilled yet.
+	 */
+	private File spillFile;
+
+	/**
+	 * The number of frames read back from the spill file.
+	 */
+	private long spillHits;
+
+	/**
+	 * The open spill file, or null if nothing has been spilled yet.
+	 */
+	private RandomAccessFile spillStore;
+
+	/**
+	 * Makes an empty cache with the default budgets.
+	 */
+	public FrameCache() {
+		this(DEFAULT_MEMORY_BUDGET, DEFAULT_SPILL_BUDGET);
+	}
+
+	/**
+	 * Makes an empty cache with the given budgets.
+	 *
+	 * @param memoryBudget
+	 *            the most bytes of frames to keep in memory.
+	 * @param spillBudget
+	 *            the most bytes of frames to write to the spill file, or 0
+	 *            to drop frames which don't fit in memory.
+	 */
+	public FrameCache(long memoryBudget, long spillBudget) {
+		if (memoryBudget < 0 || spillBudget < 0) {
+			throw new IllegalArgumentException("Budgets must be at least 0");
+		}
+		this.memoryBudget = memoryBudget;
+		this.spillBudget = spillBudget;
+		inMemory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		spilled = new HashMap<String, Entry>();
+	}
+
+	/**
+	 * Drops every frame and deletes the spill file.
+	 */
+	public synchronized void clear() {
+		inMemory.clear();
+		spilled.clear();
+		memoryBytes = 0;
+		spillBytes = 0;
+		closeSpill();
+	}
+
+	/**
+	 * Closes and deletes the spill file, if there is one.
+	 */
+	private void closeSpill() {
+		if (spillStore != null) {
+			try {
+				spillStore.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			spillFile.delete();
+			spillStore = null;
+			spillFile = null;
+		}
+	}
+
+	/**
+	 * Checks if the frame kept under the given key is in the cache, without
+	 * counting it as a hit or a miss.
+	 *
+	 * @param key
+	 *            the key of the frame.
+	 * @return true if the frame is in memory or in the spill file.
+	 */
+	public synchronized boolean contains(String key) {
+		return inMemory.containsKey(key) || spilled.containsKey(key);
+	}
+
+	/**
+	 * Checks if frames taking up the given number of bytes altogether can
+	 * all be kept at once, in memory or in the spill file.
+	 *
+	 * @param bytes
+	 *            the number of bytes, three for every pixel.
+	 * @return true if the frames fit in the budgets.
+	 */
+	public boolean fits(long bytes) {
+		return bytes <= memoryBudget + spillBudget;
+	}
+
+	/**
+	 * Returns the frame kept under the given key.
+	 *
+	 * @param key
+	 *            the key of the frame.
+	 * @return the frame as a TYPE_3BYTE_BGR image, or null if it isn't in
+	 *         the cache. The image must not be changed.
+	 */
+	public synchronized BufferedImage get(String key) {
+		Entry entry = inMemory.get(key);
+		if (entry != null) {
+			hits++;
+			return toImage(entry);
+		}
+		entry = spilled.get(key);
+		if (entry != null) {
+			byte[] pixels = new byte[entry.width * entry.height * 3];
+			try {
+				spillStore.seek(entry.offset);
+				spillStore.readFully(pixels);
+				spillHits++;
+				return toImage(new Entry(entry.width, entry.height, pixels));
+			} catch (IOException e) {
+				spilled.remove(key);
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Returns the number of frames found in memory.
+	 *
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of bytes of frames in memory.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * Returns the number of frames asked for which weren't in the cache.
+	 *
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of bytes written to the spill file.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long getSpillBytes() {
+		return spillBytes;
+	}
+
+	/**
+	 * Returns the number of frames read back from the spill file.
+	 *
+	 * @return the number of hits in the spill file.
+	 */
+	public synchronized long getSpillHits() {
+		return spillHits;
+	}
+
+	/**
+	 * Puts a frame into the cache, replacing any frame kept under the same
+	 * key. The frame may be kept as it is if it is a plain TYPE_3BYTE_BGR
+	 * image, so it must not be changed afterwards.
+	 *
+	 * @param key
+	 *            the key to keep the frame under.
+	 * @param image
+	 *            the frame.
+	 */
+	public synchronized void put(String key, BufferedImage image) {
+		Entry replaced = inMemory.remove(key);
+		if (replaced != null) {
+			memoryBytes -= replaced.pixels.length;
+		}
+		spilled.remove(key);
+		Entry entry = new Entry(image.getWidth(), image.getHeight(),
+				toBgr(image));
+		inMemory.put(key, entry);
+		memoryBytes += entry.pixels.length;
+		Iterator<Map.Entry<String, Entry>> oldest = inMemory.entrySet()
+				.iterator();
+		while (memoryBytes > memoryBudget && oldest.hasNext()) {
+			Map.Entry<String, Entry> next = oldest.next();
+			Entry old = next.getValue();
+			oldest.remove();
+			memoryBytes -= old.pixels.length;
+			spill(next.getKey(), old);
+		}
+	}
+
+	/**
+	 * Writes a frame which is moved out of memory to the spill file, unless
+	 * the spill file is full, in which case the frame is dropped. The spill
+	 * file is written from the start again once none of the frames in it
+	 * are kept any more.
+	 *
+	 * @param key
+	 *            the key of the frame.
+	 * @param entry
+	 *            the frame, with its pixels.
+	 */
+	private void spill(String key, Entry entry) {
+		byte[] pixels = entry.pixels;
+		entry.pixels = null;
+		if (spilled.isEmpty()) {
+			spillBytes = 0;
+		}
+		if (spillBytes + pixels.length > spillBudget) {
+			return;
+		}
+		try {
+			if (spillStore == null) {
+				spillFile = File.createTempFile("frames", ".cache");
+				spillFile.deleteOnExit();
+				spillStore = new RandomAccessFile(spillFile, "rw");
+			}
+			spillStore.seek(spillBytes);
+			spillStore.write(pixels);
+		} catch (IOException e) {
+			// without a spill file the frame is just dropped
+			return;
+		}
+		entry.offset = spillBytes;
+		spillBytes += pixels.length;
+		spilled.put(key, entry);
+	}
+
+	/**
+	 * Returns the BGR bytes of an image, three bytes per pixel, row by row.
+	 * A plain TYPE_3BYTE_BGR image gives its own bytes, any other image is
+	 * converted through getRGB.
+	 *
+	 * @param image
+	 *            the image.
+	 * @return the bytes.
+	 */
+	private static byte[] toBgr(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		WritableRaster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+				&& raster.getParent() == null
+				&& raster.getDataBuffer().getNumBanks() == 1) {
+			byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			if (data.length == width * height * 3) {
+				return data;
+			}
+		}
+		byte[] pixels = new byte[width * height * 3];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int offset = y * width * 3;
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				pixels[offset++] = (byte) rgb;
+				pixels[offset++] = (byte) (rgb >> 8);
+				pixels[offset++] = (byte) (rgb >> 16);
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Makes a TYPE_3BYTE_BGR image around the bytes of a frame.
+	 *
+	 * @param entry
+	 *            the frame, with its pixels.
+	 * @return the image.
+	 */
+	private static BufferedImage toImage(Entry entry) {
+		DataBufferByte buffer = new DataBufferByte(entry.pixels,
+				entry.pixels.length);
+		WritableRaster raster = Raster.createInterleavedRaster(buffer,
+				entry.width, entry.height, entry.width * 3, 3, new int[] { 2,
+						1, 0 }, null);
+		ComponentColorModel colors = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		return new BufferedImage(colors, raster, false, null);
+	}
+}
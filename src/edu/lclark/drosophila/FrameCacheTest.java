@@ -0,0 +1,95 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.*;
+
+public class FrameCacheTest {
+
+	/**
+	 * Makes a frame of random pixels, 10 by 10 so that it takes 300 bytes.
+	 */
+	private BufferedImage makeFrame(Random random, int type) {
+		BufferedImage image = new BufferedImage(10, 10, type);
+		for (int y = 0; y < 10; y++) {
+			for (int x = 0; x < 10; x++) {
+				image.setRGB(x, y, random.nextInt(0x1000000));
+			}
+		}
+		return image;
+	}
+
+	private void assertSamePixels(BufferedImage expected, BufferedImage found) {
+		assertEquals(BufferedImage.TYPE_3BYTE_BGR, found.getType());
+		assertEquals(expected.getWidth(), found.getWidth());
+		assertEquals(expected.getHeight(), found.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertEquals(expected.getRGB(x, y), found.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void testFramesSpillAndDrop() {
+		Random random = new Random(41);
+		// room for two frames in memory and two in the spill file
+		FrameCache cache = new FrameCache(600, 600);
+		BufferedImage[] frames = new BufferedImage[5];
+		for (int i = 0; i < frames.length; i++) {
+			// odd frames have to be converted to BGR
+			frames[i] = makeFrame(random, i % 2 == 0
+					? BufferedImage.TYPE_3BYTE_BGR
+					: BufferedImage.TYPE_INT_RGB);
+			cache.put("frame" + i, frames[i]);
+		}
+		assertEquals(600, cache.getMemoryBytes());
+		assertEquals(600, cache.getSpillBytes());
+		// the first two were spilled, and the spill file was full by the
+		// time the third was moved out of memory
+		assertTrue(cache.contains("frame0"));
+		assertTrue(cache.contains("frame1"));
+		assertFalse(cache.contains("frame2"));
+		assertTrue(cache.contains("frame3"));
+		assertTrue(cache.contains("frame4"));
+
+		assertSamePixels(frames[0], cache.get("frame0"));
+		assertSamePixels(frames[1], cache.get("frame1"));
+		assertNull(cache.get("frame2"));
+		assertSamePixels(frames[3], cache.get("frame3"));
+		assertSamePixels(frames[4], cache.get("frame4"));
+		assertSamePixels(frames[0], cache.get("frame0"));
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.getSpillHits());
+		assertEquals(1, cache.getMisses());
+		// frames read back from the spill file stay there
+		assertEquals(600, cache.getMemoryBytes());
+		assertTrue(cache.contains("frame3"));
+
+		cache.clear();
+		assertFalse(cache.contains("frame0"));
+		assertFalse(cache.contains("frame4"));
+		assertEquals(0, cache.getMemoryBytes());
+		assertEquals(0, cache.getSpillBytes());
+	}
+
+	@Test
+	public void testPutReplacesTheFrame() {
+		Random random = new Random(43);
+		FrameCache cache = new FrameCache(600, 0);
+		cache.put("frame", makeFrame(random, BufferedImage.TYPE_INT_RGB));
+		BufferedImage replacement = makeFrame(random,
+				BufferedImage.TYPE_INT_RGB);
+		cache.put("frame", replacement);
+		assertEquals(300, cache.getMemoryBytes());
+		assertSamePixels(replacement, cache.get("frame"));
+		// without a spill file, frames which don't fit are dropped
+		cache.put("other", makeFrame(random, BufferedImage.TYPE_INT_RGB));
+		cache.put("third", makeFrame(random, BufferedImage.TYPE_INT_RGB));
+		assertFalse(cache.contains("frame"));
+		assertEquals(0, cache.getSpillBytes());
+	}
+}
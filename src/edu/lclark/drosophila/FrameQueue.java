@@ -0,0 +1,221 @@
+package edu.lclark.drosophila;
+
+/**
+ * A bounded ring of decoded frames, handed from the thread decoding a movie
+ * to the thread which submits them to the detection pipeline, so that
+ * decoding the next frames goes on while the frames before are searched and
+ * tracked. Frames come out in the order they went in, and are numbered in
+ * that order from 0.
+ * <p>
+ * A full ring makes the decoder wait and an empty one the submitting thread,
+ * which is how the faster stage is held back to the pace of the slower one.
+ * The queue keeps count of how long each side waited and how full the ring
+ * got, so the slow stage of a run can be told from the numbers: a decoder
+ * which waits a lot is held back by detection, a submitting thread which
+ * waits a lot by decoding.
+ * <p>
+ * The decoder ends the run with {@link #close} once every frame has been
+ * put, or with {@link #fail} if decoding went wrong. The submitting thread
+ * can give up on the rest with {@link #cancel}, which lets the decoder stop.
+ */
+public class FrameQueue {
+
+	/**
+	 * Whether the submitting thread has given up on the rest of the frames.
+	 */
+	private boolean cancelled;
+
+	/**
+	 * Whether every frame has been put.
+	 */
+	private boolean closed;
+
+	/**
+	 * The number of frames in the ring.
+	 */
+	private int depth;
+
+	/**
+	 * Why decoding went wrong, or null if it didn't.
+	 */
+	private Throwable failure;
+
+	/**
+	 * The ring of frames.
+	 */
+	private final Object[] frames;
+
+	/**
+	 * The index of the oldest frame in the ring.
+	 */
+	private int head;
+
+	/**
+	 * The most frames the ring held at once.
+	 */
+	private int maxDepth;
+
+	/**
+	 * How long the decoder waited for room in the ring, in nanoseconds.
+	 */
+	private long putWait;
+
+	/**
+	 * How long the submitting thread waited for a frame, in nanoseconds.
+	 */
+	private long takeWait;
+
+	/**
+	 * Makes an empty queue.
+	 *
+	 * @param capacity
+	 *            the most frames the ring holds, at least 1.
+	 */
+	public FrameQueue(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		frames = new Object[capacity];
+	}
+
+	/**
+	 * Gives up on the frames which haven't been taken yet. They are dropped,
+	 * and the decoder's next put tells it to stop.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		while (depth > 0) {
+			frames[head] = null;
+			head = (head + 1) % frames.length;
+			depth--;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Tells the submitting thread that every frame has been put.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Tells the submitting thread that decoding went wrong. Taking a frame
+	 * throws once the frames put before have been taken.
+	 *
+	 * @param cause
+	 *            what went wrong.
+	 */
+	public synchronized void fail(Throwable cause) {
+		failure = cause;
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the most frames the ring holds.
+	 *
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return frames.length;
+	}
+
+	/**
+	 * Returns the number of frames in the ring right now.
+	 *
+	 * @return the depth of the queue.
+	 */
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the most frames the ring held at once.
+	 *
+	 * @return the largest depth.
+	 */
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns how long the decoder waited for room in the ring, which is how
+	 * long it was held back by the stages after it.
+	 *
+	 * @return the time in nanoseconds.
+	 */
+	public synchronized long getPutWait() {
+		return putWait;
+	}
+
+	/**
+	 * Returns how long the submitting thread waited for the decoder.
+	 *
+	 * @return the time in nanoseconds.
+	 */
+	public synchronized long getTakeWait() {
+		return takeWait;
+	}
+
+	/**
+	 * Puts a frame into the ring, waiting for room if it is full.
+	 *
+	 * @param frame
+	 *            the frame, a BufferedImage or a LumaFrame.
+	 * @return true if the frame was put, false if the submitting thread has
+	 *         given up and the decoder should stop.
+	 * @throws InterruptedException
+	 *             if the decoder was interrupted while waiting.
+	 */
+	public synchronized boolean put(Object frame) throws InterruptedException {
+		if (depth == frames.length && !cancelled) {
+			long start = System.nanoTime();
+			while (depth == frames.length && !cancelled) {
+				wait();
+			}
+			putWait += System.nanoTime() - start;
+		}
+		if (cancelled) {
+			return false;
+		}
+		frames[(head + depth) % frames.length] = frame;
+		depth++;
+		maxDepth = Math.max(maxDepth, depth);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Takes the oldest frame out of the ring, waiting for the decoder if it
+	 * is empty.
+	 *
+	 * @return the frame, or null once every frame has been taken.
+	 * @throws InterruptedException
+	 *             if the submitting thread was interrupted while waiting.
+	 * @throws IllegalStateException
+	 *             if decoding went wrong.
+	 */
+	public synchronized Object take() throws InterruptedException {
+		if (depth == 0 && !closed) {
+			long start = System.nanoTime();
+			while (depth == 0 && !closed) {
+				wait();
+			}
+			takeWait += System.nanoTime() - start;
+		}
+		if (depth == 0) {
+			if (failure != null) {
+				throw new IllegalStateException("Decoding failed", failure);
+			}
+			return null;
+		}
+		Object frame = frames[head];
+		frames[head] = null;
+		head = (head + 1) % frames.length;
+		depth--;
+		notifyAll();
+		return frame;
+	}
+}
@@ -0,0 +1,179 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class FrameQueueTest {
+
+	/**
+	 * A thread which puts one frame into a queue, and keeps what the put
+	 * returned.
+	 */
+	private static class Putter extends Thread {
+
+		private final Object frame;
+
+		private final FrameQueue queue;
+
+		private volatile Boolean put;
+
+		public Putter(FrameQueue queue, Object frame) {
+			this.queue = queue;
+			this.frame = frame;
+		}
+
+		@Override
+		public void run() {
+			try {
+				put = queue.put(frame);
+			} catch (InterruptedException e) {
+				// put stays null
+			}
+		}
+	}
+
+	/**
+	 * A thread which takes one frame out of a queue, and keeps the frame or
+	 * why taking it failed.
+	 */
+	private static class Taker extends Thread {
+
+		private volatile IllegalStateException failure;
+
+		private volatile Object frame;
+
+		private final FrameQueue queue;
+
+		public Taker(FrameQueue queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				frame = queue.take();
+			} catch (IllegalStateException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				// frame stays null
+			}
+		}
+	}
+
+	/**
+	 * Checks that the thread is still waiting a while after it was started.
+	 */
+	private void assertWaiting(Thread thread) throws InterruptedException {
+		thread.join(200);
+		assertTrue(thread.isAlive());
+	}
+
+	/**
+	 * Waits for the thread to end, and checks that it did.
+	 */
+	private void assertEnds(Thread thread) throws InterruptedException {
+		thread.join(10000);
+		assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void testFramesComeOutInOrder() throws InterruptedException {
+		FrameQueue queue = new FrameQueue(3);
+		// going around the ring a few times
+		int taken = 0;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.put(i));
+			if (i % 3 == 2) {
+				while (queue.getDepth() > 0) {
+					assertEquals(taken++, queue.take());
+				}
+			}
+		}
+		assertTrue(queue.put("last"));
+		queue.close();
+		assertEquals(9, queue.take());
+		assertEquals("last", queue.take());
+		assertNull(queue.take());
+		assertNull(queue.take());
+		assertEquals(3, queue.getMaxDepth());
+	}
+
+	@Test
+	public void testPutWaitsForRoom() throws InterruptedException {
+		FrameQueue queue = new FrameQueue(1);
+		assertTrue(queue.put("first"));
+		Putter putter = new Putter(queue, "second");
+		putter.start();
+		assertWaiting(putter);
+		assertEquals(1, queue.getDepth());
+		assertEquals("first", queue.take());
+		assertEnds(putter);
+		assertEquals(Boolean.TRUE, putter.put);
+		assertEquals("second", queue.take());
+		assertTrue(queue.getPutWait() > 0);
+	}
+
+	@Test
+	public void testTakeWaitsForFrame() throws InterruptedException {
+		FrameQueue queue = new FrameQueue(2);
+		Taker taker = new Taker(queue);
+		taker.start();
+		assertWaiting(taker);
+		assertTrue(queue.put("frame"));
+		assertEnds(taker);
+		assertEquals("frame", taker.frame);
+		assertTrue(queue.getTakeWait() > 0);
+
+		// closing lets a waiting take end the run
+		taker = new Taker(queue);
+		taker.start();
+		assertWaiting(taker);
+		queue.close();
+		assertEnds(taker);
+		assertNull(taker.frame);
+	}
+
+	@Test
+	public void testCancelStopsTheDecoder() throws InterruptedException {
+		FrameQueue queue = new FrameQueue(1);
+		assertTrue(queue.put("first"));
+		Putter putter = new Putter(queue, "second");
+		putter.start();
+		assertWaiting(putter);
+		queue.cancel();
+		assertEnds(putter);
+		assertEquals(Boolean.FALSE, putter.put);
+		// the frames which were waiting are dropped
+		assertEquals(0, queue.getDepth());
+		assertFalse(queue.put("third"));
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testFailThrowsOnceTheFramesAreTaken()
+			throws InterruptedException {
+		FrameQueue queue = new FrameQueue(3);
+		assertTrue(queue.put("first"));
+		assertTrue(queue.put("second"));
+		RuntimeException cause = new RuntimeException("Broken movie");
+		queue.fail(cause);
+		assertEquals("first", queue.take());
+		assertEquals("second", queue.take());
+		try {
+			queue.take();
+			fail("Failed decoding ended like the end of the movie");
+		} catch (IllegalStateException e) {
+			assertSame(cause, e.getCause());
+		}
+
+		// a waiting take throws as well
+		queue = new FrameQueue(3);
+		Taker taker = new Taker(queue);
+		taker.start();
+		assertWaiting(taker);
+		queue.fail(cause);
+		assertEnds(taker);
+		assertSame(cause, taker.failure.getCause());
+	}
+}
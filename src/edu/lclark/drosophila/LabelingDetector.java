@@ -0,0 +1,228 @@
+package edu.lclark.drosophila;
+
+/**
+ * Finds flies with two-pass connected component labeling instead of a flood
+ * fill, which reads the frame strictly in order and never jumps around in
+ * memory.
+ * <p>
+ * The dark mask of the whole frame is worked out first. The first pass then
+ * goes through the mask row by row and splits every row into runs of dark
+ * pixels. Every run gets a new label, and the size and coordinate sums of
+ * the run are stored under it. A run touching a run of
+ * the row above belongs to the same blob, which is recorded by joining their
+ * labels in a union-find forest. The second pass goes through the labels
+ * rather than the pixels, adding each label's sums into the root of its tree,
+ * so that every root ends up holding one whole blob.
+ */
+public class LabelingDetector implements BlobDetector {
+
+	/**
+	 * Adds every label into the root of its tree, then adds every root whose
+	 * blob is the right size to be a fly to the given list of blobs.
+	 *
+	 * @param components
+	 *            the sums of every label, each holding just its own run.
+	 * @param parents
+	 *            the union-find parent of every label.
+	 * @param settings
+	 *            the settings which decide which blobs are the right size.
+	 * @param blobs
+	 *            the list the flies are added to.
+	 */
+	static void collectBlobs(BlobList components, int[] parents,
+			DetectionSettings settings, BlobList blobs) {
+		int labels = components.size();
+		for (int label = 0; label < labels; label++) {
+			int root = find(parents, label);
+			if (root != label) {
+				components.merge(root, label);
+			}
+		}
+		for (int label = 0; label < labels; label++) {
+			if (parents[label] == label
+					&& settings.isFlySize(components.getArea(label))) {
+				blobs.add(components.getArea(label), components.getSumX(label),
+						components.getSumY(label),
+						components.getFirstPixel(label));
+			}
+		}
+	}
+
+	/**
+	 * Finds the root of the given label's tree, halving the path to it on the
+	 * way.
+	 *
+	 * @param parents
+	 *            the union-find parent of every label.
+	 * @param label
+	 *            the label whose root is wanted.
+	 * @return the root label.
+	 */
+	static int find(int[] parents, int label) {
+		while (parents[label] != label) {
+			parents[label] = parents[parents[label]];
+			label = parents[label];
+		}
+		return label;
+	}
+
+	/**
+	 * Splits one row of the frame into runs of dark pixels. Runs are stored
+	 * three ints apiece: the first x of the run, the x just past its end, and
+	 * a slot for its label which is left alone.
+	 * <p>
+	 * The row is read a long at a time. A long of background is skipped in
+	 * one step, and both ends of a run are found by counting trailing zeros,
+	 * of the mask for the start and of the flipped mask for the end.
+	 *
+	 * @param mask
+	 *            the dark mask of the frame.
+	 * @param stride
+	 *            the number of longs in each row of the mask.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param y
+	 *            the row to split.
+	 * @param runs
+	 *            the array the runs are stored in.
+	 * @return the number of runs in the row.
+	 */
+	static int findRuns(long[] mask, int stride, int width, int y, int[] runs) {
+		int count = 0;
+		int row = y * stride;
+		int end = row + stride;
+		int word = row;
+		// the bits of the current long which haven't been looked at yet,
+		// flipped while looking for the end of a run
+		long bits = mask[word];
+		while (true) {
+			// skip whole longs of background
+			while (bits == 0) {
+				if (++word == end) {
+					return count;
+				}
+				bits = mask[word];
+			}
+			int start = ((word - row) << 6) + Long.numberOfTrailingZeros(bits);
+			// the run goes on up to the next clear bit
+			bits = ~bits & (-1L << start);
+			while (bits == 0) {
+				if (++word == end) {
+					break;
+				}
+				bits = ~mask[word];
+			}
+			int x = word == end ? width : ((word - row) << 6)
+					+ Long.numberOfTrailingZeros(bits);
+			runs[3 * count] = start;
+			runs[3 * count + 1] = x;
+			count++;
+			if (word == end) {
+				return count;
+			}
+			// back to the unflipped bits past the run
+			bits = mask[word] & (-1L << x);
+		}
+	}
+
+	/**
+	 * Runs the first pass over the rows from top up to bottom, filling the
+	 * components and label parents of the context. Labels start at 0 and are
+	 * given out in order, run by run and row by row, so the runs of any row
+	 * can be matched with their labels again by splitting the row up once
+	 * more.
+	 *
+	 * @param mask
+	 *            the dark mask of the frame, already worked out for these
+	 *            rows.
+	 * @param stride
+	 *            the number of longs in each row of the mask.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param top
+	 *            the first row to label.
+	 * @param bottom
+	 *            the row just past the last row to label.
+	 * @param context
+	 *            the scratch space to use, already reset for this frame.
+	 * @return the label of the first run of the last row.
+	 */
+	static int labelRows(long[] mask, int stride, int width, int height,
+			int top, int bottom, DetectionContext context) {
+		BlobList components = context.getComponents();
+		components.clear();
+		int[] parents = context.getLabelParents(0);
+		int previousCount = 0;
+		int rowStart = 0;
+		for (int y = top; y < bottom; y++) {
+			int[] previous = context.getPreviousRuns();
+			int[] current = context.getCurrentRuns();
+			int count = findRuns(mask, stride, width, y, current);
+			rowStart = components.size();
+			// the first run of the row above which could touch the next run
+			int above = 0;
+			for (int run = 0; run < count; run++) {
+				int start = current[3 * run];
+				int end = current[3 * run + 1];
+				int label = components.size();
+				long length = end - start;
+				components.add((int) length, length * (start + end - 1) / 2,
+						length * y, start * height + y);
+				if (label >= parents.length) {
+					parents = context.getLabelParents(label + 1);
+				}
+				parents[label] = label;
+				// runs above which end before this run starts can't touch
+				// it, or any run after it
+				while (above < previousCount
+						&& previous[3 * above + 1] <= start) {
+					above++;
+				}
+				for (int k = above; k < previousCount
+						&& previous[3 * k] < end; k++) {
+					union(parents, label, previous[3 * k + 2]);
+				}
+				current[3 * run + 2] = label;
+			}
+			context.swapRuns();
+			previousCount = count;
+		}
+		return rowStart;
+	}
+
+	/**
+	 * Joins the trees of two labels. The smaller root becomes the root of
+	 * both, so a root always has the smallest label of its blob.
+	 *
+	 * @param parents
+	 *            the union-find parent of every label.
+	 * @param a
+	 *            one of the labels.
+	 * @param b
+	 *            the other label.
+	 */
+	static void union(int[] parents, int a, int b) {
+		int rootA = find(parents, a);
+		int rootB = find(parents, b);
+		if (rootA < rootB) {
+			parents[rootB] = rootA;
+		} else if (rootB < rootA) {
+			parents[rootA] = rootB;
+		}
+	}
+
+	@Override
+	public void detect(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context) {
+		context.maskRows(pixels, 0, height, settings.getLuminanceTable());
+		labelRows(context.getDarkMask(), context.getMaskStride(), width,
+				height, 0, height, context);
+		// second pass: every label still holds just its own run, so adding
+		// each one into the root of its tree leaves every root holding its
+		// whole blob.
+		collectBlobs(context.getComponents(), context.getLabelParents(0),
+				settings, context.getBlobs());
+	}
+}
@@ -0,0 +1,268 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+/**
+ * A frame as one byte per pixel: the gray scale value of every pixel after
+ * the image contrast has been applied, as the lookup tables work it out. A
+ * pixel is dark enough exactly when its value is at most the contrast
+ * threshold, so one frame can be searched with any contrast threshold and
+ * fly size, and takes a third of the memory of the BGR bytes it was made
+ * from.
+ * <p>
+ * The values depend on the image contrast, though, since every color channel
+ * is multiplied by it and capped at 255 before the channels are added up. A
+ * frame can only be searched with lookup tables of the image contrast it was
+ * made with; for another image contrast it has to be made again from the
+ * decoded image.
+ * <p>
+ * The bytes of a frame are kept in a ByteBuffer, which can be a direct
+ * buffer over memory a decoder owns, and row y starts at byte y * stride, so
+ * a decoded plane with padded rows can be searched where it is. The bytes
+ * can also be codes rather than gray scale values, with a level map giving
+ * the gray scale value of every code, like the Y plane of a movie picture,
+ * whose codes are brightness on the decoder's own scale. The level map
+ * must never go down as the code goes up, so that the dark pixels are still
+ * the ones with a code up to some limit.
+ * <p>
+ * A frame is never changed once made, so it can be shared between threads,
+ * as long as nothing else changes its bytes. Its buffer is only ever read
+ * with absolute gets, which don't touch the buffer's position.
+ */
+public class LumaFrame {
+
+	/**
+	 * Makes the frame of a decoded image. A TYPE_3BYTE_BGR image (which is
+	 * what we ask Xuggler for) is read straight out of its raster, any other
+	 * image is read through getRGB one row at a time.
+	 *
+	 * @param image
+	 *            the decoded image.
+	 * @param table
+	 *            the lookup tables the gray scale values are worked out with.
+	 * @return the frame.
+	 */
+	public static LumaFrame fromImage(BufferedImage image, LuminanceTable table) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		byte[] levels = new byte[width * height];
+		WritableRaster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+				&& raster.getParent() == null
+				&& raster.getDataBuffer().getNumBanks() == 1) {
+			byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			if (data.length == width * height * 3) {
+				table.getDarkLevels(data, 0, levels, 0, levels.length);
+				return new LumaFrame(levels, width, height, width, table
+						.getImageContrast());
+			}
+		}
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				levels[y * width + x] = (byte) table.getDarkLevel(rgb & 0xFF,
+						(rgb >> 8) & 0xFF, (rgb >> 16) & 0xFF);
+			}
+		}
+		return new LumaFrame(levels, width, height, width, table
+				.getImageContrast());
+	}
+
+	/**
+	 * The height of the frame in pixels.
+	 */
+	private final int height;
+
+	/**
+	 * The image contrast the gray scale values were worked out with.
+	 */
+	private final double imageContrast;
+
+	/**
+	 * The gray scale value of every code, or null if the bytes are the gray
+	 * scale values themselves.
+	 */
+	private final int[] levelMap;
+
+	/**
+	 * The byte of every pixel, row by row.
+	 */
+	private final ByteBuffer plane;
+
+	/**
+	 * The number of bytes from the start of one row to the start of the
+	 * next, at least the width.
+	 */
+	private final int stride;
+
+	/**
+	 * The width of the frame in pixels.
+	 */
+	private final int width;
+
+	/**
+	 * Makes a frame around the given gray scale values. They aren't copied.
+	 *
+	 * @param levels
+	 *            the gray scale value of every pixel, with the pixel at (x,
+	 *            y) at index y * stride + x.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param stride
+	 *            the number of bytes from the start of one row to the start
+	 *            of the next, at least the width.
+	 * @param imageContrast
+	 *            the image contrast the values were worked out with.
+	 */
+	public LumaFrame(byte[] levels, int width, int height, int stride,
+			double imageContrast) {
+		this(ByteBuffer.wrap(levels), width, height, stride, null,
+				imageContrast);
+	}
+
+	/**
+	 * Makes a frame around the given plane of codes. The plane isn't copied,
+	 * and has to stay as it is for as long as the frame is used.
+	 *
+	 * @param plane
+	 *            the code of every pixel, with the pixel at (x, y) at index
+	 *            y * stride + x of the buffer.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param stride
+	 *            the number of bytes from the start of one row to the start
+	 *            of the next, at least the width.
+	 * @param levelMap
+	 *            the gray scale value of each of the 256 codes, never going
+	 *            down, or null if the codes are the gray scale values.
+	 * @param imageContrast
+	 *            the image contrast the level map was worked out with.
+	 */
+	public LumaFrame(ByteBuffer plane, int width, int height, int stride,
+			int[] levelMap, double imageContrast) {
+		if (width < 1 || height < 1) {
+			throw new IllegalArgumentException("Frames must be at least 1 "
+					+ "pixel wide and high");
+		}
+		if (stride < width) {
+			throw new IllegalArgumentException("Stride must be at least the "
+					+ "width");
+		}
+		if (plane.limit() < (long) stride * (height - 1) + width) {
+			throw new IllegalArgumentException("Plane must hold every row");
+		}
+		if (levelMap != null && levelMap.length != 256) {
+			throw new IllegalArgumentException("Level map must have 256 "
+					+ "levels");
+		}
+		this.plane = plane;
+		this.levelMap = levelMap;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
+		this.imageContrast = imageContrast;
+	}
+
+	/**
+	 * Checks if the frame can be searched with the given lookup tables, which
+	 * is when they have the image contrast the frame was made with.
+	 *
+	 * @param table
+	 *            the lookup tables.
+	 * @return true if the gray scale values of the frame are the ones the
+	 *         tables give.
+	 */
+	public boolean fits(LuminanceTable table) {
+		return table.getImageContrast() == imageContrast;
+	}
+
+	/**
+	 * Returns the largest code which is dark enough at the given contrast
+	 * threshold. Every code up to it is dark enough, and every code past it
+	 * too light.
+	 *
+	 * @param contrastThreshold
+	 *            the contrast threshold, from 0 to 255.
+	 * @return the largest dark code, or -1 if no code is dark enough.
+	 */
+	public int getDarkLimit(int contrastThreshold) {
+		if (levelMap == null) {
+			return contrastThreshold;
+		}
+		int limit = -1;
+		while (limit < 255 && levelMap[limit + 1] <= contrastThreshold) {
+			limit++;
+		}
+		return limit;
+	}
+
+	/**
+	 * Returns the height of the frame.
+	 *
+	 * @return the height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the image contrast the gray scale values were worked out with.
+	 *
+	 * @return the image contrast.
+	 */
+	public double getImageContrast() {
+		return imageContrast;
+	}
+
+	/**
+	 * Returns the gray scale value of the given pixel.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel.
+	 * @param y
+	 *            the y coordinate of the pixel.
+	 * @return the gray scale value, from 0 to 255.
+	 */
+	public int getLevel(int x, int y) {
+		int code = plane.get(y * stride + x) & 0xFF;
+		return levelMap != null ? levelMap[code] : code;
+	}
+
+	/**
+	 * Returns the buffer holding the code of every pixel, which must only be
+	 * read with absolute gets, or through a duplicate.
+	 *
+	 * @return the plane, with the pixel at (x, y) at index y * stride + x.
+	 */
+	public ByteBuffer getPlane() {
+		return plane;
+	}
+
+	/**
+	 * Returns the number of bytes from the start of one row to the start of
+	 * the next.
+	 *
+	 * @return the stride.
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Returns the width of the frame.
+	 *
+	 * @return the width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+}
@@ -0,0 +1,248 @@
+package edu.lclark.drosophila;
+
+/**
+ * Lookup tables for deciding whether a pixel is dark enough to be part of a
+ * fly.
+ * <p>
+ * A pixel is dark enough when its gray scale value, after each of its color
+ * channels has been multiplied by the image contrast and capped at 255, rounds
+ * to the contrast threshold or less. Every channel can only take 256 values,
+ * so each channel's share of the gray scale value is worked out once per
+ * setting and a pixel test is just three lookups, an add and a compare.
+ * <p>
+ * Tables are never changed once made. The Analyzer makes a new one whenever
+ * the image contrast or the contrast threshold changes.
+ */
+public class LuminanceTable {
+
+	/**
+	 * How much the blue channel counts towards the gray scale value.
+	 */
+	public static final double BLUE_WEIGHT = .114;
+
+	/**
+	 * How much the green channel counts towards the gray scale value.
+	 */
+	public static final double GREEN_WEIGHT = .587;
+
+	/**
+	 * How much the red channel counts towards the gray scale value.
+	 */
+	public static final double RED_WEIGHT = 0.2989;
+
+	/**
+	 * How much the red channel of a pixel adds to its gray scale value, for
+	 * each possible red value.
+	 */
+	private final double[] red;
+
+	/**
+	 * How much the green channel of a pixel adds to its gray scale value, for
+	 * each possible green value.
+	 */
+	private final double[] green;
+
+	/**
+	 * How much the blue channel of a pixel adds to its gray scale value, for
+	 * each possible blue value.
+	 */
+	private final double[] blue;
+
+	/**
+	 * The largest gray scale value which still counts as dark.
+	 */
+	private final int contrastThreshold;
+
+	/**
+	 * A pixel is dark enough if its gray scale value is below this. Rounding
+	 * the gray scale value gives the contrast threshold or less exactly when
+	 * the value is below the threshold plus one half.
+	 */
+	private final double darkLimit;
+
+	/**
+	 * The value every color channel is multiplied by.
+	 */
+	private final double imageContrast;
+
+	/**
+	 * Builds the tables for the given settings.
+	 *
+	 * @param imageContrast
+	 *            the value every color channel is multiplied by.
+	 * @param contrastThreshold
+	 *            the largest gray scale value which still counts as dark.
+	 */
+	public LuminanceTable(double imageContrast, int contrastThreshold) {
+		red = new double[256];
+		green = new double[256];
+		blue = new double[256];
+		for (int i = 0; i < 256; i++) {
+			int value = i;
+			value *= imageContrast;
+			if (value > 255) {
+				value = 255;
+			}
+			red[i] = value * RED_WEIGHT;
+			green[i] = value * GREEN_WEIGHT;
+			blue[i] = value * BLUE_WEIGHT;
+		}
+		darkLimit = contrastThreshold + 0.5;
+		this.contrastThreshold = contrastThreshold;
+		this.imageContrast = imageContrast;
+	}
+
+	/**
+	 * Returns the largest gray scale value which still counts as dark.
+	 *
+	 * @return the contrast threshold.
+	 */
+	public int getContrastThreshold() {
+		return contrastThreshold;
+	}
+
+	/**
+	 * Returns the smallest contrast threshold at which the pixel starting at
+	 * the given offset of an array of BGR bytes is dark enough. This only
+	 * depends on the image contrast, not on the contrast threshold of these
+	 * tables.
+	 *
+	 * @param pixels
+	 *            BGR bytes, three bytes per pixel.
+	 * @param offset
+	 *            the index of the blue byte of the pixel.
+	 * @return the dark level of the pixel, from 0 to 255.
+	 */
+	public int getDarkLevel(byte[] pixels, int offset) {
+		return getDarkLevel(pixels[offset] & 0xFF, pixels[offset + 1] & 0xFF,
+				pixels[offset + 2] & 0xFF);
+	}
+
+	/**
+	 * Returns the smallest contrast threshold at which the pixel with the
+	 * given color channels is dark enough. This only depends on the image
+	 * contrast, not on the contrast threshold of these tables.
+	 *
+	 * @param blue
+	 *            the blue channel of the pixel, from 0 to 255.
+	 * @param green
+	 *            the green channel of the pixel, from 0 to 255.
+	 * @param red
+	 *            the red channel of the pixel, from 0 to 255.
+	 * @return the dark level of the pixel, from 0 to 255.
+	 */
+	public int getDarkLevel(int blue, int green, int red) {
+		return toDarkLevel(this.red[red] + this.green[green] + this.blue[blue]);
+	}
+
+	/**
+	 * Works out the dark level of a whole run of pixels at once.
+	 *
+	 * @param pixels
+	 *            BGR bytes, three bytes per pixel.
+	 * @param offset
+	 *            the index of the blue byte of the first pixel.
+	 * @param levels
+	 *            the array the dark levels are written to, one byte per
+	 *            pixel.
+	 * @param start
+	 *            the index the dark level of the first pixel goes to.
+	 * @param count
+	 *            the number of pixels.
+	 */
+	public void getDarkLevels(byte[] pixels, int offset, byte[] levels,
+			int start, int count) {
+		int end = start + count;
+		for (int i = start; i < end; i++, offset += 3) {
+			levels[i] = (byte) toDarkLevel(red[pixels[offset + 2] & 0xFF]
+					+ green[pixels[offset + 1] & 0xFF]
+					+ blue[pixels[offset] & 0xFF]);
+		}
+	}
+
+	/**
+	 * Returns the limit a pixel's gray scale value has to be below for the
+	 * pixel to be dark enough.
+	 *
+	 * @return the contrast threshold plus one half.
+	 */
+	public double getDarkLimit() {
+		return darkLimit;
+	}
+
+	/**
+	 * Returns the value every color channel is multiplied by.
+	 *
+	 * @return the image contrast.
+	 */
+	public double getImageContrast() {
+		return imageContrast;
+	}
+
+	/**
+	 * Returns the gray scale value of the pixel starting at the given offset
+	 * of an array of BGR bytes, rounded to a whole number.
+	 *
+	 * @param pixels
+	 *            BGR bytes, three bytes per pixel.
+	 * @param offset
+	 *            the index of the blue byte of the pixel.
+	 * @return the gray scale value, from 0 to 255.
+	 */
+	public int getLevel(byte[] pixels, int offset) {
+		return (int) (red[pixels[offset + 2] & 0xFF]
+				+ green[pixels[offset + 1] & 0xFF]
+				+ blue[pixels[offset] & 0xFF] + 0.5);
+	}
+
+	/**
+	 * Checks if the pixel with the given color channels is dark enough to be
+	 * identified as a fly.
+	 *
+	 * @param blue
+	 *            the blue channel of the pixel, from 0 to 255.
+	 * @param green
+	 *            the green channel of the pixel, from 0 to 255.
+	 * @param red
+	 *            the red channel of the pixel, from 0 to 255.
+	 * @return true if the pixel is dark enough, false if it is too light.
+	 */
+	public boolean isDark(int blue, int green, int red) {
+		return this.red[red] + this.green[green] + this.blue[blue] < darkLimit;
+	}
+
+	/**
+	 * Checks if the pixel starting at the given offset of an array of BGR
+	 * bytes is dark enough to be identified as a fly.
+	 *
+	 * @param pixels
+	 *            BGR bytes, three bytes per pixel.
+	 * @param offset
+	 *            the index of the blue byte of the pixel.
+	 * @return true if the pixel is dark enough, false if it is too light.
+	 */
+	public boolean isDark(byte[] pixels, int offset) {
+		return red[pixels[offset + 2] & 0xFF] + green[pixels[offset + 1] & 0xFF]
+				+ blue[pixels[offset] & 0xFF] < darkLimit;
+	}
+
+	/**
+	 * Returns the smallest contrast threshold at which a pixel with the given
+	 * gray scale value is dark enough.
+	 *
+	 * @param value
+	 *            the gray scale value, not rounded.
+	 * @return the dark level, from 0 to 255.
+	 */
+	private static int toDarkLevel(double value) {
+		int level = (int) (value + 0.5);
+		// adding a half can round the other way than isDark's compare does,
+		// but never by more than one
+		if (!(value < level + 0.5)) {
+			level++;
+		} else if (level > 0 && value < (level - 1) + 0.5) {
+			level--;
+		}
+		return level;
+	}
+}
@@ -0,0 +1,61 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class LuminanceTableTest {
+
+	/**
+	 * The way the Analyzer used to decide if a pixel was dark enough, one
+	 * pixel at a time.
+	 */
+	private boolean isDarkEnough(int red, int green, int blue,
+			double imageContrast, int contrastThreshold) {
+		red *= imageContrast;
+		green *= imageContrast;
+		blue *= imageContrast;
+		if (red > 255) {
+			red = 255;
+		}
+		if (green > 255) {
+			green = 255;
+		}
+		if (blue > 255) {
+			blue = 255;
+		}
+		double avg = red * 0.2989 + green * .587 + blue * .114;
+		return (int) (Math.round(avg)) <= contrastThreshold;
+	}
+
+	@Test
+	public void testIsDarkMatchesTheFormulaForEveryColor() {
+		double[] contrasts = { 1.0, 0.7, 1.3, 2.5 };
+		int[] thresholds = { 0, 37, 120, 255 };
+		byte[] pixel = new byte[3];
+		for (double contrast : contrasts) {
+			for (int threshold : thresholds) {
+				LuminanceTable table = new LuminanceTable(contrast, threshold);
+				for (int red = 0; red < 256; red++) {
+					for (int green = 0; green < 256; green++) {
+						for (int blue = 0; blue < 256; blue++) {
+							boolean expected = isDarkEnough(red, green, blue,
+									contrast, threshold);
+							pixel[0] = (byte) blue;
+							pixel[1] = (byte) green;
+							pixel[2] = (byte) red;
+							if (table.isDark(blue, green, red) != expected
+									|| table.isDark(pixel, 0) != expected
+									|| (table.getDarkLevel(blue, green, red)
+											<= threshold) != expected) {
+								fail("Pixel " + red + ", " + green + ", "
+										+ blue + " at contrast " + contrast
+										+ " and threshold " + threshold);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+}
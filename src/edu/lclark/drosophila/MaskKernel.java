@@ -0,0 +1,45 @@
+package edu.lclark.drosophila;
+
+/**
+ * Turns the BGR bytes of a frame into a dark mask, one bit per pixel, which
+ * is set when the pixel is dark enough to be part of a fly. The blob
+ * detectors then only ever look at the mask.
+ * <p>
+ * Every row of the mask starts on a new long, so that rows can be written by
+ * different threads at once. Row y takes up the stride longs starting at
+ * y * stride, and pixel x of the row is bit x % 64 of long x / 64 of the
+ * row. Bits past the end of a row are always clear.
+ * <p>
+ * Kernels must give exactly the answer {@link LuminanceTable#isDark} gives
+ * for every pixel, and keep no state between calls.
+ */
+public interface MaskKernel {
+
+	/**
+	 * Works out the dark mask of the columns from left up to right of the
+	 * rows from top up to bottom. Bits of other columns are left as they
+	 * were.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, three bytes per pixel, row by
+	 *            row.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param top
+	 *            the first row to work out.
+	 * @param bottom
+	 *            the row just past the last row to work out.
+	 * @param left
+	 *            the first column to work out.
+	 * @param right
+	 *            the column just past the last column to work out.
+	 * @param table
+	 *            the lookup tables which tell if a pixel is dark enough.
+	 * @param mask
+	 *            the mask the rows are written to.
+	 * @param stride
+	 *            the number of longs in each row of the mask.
+	 */
+	public void maskRows(byte[] pixels, int width, int top, int bottom,
+			int left, int right, LuminanceTable table, long[] mask, int stride);
+}
@@ -0,0 +1,97 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class MaskKernelTest {
+
+	/**
+	 * Works out random boxes of random frames with the kernel, over a mask
+	 * full of other bits, and checks every bit of the mask against the
+	 * lookup tables. Frames are as wide as a few vectors and a bit, so that
+	 * rows end in tails of every length.
+	 */
+	private void assertMatchesTables(MaskKernel kernel, long seed) {
+		Random random = new Random(seed);
+		for (int frame = 0; frame < 300; frame++) {
+			int width = 1 + random.nextInt(150);
+			int height = 1 + random.nextInt(6);
+			int stride = (width + 63) >>> 6;
+			byte[] pixels = new byte[width * height * 3];
+			// mostly pixels close to the dark limit, where rounding matters
+			int middle = random.nextInt(256);
+			for (int i = 0; i < pixels.length; i++) {
+				int value = random.nextInt(4) == 0 ? random.nextInt(256)
+						: middle + random.nextInt(9) - 4;
+				pixels[i] = (byte) Math.max(0, Math.min(255, value));
+			}
+			LuminanceTable table = new LuminanceTable(
+					0.5 + random.nextInt(20) * 0.1, random.nextInt(256));
+			long[] before = new long[height * stride];
+			long[] mask = new long[before.length];
+			for (int i = 0; i < before.length; i++) {
+				before[i] = random.nextLong();
+				mask[i] = before[i];
+			}
+			int left = random.nextInt(width);
+			int right = left + 1 + random.nextInt(width - left);
+			int top = random.nextInt(height);
+			int bottom = top + 1 + random.nextInt(height - top);
+			kernel.maskRows(pixels, width, top, bottom, left, right, table,
+					mask, stride);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < stride * 64; x++) {
+					int word = y * stride + (x >>> 6);
+					boolean expected;
+					if (y >= top && y < bottom && x >= left && x < right) {
+						expected = table.isDark(pixels, (y * width + x) * 3);
+					} else {
+						expected = (before[word] & 1L << x) != 0;
+					}
+					assertEquals("pixel " + x + ", " + y + " of frame " + frame,
+							expected, (mask[word] & 1L << x) != 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testScalarKernelMatchesTables() {
+		assertMatchesTables(new ScalarMaskKernel(), 51);
+	}
+
+	@Test
+	public void testVectorKernelMatchesTables() {
+		// only where the vector kernel and its module are there
+		MaskKernel kernel = MaskKernels.loadVectorKernel();
+		Assume.assumeNotNull(kernel);
+		assertMatchesTables(kernel, 53);
+	}
+
+	@Test
+	public void testVectorKernelMatchesScalarKernel() {
+		MaskKernel kernel = MaskKernels.loadVectorKernel();
+		Assume.assumeNotNull(kernel);
+		Random random = new Random(57);
+		MaskKernel scalar = new ScalarMaskKernel();
+		for (int frame = 0; frame < 300; frame++) {
+			int width = 1 + random.nextInt(150);
+			int height = 1 + random.nextInt(6);
+			int stride = (width + 63) >>> 6;
+			byte[] pixels = new byte[width * height * 3];
+			random.nextBytes(pixels);
+			LuminanceTable table = new LuminanceTable(
+					0.5 + random.nextInt(20) * 0.1, random.nextInt(256));
+			long[] expected = new long[height * stride];
+			long[] found = new long[expected.length];
+			scalar.maskRows(pixels, width, 0, height, 0, width, table,
+					expected, stride);
+			kernel.maskRows(pixels, width, 0, height, 0, width, table, found,
+					stride);
+			assertArrayEquals(expected, found);
+		}
+	}
+}
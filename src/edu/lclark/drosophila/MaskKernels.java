@@ -0,0 +1,70 @@
+package edu.lclark.drosophila;
+
+/**
+ * Picks the mask kernel the Analyzer works out dark masks with.
+ * <p>
+ * The scalar kernel is used unless the system property
+ * "drosophila.maskKernel" is set to "vector". Then the VectorMaskKernel is
+ * tried, which uses the incubating vector API of Java 16 and later. It needs
+ * both the class itself (it lives in the separate src-vector source folder,
+ * so the rest of the project still builds on older Javas) and the
+ * jdk.incubator.vector module, added with "--add-modules
+ * jdk.incubator.vector". When either is missing the scalar kernel is used
+ * after all.
+ * <p>
+ * The vector kernel isn't the default because on Java 17 it is slower than
+ * the lookup tables on frames that look like ours, mostly light background
+ * with a few dark flies, where the scalar loop almost never mispredicts.
+ * It is worth trying on newer Javas with wider vectors.
+ */
+public class MaskKernels {
+
+	/**
+	 * The kernel picked the first time one was asked for.
+	 */
+	private static MaskKernel defaultKernel;
+
+	/**
+	 * There is no need to make one of these.
+	 */
+	private MaskKernels() {
+	}
+
+	/**
+	 * Returns the kernel asked for by the "drosophila.maskKernel" property,
+	 * or the scalar kernel if that one can't be used. The answer is worked
+	 * out once and kept.
+	 *
+	 * @return the kernel to work out dark masks with.
+	 */
+	public static synchronized MaskKernel getDefault() {
+		if (defaultKernel == null) {
+			if ("vector".equals(System.getProperty("drosophila.maskKernel"))) {
+				defaultKernel = loadVectorKernel();
+			}
+			if (defaultKernel == null) {
+				defaultKernel = new ScalarMaskKernel();
+			}
+		}
+		return defaultKernel;
+	}
+
+	/**
+	 * Tries to make the vector kernel. It is loaded by name, since it isn't
+	 * compiled into every build, and loading it fails with a linkage error
+	 * when the vector module isn't there.
+	 *
+	 * @return the vector kernel, or null if it can't be used.
+	 */
+	static MaskKernel loadVectorKernel() {
+		try {
+			return Class.forName("edu.lclark.drosophila.VectorMaskKernel")
+					.asSubclass(MaskKernel.class).getDeclaredConstructor()
+					.newInstance();
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.xuggle.ferry.JNIReference;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.video.ConverterFactory;
+import com.xuggle.xuggler.video.IConverter;
+
+/**
+ * Decodes the pictures of a movie one at a time, and only makes frames of
+ * the pictures which are asked for. Every picture has to be decoded, since
+ * most pictures are stored as changes to the pictures before them, but
+ * turning a picture into something the blob detectors can search costs
+ * more than decoding it, and is left out for the pictures which aren't
+ * analyzed. Where the movie has key frames, which are stored whole, the
+ * decoder can also skip ahead to the last key frame before the next picture
+ * which is analyzed, without decoding the pictures in between at all.
+ * <p>
+ * A picture can be made into a BGR image, like the media reader makes of
+ * every picture, or into a {@link LumaFrame}. A movie in a planar YUV format
+ * already has how bright every pixel is in its Y plane, so the LumaFrame is
+ * the Y plane of the decoded picture as it lies in the decoder's memory.
+ * Nothing is converted to BGR and nothing is copied onto the Java heap.
+ * <p>
+ * The decoder decodes into a fixed ring of pictures, and only moves on to
+ * the next picture of the ring once a LumaFrame has been made of the one it
+ * decoded into, so a LumaFrame stays as it is until that many more
+ * LumaFrames have been made. A frame handed to a {@link DetectionPipeline}
+ * has to stay as it is until it has been tracked, so the ring needs one
+ * picture more than the frames the pipeline lets in at once (see
+ * {@link DetectionPipeline#getCapacity}). Images are copies, and can be kept
+ * as long as needed. The pictures of the ring are only made once the
+ * decoder gets to them, so a decoder which only makes images, and never
+ * moves on, only ever makes one.
+ * <p>
+ * The Y value of a pixel is turned into a gray scale value through the level
+ * map of the frame, which is the gray scale value the lookup tables give a
+ * gray pixel of that brightness. Y values of most formats go from 16 for
+ * black to 235 for white, and are stretched to 0 to 255 first; the YUVJ
+ * formats and GRAY8 already use the whole range. For gray footage, which is
+ * what the flies are filmed in, this is the gray scale value of the decoded
+ * image up to the rounding of the color conversion. For color footage the
+ * color of a pixel is left out, so the dark pixels can differ a little from
+ * the ones found in the decoded image.
+ * <p>
+ * A decoder is used from one thread at a time, and has to be closed once
+ * done with.
+ */
+public class MovieDecoder {
+
+	/**
+	 * Works out where to skip ahead to with the given index. That is the last
+	 * key frame at or before the given time, if it comes after the picture
+	 * decoded last.
+	 *
+	 * @param index
+	 *            the index of the movie.
+	 * @param timeStamp
+	 *            the time stamp of the picture decoded last, in microseconds.
+	 * @param time
+	 *            the time stamp of the next picture which is needed.
+	 * @return the number of the key frame, or -1 if there is none to skip to.
+	 */
+	static int getKeyFrameToSkipTo(MovieIndex index, long timeStamp,
+			long time) {
+		// the last picture shown at or before the time
+		int frame = index.getFrameAt(time + 1) - 1;
+		int keyFrame = index.getKeyFrameBefore(frame);
+		if (keyFrame < 0 || index.getTimeStamp(keyFrame) <= timeStamp) {
+			return -1;
+		}
+		return keyFrame;
+	}
+
+	/**
+	 * Checks if the Y plane of pictures in the given pixel format can be
+	 * searched.
+	 *
+	 * @param type
+	 *            the pixel format.
+	 * @return true if the format is a planar YUV format or GRAY8.
+	 */
+	public static boolean supports(IPixelFormat.Type type) {
+		return type == IPixelFormat.Type.YUV420P
+				|| type == IPixelFormat.Type.YUVJ420P
+				|| type == IPixelFormat.Type.YUV422P
+				|| type == IPixelFormat.Type.YUVJ422P
+				|| type == IPixelFormat.Type.YUV444P
+				|| type == IPixelFormat.Type.YUVJ444P
+				|| type == IPixelFormat.Type.GRAY8;
+	}
+
+	/**
+	 * The decoder of the movie's video stream.
+	 */
+	private final IStreamCoder coder;
+
+	/**
+	 * The container the movie is read from.
+	 */
+	private final IContainer container;
+
+	/**
+	 * The converter pictures are made into images with, or null if no image
+	 * has been made yet.
+	 */
+	private IConverter converter;
+
+	/**
+	 * Whether the Y values go from 0 to 255 rather than from 16 to 235.
+	 */
+	private final boolean fullRange;
+
+	/**
+	 * The height of the frames in pixels.
+	 */
+	private final int height;
+
+	/**
+	 * The index of the movie, or null if the decoder doesn't have one.
+	 */
+	private MovieIndex index;
+
+	/**
+	 * The level map made last.
+	 */
+	private int[] levelMap;
+
+	/**
+	 * The image contrast the level map was made with.
+	 */
+	private double levelMapContrast;
+
+	/**
+	 * The movie file, for error messages.
+	 */
+	private final File movie;
+
+	/**
+	 * The picture of the ring decoded into next, which is the picture decoded
+	 * last until a LumaFrame has been made of it.
+	 */
+	private int nextPicture;
+
+	/**
+	 * The packet being decoded.
+	 */
+	private final IPacket packet;
+
+	/**
+	 * Whether the packet still has data which hasn't been decoded.
+	 */
+	private boolean packetLoaded;
+
+	/**
+	 * How many bytes of the packet have been decoded.
+	 */
+	private int packetOffset;
+
+	/**
+	 * The ring of pictures decoded into, null where the decoder hasn't got
+	 * to yet.
+	 */
+	private final IVideoPicture[] pictures;
+
+	/**
+	 * The references keeping the memory of each picture's frame around, or
+	 * null where no frame has been handed out.
+	 */
+	private final JNIReference[] references;
+
+	/**
+	 * The time stamp the decoder skipped ahead to last. Pictures before it
+	 * which come out of the decoder afterwards were held back from before
+	 * the skip, or can't be decoded whole without the pictures skipped, and
+	 * are dropped.
+	 */
+	private long skippedTo = Long.MIN_VALUE;
+
+	/**
+	 * The index of the movie's video stream.
+	 */
+	private final int streamIndex;
+
+	/**
+	 * The time stamp of the picture decoded last, in microseconds.
+	 */
+	private long timeStamp;
+
+	/**
+	 * The width of the frames in pixels.
+	 */
+	private final int width;
+
+	/**
+	 * Opens the given movie for decoding.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @param pictures
+	 *            the number of pictures decoded into in turn, so the number of
+	 *            LumaFrames which can be in use at once plus one.
+	 * @throws IOException
+	 *             if the movie can't be opened, has no video stream or its
+	 *             decoder can't be opened.
+	 */
+	public MovieDecoder(File movie, int pictures) throws IOException {
+		if (pictures < 1) {
+			throw new IllegalArgumentException("Pictures must be at least 1");
+		}
+		this.movie = movie;
+		container = IContainer.make();
+		if (container.open(movie.getAbsolutePath(), IContainer.Type.READ,
+				null) < 0) {
+			throw new IOException("Could not open " + movie);
+		}
+		IStreamCoder videoCoder = null;
+		int videoStream = -1;
+		for (int i = 0; i < container.getNumStreams(); i++) {
+			IStreamCoder streamCoder = container.getStream(i).getStreamCoder();
+			if (streamCoder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO) {
+				videoCoder = streamCoder;
+				videoStream = i;
+				break;
+			}
+		}
+		if (videoCoder == null) {
+			container.close();
+			throw new IOException("No video stream in " + movie);
+		}
+		if (videoCoder.open() < 0) {
+			container.close();
+			throw new IOException("Could not open the decoder of " + movie);
+		}
+		coder = videoCoder;
+		streamIndex = videoStream;
+		width = coder.getWidth();
+		height = coder.getHeight();
+		IPixelFormat.Type type = coder.getPixelType();
+		fullRange = type == IPixelFormat.Type.YUVJ420P
+				|| type == IPixelFormat.Type.YUVJ422P
+				|| type == IPixelFormat.Type.YUVJ444P
+				|| type == IPixelFormat.Type.GRAY8;
+		packet = IPacket.make();
+		this.pictures = new IVideoPicture[pictures];
+		references = new JNIReference[pictures];
+	}
+
+	/**
+	 * Closes the movie and lets go of every picture. No LumaFrame made may be
+	 * used afterwards.
+	 */
+	public void close() {
+		if (converter != null) {
+			converter.delete();
+		}
+		for (int i = 0; i < pictures.length; i++) {
+			if (references[i] != null) {
+				references[i].delete();
+				references[i] = null;
+			}
+			if (pictures[i] != null) {
+				pictures[i].delete();
+			}
+		}
+		packet.delete();
+		coder.close();
+		container.close();
+	}
+
+	/**
+	 * Returns the height of the frames.
+	 *
+	 * @return the height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Makes a TYPE_3BYTE_BGR image of the picture decoded last.
+	 *
+	 * @return the image, a copy of the picture.
+	 */
+	public BufferedImage getImage() {
+		IVideoPicture picture = pictures[nextPicture];
+		if (converter == null) {
+			converter = ConverterFactory.createConverter(
+					ConverterFactory.XUGGLER_BGR_24, picture);
+		}
+		return converter.toImage(picture);
+	}
+
+	/**
+	 * Returns the level map of the frames for the given lookup tables, which
+	 * gives the gray scale value of every Y value.
+	 *
+	 * @param table
+	 *            the lookup tables.
+	 * @return the level map, which must not be changed.
+	 */
+	public int[] getLevelMap(LuminanceTable table) {
+		if (levelMap == null || levelMapContrast != table.getImageContrast()) {
+			int[] map = new int[256];
+			for (int code = 0; code < 256; code++) {
+				int value = code;
+				if (!fullRange) {
+					value = (int) Math.round((code - 16) * 255 / 219.0);
+					value = Math.min(Math.max(value, 0), 255);
+				}
+				map[code] = table.getDarkLevel(value, value, value);
+			}
+			levelMap = map;
+			levelMapContrast = table.getImageContrast();
+		}
+		return levelMap;
+	}
+
+	/**
+	 * Makes a LumaFrame of the Y plane of the picture decoded last, and moves
+	 * on to the next picture of the ring, letting go of the LumaFrame made of
+	 * that picture before.
+	 *
+	 * @param table
+	 *            the lookup tables the frame is searched with.
+	 * @return the frame.
+	 */
+	public LumaFrame getLumaFrame(LuminanceTable table) {
+		if (!supports(coder.getPixelType())) {
+			throw new IllegalStateException("Pixel format "
+					+ coder.getPixelType() + " has no Y plane");
+		}
+		IVideoPicture picture = pictures[nextPicture];
+		AtomicReference<JNIReference> reference;
+		reference = new AtomicReference<JNIReference>();
+		// the Y plane comes first in the picture's memory
+		ByteBuffer plane = picture.getByteBuffer(reference);
+		if (references[nextPicture] != null) {
+			references[nextPicture].delete();
+		}
+		references[nextPicture] = reference.get();
+		nextPicture = (nextPicture + 1) % pictures.length;
+		return new LumaFrame(plane, width, height,
+				picture.getDataLineSize(0), getLevelMap(table),
+				table.getImageContrast());
+	}
+
+	/**
+	 * Returns the pixel format of the movie.
+	 *
+	 * @return the pixel format, which has to be one {@link #supports} for
+	 *         {@link #getLumaFrame} to be called.
+	 */
+	public IPixelFormat.Type getPixelType() {
+		return coder.getPixelType();
+	}
+
+	/**
+	 * Returns the time stamp of the picture decoded last.
+	 *
+	 * @return the time stamp, in microseconds.
+	 */
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	/**
+	 * Returns the width of the frames.
+	 *
+	 * @return the width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Decodes the next picture of the movie, without making anything of it.
+	 * After skipping ahead, pictures from before the time skipped to are
+	 * decoded and dropped until the decoder has caught up with it.
+	 *
+	 * @return true if there was another picture, false at the end of the
+	 *         movie.
+	 * @throws IOException
+	 *             if the movie can't be decoded.
+	 */
+	public boolean next() throws IOException {
+		IVideoPicture picture = pictures[nextPicture];
+		if (picture == null) {
+			picture = IVideoPicture.make(coder.getPixelType(), width, height);
+			pictures[nextPicture] = picture;
+		}
+		while (true) {
+			if (!packetLoaded) {
+				if (container.readNextPacket(packet) < 0) {
+					return false;
+				}
+				if (packet.getStreamIndex() != streamIndex) {
+					continue;
+				}
+				packetLoaded = true;
+				packetOffset = 0;
+			}
+			while (packetOffset < packet.getSize()) {
+				int decoded = coder.decodeVideo(picture, packet, packetOffset);
+				if (decoded < 0) {
+					throw new IOException("Could not decode " + movie);
+				}
+				packetOffset += decoded;
+				if (picture.isComplete()
+						&& picture.getTimeStamp() >= skippedTo) {
+					timeStamp = picture.getTimeStamp();
+					return true;
+				}
+			}
+			packetLoaded = false;
+		}
+	}
+
+	/**
+	 * Gives the decoder the index of its movie, so that it knows where the
+	 * key frames are without asking the container.
+	 *
+	 * @param index
+	 *            the index of the movie, or null to do without.
+	 */
+	public void setIndex(MovieIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Skips ahead to the last key frame at or before the given time, if
+	 * there is a key frame between the picture decoded last and that time.
+	 * Otherwise nothing changes, and the pictures up to the time have to be
+	 * decoded one by one. Formats which can't seek never have a key frame to
+	 * skip to. With an index, the decoder doesn't even try to seek when there
+	 * is no key frame in between, and seeks straight to the key frame when
+	 * there is.
+	 *
+	 * @param time
+	 *            the time stamp of the next picture which is needed, in
+	 *            microseconds.
+	 * @return true if the decoder skipped ahead.
+	 */
+	public boolean skipTo(long time) {
+		if (time <= timeStamp + 1) {
+			return false;
+		}
+		long target = time;
+		if (index != null) {
+			int keyFrame = getKeyFrameToSkipTo(index, timeStamp, time);
+			if (keyFrame < 0) {
+				return false;
+			}
+			target = index.getTimeStamp(keyFrame);
+		}
+		// with no stream given, the time stamps are in microseconds
+		if (container.seekKeyFrame(-1, timeStamp + 1, target, time, 0) < 0) {
+			return false;
+		}
+		// the decoder may still hold pictures from before the seek
+		packetLoaded = false;
+		skippedTo = target;
+		return true;
+	}
+}
@@ -0,0 +1,106 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import com.xuggle.mediatool.IMediaWriter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.xuggler.ICodec;
+
+public class MovieDecoderTest {
+
+	/**
+	 * The time between two pictures of the movies written, in microseconds.
+	 */
+	private static final long PICTURE_TIME = 40000;
+
+	/**
+	 * Writes a movie of gray pictures, each a little lighter than the one
+	 * before.
+	 *
+	 * @return false if Xuggler's native library isn't there to write it.
+	 */
+	private boolean writeMovie(File file, int pictures) {
+		IMediaWriter writer;
+		try {
+			writer = ToolFactory.makeWriter(file.getAbsolutePath());
+		} catch (LinkageError e) {
+			return false;
+		}
+		writer.addVideoStream(0, 0, ICodec.ID.CODEC_ID_MPEG4, 64, 48);
+		for (int i = 0; i < pictures; i++) {
+			BufferedImage image = new BufferedImage(64, 48,
+					BufferedImage.TYPE_3BYTE_BGR);
+			for (int y = 0; y < 48; y++) {
+				for (int x = 0; x < 64; x++) {
+					image.setRGB(x, y, i * 0x020202);
+				}
+			}
+			writer.encodeVideo(0, image, i * PICTURE_TIME,
+					TimeUnit.MICROSECONDS);
+		}
+		writer.close();
+		return true;
+	}
+
+	@Test
+	public void testKeyFrameToSkipTo() {
+		long[] timeStamps = new long[40];
+		for (int i = 0; i < timeStamps.length; i++) {
+			timeStamps[i] = 1000 + i * PICTURE_TIME;
+		}
+		MovieIndex index = new MovieIndex(new File("movie.avi"), 0, 0,
+				timeStamps, new int[] { 0, 12, 24, 36 });
+		// the key frame at or before the picture shown at the time
+		assertEquals(12, MovieDecoder.getKeyFrameToSkipTo(index, 1000,
+				timeStamps[12]));
+		assertEquals(12, MovieDecoder.getKeyFrameToSkipTo(index, 1000,
+				timeStamps[23] + 1));
+		assertEquals(24, MovieDecoder.getKeyFrameToSkipTo(index, 1000,
+				timeStamps[24]));
+		// nothing to skip to when the key frame isn't ahead
+		assertEquals(-1, MovieDecoder.getKeyFrameToSkipTo(index, 1000,
+				timeStamps[11]));
+		assertEquals(-1, MovieDecoder.getKeyFrameToSkipTo(index,
+				timeStamps[12], timeStamps[20]));
+		assertEquals(36, MovieDecoder.getKeyFrameToSkipTo(index,
+				timeStamps[12], timeStamps[39] + PICTURE_TIME));
+	}
+
+	@Test
+	public void testSkipToNeverGoesBack() throws IOException {
+		File file = File.createTempFile("movie", ".mp4");
+		try {
+			// only where Xuggler can write movies
+			Assume.assumeTrue(writeMovie(file, 100));
+			MovieDecoder decoder = new MovieDecoder(file, 1);
+			try {
+				assertTrue(decoder.next());
+				long time = 60 * PICTURE_TIME;
+				decoder.skipTo(time);
+				// no picture held back from before the skip comes out
+				long last = decoder.getTimeStamp();
+				int pictures = 0;
+				while (decoder.next()) {
+					assertTrue(decoder.getTimeStamp() > last);
+					last = decoder.getTimeStamp();
+					if (last >= time) {
+						pictures++;
+					}
+				}
+				assertEquals(40, pictures);
+				assertEquals(99 * PICTURE_TIME, last);
+			} finally {
+				decoder.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package edu.lclark.drosophila;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStream;
+
+/**
+ * The time stamp of every picture of a movie, and which pictures are key
+ * frames, so that the pictures of a movie can be counted and timed exactly,
+ * and the decoder only seeks when there is a key frame to seek to.
+ * <p>
+ * The index is made by reading every packet of the movie's video stream
+ * once, without decoding any of them, and is kept in a file next to the
+ * movie, named like the movie with ".index" added. Opening the movie again
+ * reads that file rather than the movie. The file holds the length of the
+ * movie and the time it was last changed, and a movie which has changed
+ * since is indexed again. If the file can't be written, say because the
+ * movie is on a disk we can't write to, the index is only kept in memory.
+ * <p>
+ * Time stamps are in microseconds, like the decoder's, and in the order the
+ * pictures are shown, which isn't always the order they are stored in.
+ * Packets without a time stamp aren't counted.
+ * <p>
+ * An index is never changed once made, so it can be shared between threads.
+ */
+public class MovieIndex {
+
+	/**
+	 * The first four bytes of an index file, "FLYI".
+	 */
+	private static final int MAGIC = 0x464C5949;
+
+	/**
+	 * The most pictures an index file may hold, which is a day of a movie
+	 * at 300 pictures a second. A larger count means the file is broken.
+	 */
+	private static final int MAX_FRAMES = 24 * 60 * 60 * 300;
+
+	/**
+	 * The version of the index file layout.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Returns the index of the given movie, reading it from the index file
+	 * next to the movie if it is up to date, and indexing the movie and
+	 * writing the file otherwise.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @return the index.
+	 * @throws IOException
+	 *             if the movie can't be opened or has no video stream.
+	 */
+	public static MovieIndex forMovie(File movie) throws IOException {
+		File file = getIndexFile(movie);
+		if (file.isFile()) {
+			try {
+				MovieIndex index = read(movie, file);
+				if (index != null) {
+					return index;
+				}
+			} catch (IOException e) {
+				// a broken index file is made again
+				System.err.println("Could not read " + file + ": "
+						+ e.getMessage());
+			}
+		}
+		MovieIndex index = build(movie);
+		try {
+			index.write(file);
+		} catch (IOException e) {
+			System.err.println("Could not write " + file + ": "
+					+ e.getMessage());
+			file.delete();
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the file the index of the given movie is kept in.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @return the index file, next to the movie.
+	 */
+	public static File getIndexFile(File movie) {
+		return new File(movie.getPath() + ".index");
+	}
+
+	/**
+	 * Indexes a movie by reading the packets of its video stream.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @return the index.
+	 * @throws IOException
+	 *             if the movie can't be opened or has no video stream.
+	 */
+	private static MovieIndex build(File movie) throws IOException {
+		long length = movie.length();
+		long lastModified = movie.lastModified();
+		IContainer container = IContainer.make();
+		if (container.open(movie.getAbsolutePath(), IContainer.Type.READ,
+				null) < 0) {
+			throw new IOException("Could not open " + movie);
+		}
+		IPacket packet = IPacket.make();
+		try {
+			IStream stream = null;
+			for (int i = 0; i < container.getNumStreams(); i++) {
+				IStream candidate = container.getStream(i);
+				if (candidate.getStreamCoder().getCodecType()
+						== ICodec.Type.CODEC_TYPE_VIDEO) {
+					stream = candidate;
+					break;
+				}
+			}
+			if (stream == null) {
+				throw new IOException("No video stream in " + movie);
+			}
+			IRational timeBase = stream.getTimeBase();
+			double microSeconds = (double) Global.DEFAULT_PTS_PER_SECOND
+					* timeBase.getNumerator() / timeBase.getDenominator();
+			long[] stamps = new long[1024];
+			long[] keys = new long[64];
+			int count = 0;
+			int keyCount = 0;
+			while (container.readNextPacket(packet) >= 0) {
+				if (packet.getStreamIndex() != stream.getIndex()) {
+					continue;
+				}
+				long pts = packet.getPts();
+				if (pts == Global.NO_PTS) {
+					pts = packet.getDts();
+				}
+				if (pts == Global.NO_PTS) {
+					continue;
+				}
+				long stamp = Math.round(pts * microSeconds);
+				if (count == stamps.length) {
+					stamps = Arrays.copyOf(stamps, 2 * count);
+				}
+				stamps[count++] = stamp;
+				if (packet.isKeyPacket()) {
+					if (keyCount == keys.length) {
+						keys = Arrays.copyOf(keys, 2 * keyCount);
+					}
+					keys[keyCount++] = stamp;
+				}
+			}
+			// packets are stored in the order they are decoded in
+			stamps = Arrays.copyOf(stamps, count);
+			Arrays.sort(stamps);
+			int[] keyFrames = new int[keyCount];
+			for (int i = 0; i < keyCount; i++) {
+				keyFrames[i] = Arrays.binarySearch(stamps, keys[i]);
+			}
+			Arrays.sort(keyFrames);
+			return new MovieIndex(movie, length, lastModified, stamps,
+					keyFrames);
+		} finally {
+			packet.delete();
+			container.close();
+		}
+	}
+
+	/**
+	 * Reads the index file of a movie.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @param file
+	 *            the index file.
+	 * @return the index, or null if the movie has changed since it was
+	 *         indexed.
+	 * @throws IOException
+	 *             if the file can't be read, isn't an index file or holds a
+	 *             table which can't be right.
+	 */
+	static MovieIndex read(File movie, File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an index file");
+			}
+			long length = in.readLong();
+			long lastModified = in.readLong();
+			if (length != movie.length()
+					|| lastModified != movie.lastModified()) {
+				return null;
+			}
+			int count = readCount(in, MAX_FRAMES);
+			// the arrays only grow as far as the file really goes
+			long[] timeStamps = new long[Math.min(count, 1024)];
+			long stamp = 0;
+			for (int i = 0; i < count; i++) {
+				long step = in.readLong();
+				if (i > 0 && step < 0) {
+					throw new IOException("Time stamps out of order");
+				}
+				stamp += step;
+				if (i == timeStamps.length) {
+					timeStamps = Arrays.copyOf(timeStamps, Math.min(2 * i,
+							count));
+				}
+				timeStamps[i] = stamp;
+			}
+			int[] keyFrames = new int[readCount(in, count)];
+			for (int i = 0; i < keyFrames.length; i++) {
+				keyFrames[i] = in.readInt();
+				if (keyFrames[i] < (i > 0 ? keyFrames[i - 1] + 1 : 0)
+						|| keyFrames[i] >= count) {
+					throw new IOException("Key frames out of order");
+				}
+			}
+			return new MovieIndex(movie, length, lastModified, timeStamps,
+					keyFrames);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the number of entries of a table of an index file.
+	 *
+	 * @param in
+	 *            the index file.
+	 * @param max
+	 *            the most entries the table can have.
+	 * @return the number of entries.
+	 * @throws IOException
+	 *             if the file can't be read, or the number is out of range.
+	 */
+	private static int readCount(DataInputStream in, int max)
+			throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > max) {
+			throw new IOException("Bad table length " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * The numbers of the pictures which are key frames, in order.
+	 */
+	private final int[] keyFrames;
+
+	/**
+	 * The time the movie was last changed when it was indexed.
+	 */
+	private final long lastModified;
+
+	/**
+	 * The length of the movie in bytes when it was indexed.
+	 */
+	private final long length;
+
+	/**
+	 * The movie file.
+	 */
+	private final File movie;
+
+	/**
+	 * The time stamp of every picture in microseconds, in the order they are
+	 * shown.
+	 */
+	private final long[] timeStamps;
+
+	/**
+	 * Makes an index out of its parts, which aren't copied.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @param length
+	 *            the length of the movie when it was indexed.
+	 * @param lastModified
+	 *            the time the movie was last changed when it was indexed.
+	 * @param timeStamps
+	 *            the time stamp of every picture, in order.
+	 * @param keyFrames
+	 *            the numbers of the key frames, in order.
+	 */
+	MovieIndex(File movie, long length, long lastModified,
+			long[] timeStamps, int[] keyFrames) {
+		this.movie = movie;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.timeStamps = timeStamps;
+		this.keyFrames = keyFrames;
+	}
+
+	/**
+	 * Returns how long the movie runs, from the first picture to the end of
+	 * the last one, taking every picture to be shown for the average time
+	 * between pictures.
+	 *
+	 * @return the duration in microseconds, or 0 if the movie has fewer than
+	 *         two pictures.
+	 */
+	public long getDuration() {
+		int count = timeStamps.length;
+		if (count < 2) {
+			return 0;
+		}
+		return Math.round((double) (timeStamps[count - 1] - timeStamps[0])
+				* count / (count - 1));
+	}
+
+	/**
+	 * Returns the first picture shown at or after the given time.
+	 *
+	 * @param time
+	 *            the time in microseconds.
+	 * @return the number of the picture, or the number of pictures if every
+	 *         picture is shown before the time.
+	 */
+	public int getFrameAt(long time) {
+		int found = Arrays.binarySearch(timeStamps, time);
+		if (found < 0) {
+			return -found - 1;
+		}
+		// two pictures can share a time stamp
+		while (found > 0 && timeStamps[found - 1] == time) {
+			found--;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the number of pictures in the movie.
+	 *
+	 * @return the number of pictures with a time stamp.
+	 */
+	public int getFrameCount() {
+		return timeStamps.length;
+	}
+
+	/**
+	 * Returns the last key frame at or before the given picture, which is
+	 * where decoding has to start to get that picture.
+	 *
+	 * @param frame
+	 *            the number of the picture.
+	 * @return the number of the key frame, or -1 if there is none.
+	 */
+	public int getKeyFrameBefore(int frame) {
+		int found = Arrays.binarySearch(keyFrames, frame);
+		if (found >= 0) {
+			return frame;
+		}
+		int before = -found - 2;
+		return before >= 0 ? keyFrames[before] : -1;
+	}
+
+	/**
+	 * Returns the movie file the index is of.
+	 *
+	 * @return the movie file.
+	 */
+	public File getMovie() {
+		return movie;
+	}
+
+	/**
+	 * Returns the time stamp of the given picture.
+	 *
+	 * @param frame
+	 *            the number of the picture.
+	 * @return the time stamp in microseconds.
+	 */
+	public long getTimeStamp(int frame) {
+		return timeStamps[frame];
+	}
+
+	/**
+	 * Checks if the given picture is a key frame, which is stored whole.
+	 *
+	 * @param frame
+	 *            the number of the picture.
+	 * @return true if the picture is a key frame.
+	 */
+	public boolean isKeyFrame(int frame) {
+		return Arrays.binarySearch(keyFrames, frame) >= 0;
+	}
+
+	/**
+	 * Checks if the index is of the given movie as it is now.
+	 *
+	 * @param file
+	 *            the movie file.
+	 * @return true if the index is of that file, and the file hasn't changed
+	 *         since it was indexed.
+	 */
+	public boolean isOf(File file) {
+		return file.getAbsoluteFile().equals(movie.getAbsoluteFile())
+				&& file.length() == length
+				&& file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Writes the index into the given file. Every time stamp is written as
+	 * the step from the one before, and the file is gzipped, so a movie
+	 * whose pictures come at a steady rate takes next to nothing. The index
+	 * is written into a temporary file next to it first, which is then
+	 * renamed, so a run which dies while writing never leaves half a file.
+	 *
+	 * @param file
+	 *            the index file.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	void write(File file) throws IOException {
+		File temporary = File.createTempFile(file.getName(), ".tmp", file
+				.getAbsoluteFile().getParentFile());
+		boolean written = false;
+		try {
+			writeTo(temporary);
+			// renaming onto an existing file fails on some systems
+			file.delete();
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Could not rename " + temporary);
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				temporary.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes the index straight into the given file.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	private void writeTo(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeLong(lastModified);
+			out.writeInt(timeStamps.length);
+			long previous = 0;
+			for (long stamp : timeStamps) {
+				out.writeLong(stamp - previous);
+				previous = stamp;
+			}
+			out.writeInt(keyFrames.length);
+			for (int frame : keyFrames) {
+				out.writeInt(frame);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package edu.lclark.drosophila;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.*;
+
+public class MovieIndexTest {
+
+	private File movie;
+
+	private File indexFile;
+
+	/**
+	 * Writes the given number of bytes into the stand-in movie file.
+	 */
+	private void writeMovie(int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(movie);
+		try {
+			out.write(new byte[length]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes an index file by hand, with the given time stamp steps and key
+	 * frames, and the given counts in front of them.
+	 */
+	private void writeIndex(int stampCount, long[] steps, int keyCount,
+			int[] keyFrames) throws IOException {
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+				new FileOutputStream(indexFile)));
+		try {
+			out.writeInt(0x464C5949);
+			out.writeInt(1);
+			out.writeLong(movie.length());
+			out.writeLong(movie.lastModified());
+			out.writeInt(stampCount);
+			for (long step : steps) {
+				out.writeLong(step);
+			}
+			out.writeInt(keyCount);
+			for (int frame : keyFrames) {
+				out.writeInt(frame);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks that reading the index file fails with an IOException.
+	 */
+	private void assertBroken() {
+		try {
+			MovieIndex.read(movie, indexFile);
+			fail("Broken index file was read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		movie = File.createTempFile("movie", ".avi");
+		indexFile = MovieIndex.getIndexFile(movie);
+		writeMovie(100);
+	}
+
+	@After
+	public void tearDown() {
+		movie.delete();
+		indexFile.delete();
+	}
+
+	@Test
+	public void testGetFrameAt() {
+		MovieIndex index = new MovieIndex(movie, 100, 0, new long[] { 0, 40,
+				40, 80, 120 }, new int[] { 0 });
+		assertEquals(5, index.getFrameCount());
+		assertEquals(0, index.getFrameAt(-10));
+		assertEquals(0, index.getFrameAt(0));
+		assertEquals(1, index.getFrameAt(1));
+		// the first of the pictures sharing a time stamp
+		assertEquals(1, index.getFrameAt(40));
+		assertEquals(3, index.getFrameAt(41));
+		assertEquals(4, index.getFrameAt(120));
+		assertEquals(5, index.getFrameAt(121));
+		assertEquals(150, index.getDuration());
+	}
+
+	@Test
+	public void testGetKeyFrameBefore() {
+		MovieIndex index = new MovieIndex(movie, 100, 0, new long[] { 0, 40,
+				80, 120, 160, 200, 240 }, new int[] { 1, 4 });
+		assertEquals(-1, index.getKeyFrameBefore(0));
+		assertEquals(1, index.getKeyFrameBefore(1));
+		assertEquals(1, index.getKeyFrameBefore(3));
+		assertEquals(4, index.getKeyFrameBefore(4));
+		assertEquals(4, index.getKeyFrameBefore(6));
+		assertFalse(index.isKeyFrame(3));
+		assertTrue(index.isKeyFrame(4));
+	}
+
+	@Test
+	public void testWriteAndReadBack() throws IOException {
+		long[] timeStamps = { 1000, 34367, 67700, 101033, 134367, 167700 };
+		MovieIndex index = new MovieIndex(movie, movie.length(),
+				movie.lastModified(), timeStamps, new int[] { 0, 3 });
+		assertTrue(index.isOf(movie));
+		index.write(indexFile);
+		MovieIndex read = MovieIndex.read(movie, indexFile);
+		assertNotNull(read);
+		assertTrue(read.isOf(movie));
+		assertEquals(timeStamps.length, read.getFrameCount());
+		for (int i = 0; i < timeStamps.length; i++) {
+			assertEquals(timeStamps[i], read.getTimeStamp(i));
+			assertEquals(i == 0 || i == 3, read.isKeyFrame(i));
+		}
+		// an index of a movie which has changed since isn't used
+		writeMovie(101);
+		assertFalse(index.isOf(movie));
+		assertNull(MovieIndex.read(movie, indexFile));
+		new MovieIndex(movie, movie.length(), movie.lastModified() + 1000,
+				timeStamps, new int[] { 0 }).write(indexFile);
+		assertNull(MovieIndex.read(movie, indexFile));
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadRejectsOtherFiles() throws IOException {
+		MovieIndex.read(movie, movie);
+	}
+
+	@Test
+	public void testReadRejectsBrokenTables() throws IOException {
+		long[] steps = { 5, 40, 40, 0, 40 };
+		writeIndex(5, steps, 2, new int[] { 0, 3 });
+		assertEquals(5, MovieIndex.read(movie, indexFile).getFrameCount());
+		writeIndex(-1, new long[0], 0, new int[0]);
+		assertBroken();
+		// a count far past what the file holds
+		writeIndex(Integer.MAX_VALUE, steps, 2, new int[] { 0, 3 });
+		assertBroken();
+		writeIndex(1 << 20, steps, 2, new int[] { 0, 3 });
+		assertBroken();
+		writeIndex(5, new long[] { 5, 40, -1, 40, 40 }, 2,
+				new int[] { 0, 3 });
+		assertBroken();
+		writeIndex(5, steps, 6, new int[] { 0, 1, 2, 3, 4, 5 });
+		assertBroken();
+		writeIndex(5, steps, 2, new int[] { 0, 5 });
+		assertBroken();
+		writeIndex(5, steps, 2, new int[] { 3, 0 });
+		assertBroken();
+		writeIndex(5, steps, 1, new int[] { -1 });
+		assertBroken();
+	}
+
+	@Test
+	public void testWriteLeavesNoTemporaryFiles() throws IOException {
+		MovieIndex index = new MovieIndex(movie, movie.length(),
+				movie.lastModified(), new long[] { 0, 40 }, new int[] { 0 });
+		index.write(indexFile);
+		// writing over an index file which is already there
+		index.write(indexFile);
+		assertNotNull(MovieIndex.read(movie, indexFile));
+		String prefix = indexFile.getName();
+		for (String name : indexFile.getParentFile().list()) {
+			assertFalse(name.startsWith(prefix) && !name.equals(prefix));
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package edu.lclark.drosophila;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One stretch of a movie, analyzed on its own so that a long movie can be
+ * split into segments which are decoded and searched at the same time, each
+ * on its own thread with its own decoder.
+ * <p>
+ * A segment is the run of analyzed frames from its first frame up to, but
+ * not counting, its end frame. The frames are picked out of the pictures of
+ * the movie the same way a run through the whole movie picks them: analyzed
+ * frame k is the first picture at or after the start time of the movie plus
+ * k frame spacings. After the first frame, a picture is taken for the next
+ * frame once that frame is due, like in a run through the whole movie. A run
+ * which fell behind after a gap in the time stamps can take a later picture
+ * for the first frame of a segment, so segments are only used once the
+ * movie index shows they start at the same pictures (see
+ * {@link Analyzer#segmentsMatchWholeRun}).
+ * <p>
+ * A segment which doesn't start at the start of the movie skips its decoder
+ * ahead to the last key frame before its first frame, which is where
+ * decoding has to start from anyway, so segments only ever decode a few
+ * pictures twice: the ones between that key frame and the first frame.
+ * Every frame is searched on the segment's thread, and handed to the
+ * tracker in frame order.
+ * <p>
+ * A segment is analyzed once, from one thread.
+ */
+public class MovieSegment {
+
+	/**
+	 * Whether frames are searched in the Y plane of the decoded pictures,
+	 * where the movie's format allows.
+	 */
+	private boolean decodeLuma;
+
+	/**
+	 * The number of the analyzed frame after the last one of the segment, or
+	 * -1 if the segment goes to the end of the movie.
+	 */
+	private final int endFrame;
+
+	/**
+	 * The number of the first analyzed frame of the segment.
+	 */
+	private final int firstFrame;
+
+	/**
+	 * The time between two analyzed frames, in microseconds.
+	 */
+	private final long frameSpacing;
+
+	/**
+	 * The index of the movie, or null if there is none.
+	 */
+	private MovieIndex index;
+
+	/**
+	 * The movie file.
+	 */
+	private final File movie;
+
+	/**
+	 * Whether the decoder skips ahead to the key frame before each analyzed
+	 * frame, rather than decoding every picture in between.
+	 */
+	private boolean skipToKeyFrames;
+
+	/**
+	 * Whether the parts of a frame which haven't changed since the frame
+	 * before are skipped.
+	 */
+	private boolean skipUnchanged;
+
+	/**
+	 * The time stamp of the first picture of the movie, in microseconds.
+	 */
+	private final long startTime;
+
+	/**
+	 * Makes a segment of the given movie.
+	 *
+	 * @param movie
+	 *            the movie file.
+	 * @param startTime
+	 *            the time stamp of the first picture of the movie, in
+	 *            microseconds, which is when frame 0 is due.
+	 * @param frameSpacing
+	 *            the time between two analyzed frames, in microseconds.
+	 * @param firstFrame
+	 *            the number of the first analyzed frame of the segment.
+	 * @param endFrame
+	 *            the number of the analyzed frame after the last one of the
+	 *            segment, or -1 to go to the end of the movie.
+	 */
+	public MovieSegment(File movie, long startTime, long frameSpacing,
+			int firstFrame, int endFrame) {
+		if (frameSpacing < 1) {
+			throw new IllegalArgumentException(
+					"Frame spacing must be at least 1");
+		}
+		if (firstFrame < 0) {
+			throw new IllegalArgumentException(
+					"First frame must be at least 0");
+		}
+		if (endFrame != -1 && endFrame < firstFrame) {
+			throw new IllegalArgumentException("End frame must be -1 or at "
+					+ "least the first frame");
+		}
+		this.movie = movie;
+		this.startTime = startTime;
+		this.frameSpacing = frameSpacing;
+		this.firstFrame = firstFrame;
+		this.endFrame = endFrame;
+	}
+
+	/**
+	 * Decodes the frames of the segment, searches them and hands them to the
+	 * tracker in order. Decoding stops at the end frame, at the end of the
+	 * movie, or at the first packet which can't be decoded.
+	 *
+	 * @param detector
+	 *            the detector to search the frames with.
+	 * @param settings
+	 *            the settings which decide what counts as a fly.
+	 * @param tracker
+	 *            the tracker the flies of every frame are handed to.
+	 * @return the number of the analyzed frame after the last one which was
+	 *         tracked, which is the end frame unless the movie ended first.
+	 * @throws IOException
+	 *             if the movie can't be opened.
+	 */
+	public int analyze(BlobDetector detector, DetectionSettings settings,
+			DetectionPipeline.Tracker tracker) throws IOException {
+		// every frame is done with before the next picture is decoded
+		MovieDecoder decoder = new MovieDecoder(movie, 1);
+		decoder.setIndex(index);
+		int frameNumber = firstFrame;
+		try {
+			boolean luma = decodeLuma
+					&& MovieDecoder.supports(decoder.getPixelType());
+			LuminanceTable table = settings.getLuminanceTable();
+			DetectionContext context = new DetectionContext();
+			context.setSkipUnchanged(skipUnchanged);
+			if (frameNumber > 0) {
+				decoder.skipTo(getDueTime(frameNumber));
+			}
+			// a segment is interrupted when another one failed
+			while ((endFrame == -1 || frameNumber < endFrame)
+					&& !Thread.currentThread().isInterrupted()
+					&& decoder.next()) {
+				if (decoder.getTimeStamp() < getDueTime(frameNumber)) {
+					continue;
+				}
+				if (luma) {
+					context.detect(decoder.getLumaFrame(table), detector,
+							settings);
+				} else {
+					context.detect(decoder.getImage(), detector, settings);
+				}
+				tracker.track(frameNumber, context.getBlobs());
+				frameNumber++;
+				if (skipToKeyFrames) {
+					decoder.skipTo(getDueTime(frameNumber));
+				}
+			}
+		} catch (IOException e) {
+			// the frames decoded so far still count, like in a whole run
+			System.err.println(e.getMessage());
+		} finally {
+			decoder.close();
+		}
+		return frameNumber;
+	}
+
+	/**
+	 * Returns the time the given analyzed frame is due at. The frame is the
+	 * first picture with a time stamp at or after it.
+	 *
+	 * @param frameNumber
+	 *            the number of the analyzed frame.
+	 * @return the time in microseconds.
+	 */
+	private long getDueTime(int frameNumber) {
+		return startTime + frameNumber * frameSpacing;
+	}
+
+	/**
+	 * Returns the number of the analyzed frame after the last one of the
+	 * segment.
+	 *
+	 * @return the end frame, or -1 if the segment goes to the end of the
+	 *         movie.
+	 */
+	public int getEndFrame() {
+		return endFrame;
+	}
+
+	/**
+	 * Returns the number of the first analyzed frame of the segment.
+	 *
+	 * @return the first frame.
+	 */
+	public int getFirstFrame() {
+		return firstFrame;
+	}
+
+	/**
+	 * Sets whether frames are searched in the Y plane of the decoded
+	 * pictures, like {@link Analyzer#setDecodeLuma} does for a whole run.
+	 *
+	 * @param decode
+	 *            true to search the Y plane.
+	 */
+	public void setDecodeLuma(boolean decode) {
+		decodeLuma = decode;
+	}
+
+	/**
+	 * Gives the segment the index of its movie, which tells its decoder
+	 * where the key frames are.
+	 *
+	 * @param index
+	 *            the index of the movie, or null to do without.
+	 */
+	public void setIndex(MovieIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Sets whether the decoder skips ahead to the key frame before each
+	 * analyzed frame, which saves decoding the pictures before that key
+	 * frame when frames are analyzed far apart.
+	 *
+	 * @param skip
+	 *            true to skip to key frames.
+	 */
+	public void setSkipToKeyFrames(boolean skip) {
+		skipToKeyFrames = skip;
+	}
+
+	/**
+	 * Sets whether the parts of a frame which haven't changed since the frame
+	 * before are skipped. The flies found are the same either way.
+	 *
+	 * @param skip
+	 *            true to skip unchanged parts.
+	 */
+	public void setSkipUnchanged(boolean skip) {
+		skipUnchanged = skip;
+	}
+}
@@ -0,0 +1,250 @@
+package edu.lclark.drosophila;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds flies like the {@link LabelingDetector}, but splits the frame into
+ * horizontal strips and labels the strips in parallel on the common
+ * ForkJoinPool.
+ * <p>
+ * Each strip works out the dark mask of its own rows, then runs the first
+ * labeling pass over them with its own labels. The labels of all strips are
+ * then put in one union-find forest, offset so they don't collide, and the
+ * runs on both sides of every seam between two strips are joined wherever
+ * they touch. The resolve pass over that forest gives exactly the blobs a
+ * single pass over the whole frame would.
+ */
+public class ParallelLabelingDetector implements BlobDetector {
+
+	/**
+	 * Labels all strips of a frame, one task per strip. The task is kept in
+	 * the context of the frame, and the strip tasks in the contexts of the
+	 * strips, so they are made once and used again every frame.
+	 */
+	private static class FrameTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int stripCount;
+
+		private DetectionContext[] stripContexts;
+
+		@Override
+		protected void compute() {
+			for (int i = 1; i < stripCount; i++) {
+				stripContexts[i].getTask().fork();
+			}
+			stripContexts[0].getTask().invoke();
+			for (int i = stripCount - 1; i > 0; i--) {
+				stripContexts[i].getTask().join();
+			}
+		}
+
+		/**
+		 * Sets the strips to label in the next run of the task.
+		 */
+		public void setStrips(DetectionContext[] stripContexts,
+				int stripCount) {
+			this.stripContexts = stripContexts;
+			this.stripCount = stripCount;
+		}
+	}
+
+	/**
+	 * Runs the first labeling pass over the rows of one strip.
+	 */
+	private static class StripTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int bottom;
+
+		private final DetectionContext context;
+
+		/**
+		 * The context of the whole frame, whose dark mask the strip works
+		 * out its rows of.
+		 */
+		private final DetectionContext frameContext;
+
+		private int height;
+
+		/**
+		 * The label of the first run of the last row of the strip, once the
+		 * strip has been labeled.
+		 */
+		private int lastRowStart;
+
+		/**
+		 * The number the labels of the strip start at in the forest of the
+		 * whole frame.
+		 */
+		private int offset;
+
+		private byte[] pixels;
+
+		private LuminanceTable table;
+
+		private int top;
+
+		private int width;
+
+		public StripTask(DetectionContext frameContext,
+				DetectionContext context) {
+			this.frameContext = frameContext;
+			this.context = context;
+		}
+
+		@Override
+		protected void compute() {
+			frameContext.maskRows(pixels, top, bottom, table);
+			lastRowStart = LabelingDetector.labelRows(
+					frameContext.getDarkMask(), frameContext.getMaskStride(),
+					width, height, top, bottom, context);
+		}
+
+		/**
+		 * Sets the rows to label in the next run of the task.
+		 */
+		public void setRows(byte[] pixels, int width, int height, int top,
+				int bottom, LuminanceTable table) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.top = top;
+			this.bottom = bottom;
+			this.table = table;
+		}
+	}
+
+	/**
+	 * The number of strips a frame is split into.
+	 */
+	private final int parallelism;
+
+	/**
+	 * Makes a detector which splits frames into as many strips as there are
+	 * processors.
+	 */
+	public ParallelLabelingDetector() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Makes a detector which splits frames into the given number of strips.
+	 *
+	 * @param parallelism
+	 *            the number of strips, at least 1.
+	 */
+	public ParallelLabelingDetector(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	@Override
+	public void detect(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context) {
+		LuminanceTable table = settings.getLuminanceTable();
+		// the mask is made here, so the strips only ever write into it
+		long[] mask = context.getDarkMask();
+		int stride = context.getMaskStride();
+		int stripCount = Math.min(parallelism, height);
+		if (stripCount <= 1) {
+			context.maskRows(pixels, 0, height, table);
+			LabelingDetector.labelRows(mask, stride, width, height, 0, height,
+					context);
+			LabelingDetector.collectBlobs(context.getComponents(),
+					context.getLabelParents(0), settings, context.getBlobs());
+			return;
+		}
+		DetectionContext[] stripContexts = context
+				.getStripContexts(stripCount);
+		for (int i = 0; i < stripCount; i++) {
+			StripTask strip = (StripTask) stripContexts[i].getTask();
+			if (strip == null) {
+				strip = new StripTask(context, stripContexts[i]);
+				stripContexts[i].setTask(strip);
+			} else {
+				strip.reinitialize();
+			}
+			strip.setRows(pixels, width, height, i * height / stripCount,
+					(i + 1) * height / stripCount, table);
+		}
+		FrameTask frame = (FrameTask) context.getTask();
+		if (frame == null) {
+			frame = new FrameTask();
+			context.setTask(frame);
+		} else {
+			frame.reinitialize();
+		}
+		frame.setStrips(stripContexts, stripCount);
+		ForkJoinPool.commonPool().invoke(frame);
+
+		// put the labels of every strip into one forest, each strip's labels
+		// starting where the labels of the strip before it end
+		BlobList components = context.getComponents();
+		components.clear();
+		int total = 0;
+		for (int i = 0; i < stripCount; i++) {
+			StripTask strip = (StripTask) stripContexts[i].getTask();
+			strip.offset = total;
+			total += stripContexts[i].getComponents().size();
+		}
+		int[] parents = context.getLabelParents(total);
+		for (int i = 0; i < stripCount; i++) {
+			BlobList stripComponents = stripContexts[i].getComponents();
+			int[] stripParents = stripContexts[i].getLabelParents(0);
+			int offset = ((StripTask) stripContexts[i].getTask()).offset;
+			for (int label = 0; label < stripComponents.size(); label++) {
+				components.add(stripComponents.getArea(label),
+						stripComponents.getSumX(label),
+						stripComponents.getSumY(label),
+						stripComponents.getFirstPixel(label));
+				parents[offset + label] = offset + stripParents[label];
+			}
+		}
+
+		// join the runs which touch across each seam. The runs of the last
+		// row of the upper strip are labeled from its last row start on, and
+		// the runs of the first row of the lower strip from 0 on.
+		int[] above = context.getPreviousRuns();
+		int[] below = context.getCurrentRuns();
+		for (int i = 0; i < stripCount - 1; i++) {
+			StripTask upper = (StripTask) stripContexts[i].getTask();
+			StripTask lower = (StripTask) stripContexts[i + 1].getTask();
+			int seam = upper.bottom;
+			int aboveCount = LabelingDetector.findRuns(mask, stride, width,
+					seam - 1, above);
+			int belowCount = LabelingDetector.findRuns(mask, stride, width,
+					seam, below);
+			int a = 0;
+			int b = 0;
+			while (a < aboveCount && b < belowCount) {
+				if (above[3 * a] < below[3 * b + 1]
+						&& below[3 * b] < above[3 * a + 1]) {
+					LabelingDetector.union(parents, upper.offset
+							+ upper.lastRowStart + a, lower.offset + b);
+				}
+				if (above[3 * a + 1] < below[3 * b + 1]) {
+					a++;
+				} else {
+					b++;
+				}
+			}
+		}
+		LabelingDetector.collectBlobs(components, parents, settings,
+				context.getBlobs());
+	}
+
+	/**
+	 * Returns the number of strips this detector splits frames into.
+	 *
+	 * @return the number of strips.
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+}
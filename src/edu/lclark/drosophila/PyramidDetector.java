@@ -0,0 +1,275 @@
+package edu.lclark.drosophila;
+
+import java.util.Arrays;
+
+/**
+ * Finds flies by looking for them in a smaller copy of the frame first.
+ * Every square of scale by scale pixels becomes one pixel of the small copy,
+ * which keeps the darkest value of every channel of the square and is
+ * thresholded with one lookup. That pixel is dark whenever any pixel of the
+ * square is, so no fly can be lost in it.
+ * <p>
+ * The blobs of the small copy are found first. A blob of n small pixels
+ * covers at most n * scale * scale pixels of the frame, so one which could
+ * never hold a fly is dropped right away; at the sizes flies are usually
+ * set to, that is most specks of noise. The dark mask is only worked out
+ * for the squares of the other blobs, and the frame is searched again at
+ * full size inside the box around each of them, with the flies found there
+ * measured in full size pixels as usual. The rest of the dark mask is left
+ * clear, so most pixels of a frame are never looked up at all. Every dark
+ * pixel of the frame is in a square of the small copy's blob which holds
+ * its fly, so a fly never runs into a square which hasn't been worked out.
+ * <p>
+ * With an adaptive threshold, or when unchanged parts of frames are
+ * skipped, the dark mask is worked out whole as usual, and the small copy
+ * is made from it, a small pixel being dark if any pixel of its square is.
+ * <p>
+ * The scale is picked from the smallest fly size: the largest of 1, 2 and 4
+ * whose square is smaller than it, so that a single small pixel is always
+ * too little for a fly.
+ */
+public class PyramidDetector implements BlobDetector {
+
+	/**
+	 * The largest scale the frame is made smaller by.
+	 */
+	public static final int MAX_SCALE = 4;
+
+	/**
+	 * Returns the scale the frame is made smaller by for the given smallest
+	 * fly size.
+	 *
+	 * @param minArea
+	 *            the smallest number of pixels a fly can have.
+	 * @return 1, 2 or 4.
+	 */
+	public static int getScale(int minArea) {
+		int scale = 1;
+		while (scale < MAX_SCALE && 4 * scale * scale < minArea) {
+			scale *= 2;
+		}
+		return scale;
+	}
+
+	/**
+	 * Works out the small copy of the dark mask. Squares which are cut off by
+	 * the right or bottom edge of the frame count as if they were whole.
+	 *
+	 * @param dark
+	 *            the dark mask of the frame.
+	 * @param stride
+	 *            the number of longs in each row of the dark mask.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param scale
+	 *            the width and height of the squares, which divides 64.
+	 * @param coarse
+	 *            the mask the small copy is written to.
+	 * @param coarseStride
+	 *            the number of longs in each row of the small copy.
+	 * @param coarseHeight
+	 *            the height of the small copy in pixels.
+	 */
+	private static void pool(long[] dark, int stride, int height, int scale,
+			long[] coarse, int coarseStride, int coarseHeight) {
+		for (int cy = 0; cy < coarseHeight; cy++) {
+			int coarseRow = cy * coarseStride;
+			Arrays.fill(coarse, coarseRow, coarseRow + coarseStride, 0L);
+			int bottom = Math.min((cy + 1) * scale, height);
+			for (int y = cy * scale; y < bottom; y++) {
+				int word = y * stride;
+				for (int w = 0; w < stride; w++, word++) {
+					long bits = dark[word];
+					while (bits != 0) {
+						int cx = ((w << 6) + Long.numberOfTrailingZeros(bits))
+								/ scale;
+						coarse[coarseRow + (cx >>> 6)] |= 1L << cx;
+						// the other pixels of the square add nothing
+						int next = (cx + 1) * scale - (w << 6);
+						bits = next < 64 ? bits & (-1L << next) : 0;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void detect(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context) {
+		int scale = getScale(settings.getMinArea());
+		LuminanceTable table = settings.getLuminanceTable();
+		context.clearVisited();
+		boolean byBlocks = scale > 1 && context.canMaskBoxes();
+		if (!byBlocks) {
+			context.maskRows(pixels, 0, height, table);
+		}
+		if (scale == 1) {
+			// a single dark pixel can be a fly, so nothing can be dropped
+			search(0, 0, width, height, pixels, width, height, settings,
+					context);
+			return;
+		}
+		int coarseWidth = (width + scale - 1) / scale;
+		int coarseHeight = (height + scale - 1) / scale;
+		int coarseStride = (coarseWidth + 63) >>> 6;
+		int length = coarseHeight * coarseStride;
+		long[] coarse = context.getCoarseMask(length);
+		long[] coarseVisited = context.getCoarseVisited(length);
+		if (byBlocks) {
+			// only the squares of blobs which could hold a fly are worked
+			// out, and flies must not run into bits of the frame before
+			long[] dark = context.getDarkMask();
+			Arrays.fill(dark, 0, height * context.getMaskStride(), 0L);
+			context.maskCoarse(pixels, scale, table, coarse, coarseStride);
+		} else {
+			pool(context.getDarkMask(), context.getMaskStride(), height,
+					scale, coarse, coarseStride, coarseHeight);
+		}
+		Arrays.fill(coarseVisited, 0, length, 0L);
+		// the fewest small pixels a blob needs to be able to hold a fly
+		int needed = (settings.getMinArea() + scale * scale - 1)
+				/ (scale * scale);
+		int[] stack = context.getStack();
+		for (int cy = 0; cy < coarseHeight; cy++) {
+			int word = cy * coarseStride;
+			for (int w = 0; w < coarseStride; w++, word++) {
+				long unsearched;
+				while ((unsearched = coarse[word] & ~coarseVisited[word]) != 0) {
+					int cx = (w << 6) + Long.numberOfTrailingZeros(unsearched);
+					coarseVisited[word] |= 1L << cx;
+					// flood fill the blob of the small copy, keeping its box.
+					// Its pixels are taken off the front of the stack, so
+					// that they are all still there once it is filled.
+					int left = cx;
+					int right = cx;
+					int top = cy;
+					int bottom = cy;
+					int head = 0;
+					int count = 0;
+					stack[count++] = cy * coarseWidth + cx;
+					while (head < count) {
+						int pixel = stack[head++];
+						int y = pixel / coarseWidth;
+						int x = pixel - y * coarseWidth;
+						left = Math.min(left, x);
+						right = Math.max(right, x);
+						top = Math.min(top, y);
+						bottom = Math.max(bottom, y);
+						if (x > 0 && visit(x - 1, y, coarse, coarseVisited,
+								coarseStride)) {
+							stack[count++] = pixel - 1;
+						}
+						if (x < coarseWidth - 1
+								&& visit(x + 1, y, coarse, coarseVisited,
+										coarseStride)) {
+							stack[count++] = pixel + 1;
+						}
+						if (y > 0 && visit(x, y - 1, coarse, coarseVisited,
+								coarseStride)) {
+							stack[count++] = pixel - coarseWidth;
+						}
+						if (y < coarseHeight - 1
+								&& visit(x, y + 1, coarse, coarseVisited,
+										coarseStride)) {
+							stack[count++] = pixel + coarseWidth;
+						}
+					}
+					if (count < needed) {
+						continue;
+					}
+					if (byBlocks) {
+						for (int i = 0; i < count; i++) {
+							int y = stack[i] / coarseWidth;
+							int x = stack[i] - y * coarseWidth;
+							context.maskBox(pixels, x * scale, y * scale,
+									Math.min((x + 1) * scale, width),
+									Math.min((y + 1) * scale, height), table);
+						}
+					}
+					search(left * scale, top * scale,
+							Math.min((right + 1) * scale, width),
+							Math.min((bottom + 1) * scale, height), pixels,
+							width, height, settings, context);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flood fills every blob which has a dark pixel in the given box of the
+	 * frame and hasn't been searched yet. Blobs are filled as far as they go,
+	 * even past the box.
+	 *
+	 * @param left
+	 *            the first column of the box.
+	 * @param top
+	 *            the first row of the box.
+	 * @param right
+	 *            the column just past the last column of the box.
+	 * @param bottom
+	 *            the row just past the last row of the box.
+	 * @param pixels
+	 *            the BGR bytes of the frame.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param settings
+	 *            the settings which decide which blobs are the right size.
+	 * @param context
+	 *            the scratch space to use.
+	 */
+	private static void search(int left, int top, int right, int bottom,
+			byte[] pixels, int width, int height, DetectionSettings settings,
+			DetectionContext context) {
+		long[] dark = context.getDarkMask();
+		long[] visited = context.getVisited();
+		int stride = context.getMaskStride();
+		for (int j = top; j < bottom; j++) {
+			for (int x = left; x < right;) {
+				int word = j * stride + (x >>> 6);
+				int start = x & 63;
+				int end = Math.min(right - (x - start), 64);
+				long columns = -1L << start;
+				if (end < 64) {
+					columns &= (1L << end) - 1;
+				}
+				long unsearched;
+				while ((unsearched = dark[word] & ~visited[word] & columns) != 0) {
+					int i = (x - start) + Long.numberOfTrailingZeros(unsearched);
+					context.visitDark(i, j);
+					FloodFillDetector.fill(i, j, pixels, width, height,
+							settings, context, true);
+				}
+				x += end - start;
+			}
+		}
+	}
+
+	/**
+	 * Marks the given pixel of the small copy as searched if it is dark and
+	 * hasn't been searched yet.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel.
+	 * @param y
+	 *            the y coordinate of the pixel.
+	 * @param coarse
+	 *            the small copy of the dark mask.
+	 * @param coarseVisited
+	 *            the searched pixels of the small copy.
+	 * @param coarseStride
+	 *            the number of longs in each row of the small copy.
+	 * @return true if the pixel was dark and not searched before.
+	 */
+	private static boolean visit(int x, int y, long[] coarse,
+			long[] coarseVisited, int coarseStride) {
+		int word = y * coarseStride + (x >>> 6);
+		long bit = 1L << x;
+		if ((coarse[word] & ~coarseVisited[word] & bit) == 0) {
+			return false;
+		}
+		coarseVisited[word] |= bit;
+		return true;
+	}
+}
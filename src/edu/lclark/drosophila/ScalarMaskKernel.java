@@ -0,0 +1,35 @@
+package edu.lclark.drosophila;
+
+/**
+ * Works out the dark mask one pixel at a time with the lookup tables. It
+ * runs anywhere, and is what the Analyzer uses unless the vector kernel is
+ * asked for.
+ */
+public class ScalarMaskKernel implements MaskKernel {
+
+	@Override
+	public void maskRows(byte[] pixels, int width, int top, int bottom,
+			int left, int right, LuminanceTable table, long[] mask, int stride) {
+		for (int y = top; y < bottom; y++) {
+			int rowOffset = y * width * 3;
+			for (int x = left; x < right;) {
+				int word = y * stride + (x >>> 6);
+				int start = x & 63;
+				int end = Math.min(right - (x - start), 64);
+				int offset = rowOffset + x * 3;
+				long bits = 0;
+				for (int bit = start; bit < end; bit++, offset += 3) {
+					if (table.isDark(pixels, offset)) {
+						bits |= 1L << bit;
+					}
+				}
+				long covered = -1L << start;
+				if (end < 64) {
+					covered &= (1L << end) - 1;
+				}
+				mask[word] = (mask[word] & ~covered) | bits;
+				x += end - start;
+			}
+		}
+	}
+}
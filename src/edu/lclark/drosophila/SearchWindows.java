@@ -0,0 +1,120 @@
+package edu.lclark.drosophila;
+
+/**
+ * Small squares of a frame where the flies are expected to be, for searching
+ * a frame without looking at the rest of it. Flies only move a few pixels
+ * from one frame to the next, so a square around where each fly is predicted
+ * to be is enough to find it again.
+ * <p>
+ * Only the pixels inside the squares are checked for being the start of a
+ * blob, but a blob found there is flood filled as far as it goes, so a fly
+ * which is only partly inside its square is still found whole. A fly which
+ * is nowhere near any square, like one which just walked into the frame, is
+ * not found at all, so a frame has to be searched whole now and then.
+ * <p>
+ * Windows are never changed once made, so they can be shared between
+ * threads.
+ */
+public class SearchWindows {
+
+	/**
+	 * The x coordinate of the center of every square.
+	 */
+	private final int[] centerX;
+
+	/**
+	 * The y coordinate of the center of every square.
+	 */
+	private final int[] centerY;
+
+	/**
+	 * How many pixels every square reaches out from its center.
+	 */
+	private final int radius;
+
+	/**
+	 * Makes a square around each of the given points.
+	 *
+	 * @param x
+	 *            the x coordinate of every point.
+	 * @param y
+	 *            the y coordinate of every point.
+	 * @param radius
+	 *            how many pixels the squares reach out from the points in
+	 *            each direction.
+	 */
+	public SearchWindows(double[] x, double[] y, int radius) {
+		if (x.length != y.length) {
+			throw new IllegalArgumentException(
+					"There must be as many y coordinates as x coordinates");
+		}
+		if (radius < 0) {
+			throw new IllegalArgumentException("Radius must be at least 0");
+		}
+		this.radius = radius;
+		centerX = new int[x.length];
+		centerY = new int[y.length];
+		for (int i = 0; i < x.length; i++) {
+			centerX[i] = (int) Math.round(x[i]);
+			centerY[i] = (int) Math.round(y[i]);
+		}
+	}
+
+	/**
+	 * Returns how many pixels the squares reach out from their centers.
+	 *
+	 * @return the radius of the squares.
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Finds the flies with a pixel inside one of the squares, and adds them
+	 * to the blob list of the context, in no particular order. Pixels are
+	 * checked with the lookup tables as the search comes to them, so the
+	 * dark mask of the frame isn't worked out.
+	 *
+	 * @param pixels
+	 *            the BGR bytes of the frame, three bytes per pixel, row by
+	 *            row.
+	 * @param width
+	 *            the width of the frame in pixels.
+	 * @param height
+	 *            the height of the frame in pixels.
+	 * @param settings
+	 *            the settings which decide which pixels are dark and which
+	 *            blobs are the right size.
+	 * @param context
+	 *            the scratch space to use, already reset for this frame.
+	 */
+	public void search(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context) {
+		LuminanceTable table = settings.getLuminanceTable();
+		context.clearVisited();
+		for (int i = 0; i < centerX.length; i++) {
+			int left = Math.max(centerX[i] - radius, 0);
+			int right = Math.min(centerX[i] + radius + 1, width);
+			int top = Math.max(centerY[i] - radius, 0);
+			int bottom = Math.min(centerY[i] + radius + 1, height);
+			// squares which overlap share the pixels searched already
+			for (int y = top; y < bottom; y++) {
+				for (int x = left; x < right; x++) {
+					if (context.visitPixel(x, y, pixels, table)) {
+						FloodFillDetector.fill(x, y, pixels, width, height,
+								settings, context, false);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of squares.
+	 *
+	 * @return the number of squares.
+	 */
+	public int size() {
+		return centerX.length;
+	}
+}
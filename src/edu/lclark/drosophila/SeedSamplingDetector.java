@@ -0,0 +1,80 @@
+package edu.lclark.drosophila;
+
+/**
+ * Finds flies without looking at most of the background. Only every k-th row
+ * and every k-th column of the frame is searched for dark pixels, and a blob
+ * is only flood filled from a dark pixel found there. Pixels are checked
+ * with the lookup tables as the fill comes to them, so the rest of the frame
+ * is never looked at.
+ * <p>
+ * No fly can be missed: a blob which touches none of the searched rows and
+ * columns fits between two searched rows and between two searched columns,
+ * so it has at most (k - 1) * (k - 1) pixels. k is the smallest step for
+ * which that is less than the smallest fly, k = floor(sqrt(minArea - 1)) +
+ * 1. Blobs too small to be flies may be missed, but they would be thrown
+ * away anyway, so this finds exactly the flies a full scan finds.
+ * <p>
+ * On mostly light frames this looks at about 2 / k of the pixels, plus the
+ * flies and their outlines.
+ */
+public class SeedSamplingDetector implements BlobDetector {
+
+	/**
+	 * Returns the step between searched rows and columns for the given
+	 * smallest fly size.
+	 *
+	 * @param minArea
+	 *            the smallest number of pixels a fly can have.
+	 * @return the largest step which can't miss a fly, at least 1.
+	 */
+	public static int getStep(int minArea) {
+		if (minArea <= 1) {
+			return 1;
+		}
+		int k = (int) Math.sqrt(minArea - 1);
+		// make sure of the square root when it isn't exact
+		while ((k + 1) * (k + 1) <= minArea - 1) {
+			k++;
+		}
+		while (k * k > minArea - 1) {
+			k--;
+		}
+		return k + 1;
+	}
+
+	@Override
+	public void detect(byte[] pixels, int width, int height,
+			DetectionSettings settings, DetectionContext context) {
+		LuminanceTable table = settings.getLuminanceTable();
+		int k = getStep(settings.getMinArea());
+		context.clearVisited();
+		long[] dark = context.getDarkMask();
+		long[] visited = context.getVisited();
+		int stride = context.getMaskStride();
+		for (int j = 0; j < height; j++) {
+			if (j % k == 0) {
+				// a searched row is worked out all at once with the mask
+				// kernel and scanned a long at a time
+				context.maskRows(pixels, j, j + 1, table);
+				int word = j * stride;
+				for (int w = 0; w < stride; w++, word++) {
+					long unsearched;
+					while ((unsearched = dark[word] & ~visited[word]) != 0) {
+						int i = (w << 6)
+								+ Long.numberOfTrailingZeros(unsearched);
+						context.visitPixel(i, j, pixels, table);
+						FloodFillDetector.fill(i, j, pixels, width, height,
+								settings, context, false);
+					}
+				}
+			} else {
+				for (int i = 0; i < width; i += k) {
+					if (context.visitPixel(i, j, pixels, table)) {
+						FloodFillDetector.fill(i, j, pixels, width, height,
+								settings, context, false);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package edu.lclark.drosophila;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Every blob of dark pixels a frame has at every contrast threshold, so that
+ * the blobs for another threshold can be picked out without looking at the
+ * pixels again.
+ * <p>
+ * Each pixel has a dark level, the smallest contrast threshold at which it
+ * counts as dark. Raising the threshold only ever adds pixels to the dark
+ * ones, so blobs only ever grow and join together, and every blob of every
+ * threshold is one node of a tree. The tree is built by adding the pixels in
+ * order of their dark levels and joining them to their dark neighbors with
+ * union-find. A node is made for a blob whenever it changes, holding the
+ * blob's pixel count, coordinate sums and first pixel as they are from that
+ * threshold on, and the node is done with at the threshold where the blob
+ * grows or joins another one.
+ * <p>
+ * The blobs of a threshold are then the nodes which start at or below it and
+ * aren't done with yet, which is one pass over the nodes. The nodes are kept
+ * in the order of their first pixels, so the blobs come out in the order a
+ * column by column scan finds them, like the blob detectors give them.
+ * <p>
+ * A tree only depends on the image contrast of the lookup tables, not on
+ * their contrast threshold. It takes up to 28 bytes for every pixel, so it
+ * is meant for image sequences rather than long movies. A tree is never
+ * changed once made, so it can be shared between threads.
+ */
+public class ThresholdTree {
+
+	/**
+	 * The dark level of pixels which are never searched, past every
+	 * threshold.
+	 */
+	private static final int NEVER = 256;
+
+	/**
+	 * Finds the root of the set the given pixel is in, halving the path to
+	 * it on the way.
+	 *
+	 * @param parents
+	 *            the union-find parent of every pixel.
+	 * @param pixel
+	 *            the index of the pixel.
+	 * @return the index of the root pixel.
+	 */
+	private static int find(int[] parents, int pixel) {
+		while (parents[pixel] != pixel) {
+			parents[pixel] = parents[parents[pixel]];
+			pixel = parents[pixel];
+		}
+		return pixel;
+	}
+
+	/**
+	 * The number of pixels in the blob of each node.
+	 */
+	private final int[] area;
+
+	/**
+	 * The arenas the search was kept to, or null if the whole frame was
+	 * searched.
+	 */
+	private final ArenaRegion arenaRegion;
+
+	/**
+	 * The threshold from which on each node is a blob.
+	 */
+	private final short[] birth;
+
+	/**
+	 * The threshold from which on the blob of each node has grown, or
+	 * {@link #NEVER} if it never does.
+	 */
+	private final short[] death;
+
+	/**
+	 * The index (x * image height + y) of the left-most, then top-most pixel
+	 * of the blob of each node.
+	 */
+	private final int[] firstPixel;
+
+	/**
+	 * The sum of the x coordinates of every pixel in the blob of each node.
+	 */
+	private final long[] sumX;
+
+	/**
+	 * The sum of the y coordinates of every pixel in the blob of each node.
+	 */
+	private final long[] sumY;
+
+	/**
+	 * Builds the tree of the given frame.
+	 *
+	 * @param image
+	 *            the frame.
+	 * @param settings
+	 *            the settings whose lookup tables give the dark levels. Their
+	 *            exclusion mask and arenas are kept out of the tree as usual.
+	 *            They can't have an adaptive threshold or a background model,
+	 *            and their contrast threshold and fly sizes don't matter.
+	 * @param context
+	 *            the scratch space to get the pixels of the frame with.
+	 */
+	public ThresholdTree(BufferedImage image, DetectionSettings settings,
+			DetectionContext context) {
+		this(LumaFrame.fromImage(image, settings.getLuminanceTable()),
+				settings, context);
+	}
+
+	/**
+	 * Builds the tree of the given frame of gray scale values, which are the
+	 * dark levels of its pixels.
+	 *
+	 * @param frame
+	 *            the frame, made with the image contrast of the settings.
+	 * @param settings
+	 *            the settings whose exclusion mask and arenas are kept out of
+	 *            the tree. They can't have an adaptive threshold or a
+	 *            background model, and their contrast threshold and fly sizes
+	 *            don't matter.
+	 * @param context
+	 *            the scratch space to prepare the frame with.
+	 */
+	public ThresholdTree(LumaFrame frame, DetectionSettings settings,
+			DetectionContext context) {
+		if (settings.getAdaptiveThreshold() != null
+				|| settings.getBackgroundModel() != null) {
+			throw new IllegalArgumentException("Settings can't have an "
+					+ "adaptive threshold or a background model");
+		}
+		arenaRegion = settings.getArenaRegion();
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		context.prepare(frame, settings);
+		int stride = context.getMaskStride();
+		ExclusionMask mask = settings.getExclusionMask();
+		long[] excluded = mask != null && mask.fits(width, height) ? mask
+				.getPlane() : null;
+		long[] outside = arenaRegion != null ? arenaRegion.getOutside(width,
+				height) : null;
+		int count = width * height;
+		// sort the pixels by their dark levels with a counting sort
+		short[] levels = new short[count];
+		int[] starts = new int[NEVER + 2];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int pixel = y * width + x;
+				int word = y * stride + (x >>> 6);
+				long bit = 1L << x;
+				int level;
+				if ((excluded != null && (excluded[word] & bit) != 0)
+						|| (outside != null && (outside[word] & bit) != 0)) {
+					level = NEVER;
+				} else {
+					level = frame.getLevel(x, y);
+				}
+				levels[pixel] = (short) level;
+				starts[level + 1]++;
+			}
+		}
+		for (int level = 0; level <= NEVER; level++) {
+			starts[level + 1] += starts[level];
+		}
+		int searched = starts[NEVER];
+		int[] order = new int[searched];
+		for (int pixel = 0; pixel < count; pixel++) {
+			if (levels[pixel] != NEVER) {
+				order[starts[levels[pixel]]++] = pixel;
+			}
+		}
+		// join every pixel to its neighbors which were added before it; a
+		// parent of -1 means the pixel hasn't been added
+		int[] parents = new int[count];
+		Arrays.fill(parents, -1);
+		int[] rootNodes = new int[count];
+		short[] nodeBirth = new short[Math.max(searched, 1)];
+		short[] nodeDeath = new short[nodeBirth.length];
+		int[] nodeArea = new int[nodeBirth.length];
+		int[] nodeFirst = new int[nodeBirth.length];
+		long[] nodeSumX = new long[nodeBirth.length];
+		long[] nodeSumY = new long[nodeBirth.length];
+		int nodes = 0;
+		for (int i = 0; i < searched; i++) {
+			int pixel = order[i];
+			short level = levels[pixel];
+			int y = pixel / width;
+			int x = pixel - y * width;
+			int node = nodes++;
+			nodeBirth[node] = level;
+			nodeDeath[node] = NEVER;
+			nodeArea[node] = 1;
+			nodeFirst[node] = x * height + y;
+			nodeSumX[node] = x;
+			nodeSumY[node] = y;
+			parents[pixel] = pixel;
+			int root = pixel;
+			for (int n = 0; n < 4; n++) {
+				int neighbor;
+				if (n == 0 && x > 0) {
+					neighbor = pixel - 1;
+				} else if (n == 1 && y > 0) {
+					neighbor = pixel - width;
+				} else if (n == 2 && x < width - 1) {
+					neighbor = pixel + 1;
+				} else if (n == 3 && y < height - 1) {
+					neighbor = pixel + width;
+				} else {
+					continue;
+				}
+				if (parents[neighbor] < 0) {
+					continue;
+				}
+				int other = find(parents, neighbor);
+				if (other == root) {
+					continue;
+				}
+				// the neighbor's blob is done with at this level, and is part
+				// of the new node from here on; a node which started at this
+				// level too is never a blob of its own
+				int joined = rootNodes[other];
+				nodeDeath[joined] = level;
+				nodeArea[node] += nodeArea[joined];
+				nodeSumX[node] += nodeSumX[joined];
+				nodeSumY[node] += nodeSumY[joined];
+				nodeFirst[node] = Math.min(nodeFirst[node], nodeFirst[joined]);
+				// the pixel joins the first tree it touches, which keeps the
+				// trees shallow
+				if (root == pixel) {
+					parents[pixel] = other;
+					root = other;
+				} else {
+					parents[other] = root;
+				}
+			}
+			rootNodes[root] = node;
+		}
+		// keep the nodes which are ever a blob, in the order of their first
+		// pixels
+		long[] keys = new long[nodes];
+		int kept = 0;
+		for (int node = 0; node < nodes; node++) {
+			if (nodeDeath[node] > nodeBirth[node]) {
+				keys[kept++] = ((long) nodeFirst[node] << 32) | node;
+			}
+		}
+		Arrays.sort(keys, 0, kept);
+		area = new int[kept];
+		birth = new short[kept];
+		death = new short[kept];
+		firstPixel = new int[kept];
+		sumX = new long[kept];
+		sumY = new long[kept];
+		for (int i = 0; i < kept; i++) {
+			int node = (int) keys[i];
+			area[i] = nodeArea[node];
+			birth[i] = nodeBirth[node];
+			death[i] = nodeDeath[node];
+			firstPixel[i] = nodeFirst[node];
+			sumX[i] = nodeSumX[node];
+			sumY[i] = nodeSumY[node];
+		}
+	}
+
+	/**
+	 * Puts every blob of dark pixels the frame has at the given contrast
+	 * threshold into a list, whatever its size, in the order a column by
+	 * column scan finds them. If the search was kept to arenas, every blob is
+	 * given the arena its center is in.
+	 *
+	 * @param threshold
+	 *            the contrast threshold, from 0 to 255.
+	 * @param blobs
+	 *            the list the blobs are put into, which is cleared first.
+	 */
+	public void getComponents(int threshold, BlobList blobs) {
+		blobs.clear();
+		for (int i = 0; i < area.length; i++) {
+			if (birth[i] <= threshold && threshold < death[i]) {
+				blobs.add(area[i], sumX[i], sumY[i], firstPixel[i]);
+				if (arenaRegion != null) {
+					int blob = blobs.size() - 1;
+					blobs.setArena(blob, arenaRegion.getArena(blobs.getX(blob),
+							blobs.getY(blob)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of nodes of the tree, which is at most the number of
+	 * pixels of the frame.
+	 *
+	 * @return the number of nodes.
+	 */
+	public int size() {
+		return area.length;
+	}
+}